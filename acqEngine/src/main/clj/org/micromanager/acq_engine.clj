@@ -20,10 +20,11 @@
      [ChannelSpec-to-map MultiStagePosition-to-map attempt-all core
       data-object-to-map do-when double-vector get-camera-roi 
       get-current-time-str get-msp get-msp-z-position get-pixel-type
-      get-property get-property-value get-system-config-cached gui json-to-data
-      load-mm log map-config mmc rekey set-msp-z-position store-mmcore
+      get-property get-property-value get-system-config-cached gui
+      invalidate-capabilities json-to-data load-mm log map-config mmc rekey set-msp-z-position store-mmcore
       str-vector when-lets with-core-setting]]
-    [org.micromanager.sequence-generator :only [generate-acq-sequence]])
+    [org.micromanager.sequence-generator :only
+     [generate-acq-sequence snapshot-capabilities]])
   (:require
     [clojure.set]
     [org.micromanager.mm :as mm])
@@ -31,17 +32,23 @@
     [ij ImagePlus]
     [java.awt Color]
     [java.io EOFException] ; abused to indicate canceled burst image collection
+    [java.io File]
+    [java.text SimpleDateFormat]
     [java.net InetAddress UnknownHostException]
-    [java.util Date UUID]
+    [java.util Date HashMap UUID]
     [java.util.concurrent CountDownLatch LinkedBlockingQueue TimeUnit]
     [mmcorej Configuration Metadata TaggedImage]
     [mmcorej.org.json JSONArray JSONObject]
     [org.micromanager.acquisition SequenceSettings]
+    [org.micromanager.acquisition.internal AcquisitionEventLog]
     [org.micromanager.acquisition.internal AcquisitionSleepEvent]
+    [org.micromanager.acquisition.internal FocusModel]
+    [org.micromanager.acquisition.internal StageRouteOptimizer]
     [org.micromanager.acquisition.internal TaggedImageQueue]
     [org.micromanager.data Coords]
     [org.micromanager PositionList]
     [org.micromanager.internal MMStudio]
+    [org.micromanager.internal.logging LogFileManager]
     [org.micromanager.internal.utils MDUtils ReportingUtils])
   (:gen-class
     :name org.micromanager.internal.AcquisitionEngine2010
@@ -69,6 +76,67 @@
 
 (def active-property-sequences (atom nil))
 
+; Controls how the device settings at the start of each event are applied.
+; When :concurrent? is true, commands to different devices are issued in
+; parallel (commands to the same device stay in order). :ordering holds
+; [device-a device-b] pairs: commands to device-b are only issued once
+; device-a's commands have been issued and device-a is no longer busy
+; (e.g. ["Z" "XY"] to retract before moving the stage).
+(def actuation-settings (atom {:concurrent? true
+                               :ordering []}))
+
+; Controls travel-optimized ordering of multi-stage positions (off by
+; default). Speeds are in um/ms, given per stage with one entry per axis
+; (e.g. {"XY" [10.0 5.0] "Z" [0.5]}); axes not listed use the default.
+(def route-settings (atom {:optimize? false
+                           :speeds-um-per-ms {}
+                           :default-speed-um-per-ms 5.0}))
+
+; When :pipelined-moves? is true (off by default), run-acquisition starts
+; moving the stages for the next event as soon as the camera has finished
+; exposing for the current one, so that stage travel overlaps with image
+; readout and collection. Moves are only started early when it is safe to
+; do so (see early-move-blocker).
+(def pipeline-settings (atom {:pipelined-moves? false
+                              :exposure-end-timeout-ms 10000}))
+
+; Time points are scheduled at absolute target times: each is planned
+; :wait-time-ms after the previous one was planned, not after it actually
+; happened, so that delays (device moves, autofocus) do not accumulate.
+; With :compensate-drift? false, a time point that starts more than
+; :late-threshold-ms late is taken as the start of the rest of the schedule
+; instead. The last :busy-wait-ms before each time point are spent
+; busy-waiting, for precision. Time lost while paused shifts the schedule.
+(def schedule-settings (atom {:compensate-drift? true
+                              :busy-wait-ms 1.0
+                              :late-threshold-ms 10.0}))
+
+; How late time points have started in the current (or last) acquisition.
+(def schedule-statistics (atom nil))
+
+; Burst image collection in the current (or last) acquisition: per camera
+; channel name, the number of images, the time of the first and last one,
+; the most images waiting to be processed and the total processing time;
+; and the most images left in the circular buffer.
+(def collection-statistics (atom nil))
+
+; The steps of each event can be recorded in a binary event log (see
+; AcquisitionEventLog) in the Core log directory, instead of as text in the
+; debug log. :verbosity is :off, :events (start and end of each event) or
+; :steps (each step of each event).
+(def event-log-settings (atom {:verbosity :off}))
+
+(def active-event-log (atom nil))
+
+; When :predictive? is true (off by default), autofocus results are used to
+; predict focus (see FocusModel), and autofocus is only run when focus
+; cannot be predicted to within :tolerance-um, or after :check-interval
+; predictions in a row. Autofocus runs saved are reported at the end.
+(def focus-prediction-settings (atom {:predictive? false
+                                      :tolerance-um 1.0
+                                      :check-interval 10
+                                      :memory-ms 3600000.0}))
+
 (def active-slice-sequence (atom nil))
 
 (def pixel-type-depths {"GRAY8" 1 "GRAY16" 2 "RGB32" 4 "RGB64" 8})
@@ -81,6 +149,9 @@
 (defn jvm-time-ms []
   (quot (System/nanoTime) 1000000))
 
+(defn precise-time-ms []
+  (/ (System/nanoTime) 1e6))
+
 (defn elapsed-time [state]
   (if (state :start-time) (- (jvm-time-ms) (state :start-time)) 0))
 
@@ -143,6 +214,8 @@
        "Time" (get-current-time-str)
        "UUID" (UUID/randomUUID)
        "WaitInterval" (:wait-time-ms event)
+       "PlannedTime-ms" (get-in state [:time-point :planned-ms])
+       "ActualTime-ms" (get-in state [:time-point :actual-ms])
        "Width"  (state :init-width)
        "XPositionUm" x
        "YPositionUm" y
@@ -268,10 +341,48 @@
   (try
     (log "running autofocus" (-> @state :autofocus-device .getName))
     (let [z (-> @state :autofocus-device .fullFocus)]
-      (swap! state assoc-in [:last-stage-positions (@state :default-z-drive)] z))
+      (swap! state assoc-in [:last-stage-positions (@state :default-z-drive)] z)
+      z)
     (catch Exception e
            (ReportingUtils/logError e "Autofocus failed.")
-           (set-stage-position z-drive (+ 1.0e-6 z0))))))
+           (set-stage-position z-drive (+ 1.0e-6 z0))
+           nil))))
+
+(defn make-focus-model []
+  (let [{:keys [predictive? tolerance-um check-interval memory-ms]}
+          @focus-prediction-settings]
+    (when predictive?
+      (FocusModel/create tolerance-um check-interval memory-ms))))
+
+(defn autofocus-or-predict
+  "Run autofocus for event, or, if the focus model can predict focus,
+   move the focus drive to the predicted position instead."
+  [event]
+  (if-let [^FocusModel model (@state :focus-model)]
+    (let [z-drive (@state :default-z-drive)
+          [x y] (or (get-in @state [:last-stage-positions
+                                    (@state :default-xy-stage)])
+                    [0.0 0.0])
+          position (int (or (:position-index event) 0))
+          t (double (elapsed-time @state))
+          predicted (.predict model position x y t)]
+      (if (Double/isNaN predicted)
+        (when-let [z (run-autofocus)]
+          (let [error (.observe model position x y t z)]
+            (log "autofocus result differs from focus model by" error "um")))
+        (do
+          (log "predicted focus:" predicted)
+          (set-stage-position z-drive predicted)
+          (wait-for-device z-drive))))
+    (run-autofocus)))
+
+(defn report-focus-model []
+  (when-let [^FocusModel model (@state :focus-model)]
+    (ReportingUtils/logMessage
+      (format (str "Predictive focus: %d autofocus runs, %d saved by "
+                   "prediction, %d results outside the tolerance")
+              (.getObservationCount model) (.getPredictionCount model)
+              (.getFailedCheckCount model)))))
 
 (defn snap-image [open-before close-after]
   (with-core-setting [getAutoShutter setAutoShutter false]
@@ -410,10 +521,6 @@
               (catch Throwable t nil)))
     queue))
 
-(defn pop-burst-images
-  [n timeout-ms]
-  (queuify n 10 #(pop-burst-image timeout-ms)))
-
 (defn make-multicamera-channel [raw-channel-index camera-channel num-camera-channels]
   (+ camera-channel (* num-camera-channels (or raw-channel-index 0))))
 
@@ -486,29 +593,116 @@
     (when (not (.offer out-queue tagged-image 1000 (TimeUnit/MILLISECONDS)))
       (recur))))
 
+; Burst images are popped from the circular buffer on one thread, and
+; handed to a lane per camera channel, which converts and annotates them on
+; its own thread. The results are sent out in the order the images were
+; popped.
+
+(defn record-collection-statistic
+  "Apply f (with args) to the collection statistic at key ks."
+  [ks f & args]
+  (swap! collection-statistics #(apply update-in % ks (fnil f 0) args)))
+
+(defn make-collection-lane
+  "Start a lane applying process-fn to the images put on its :in queue,
+   until it receives ::done. Results, or the exception thrown, are put on
+   its :out queue in the same order."
+  [camera-channel-name process-fn]
+  (let [in (LinkedBlockingQueue. 10)
+        out (LinkedBlockingQueue. 10)]
+    {:in in
+     :out out
+     :future (future
+               (try
+                 (loop []
+                   (let [image (.take in)]
+                     (when-not (= ::done image)
+                       (let [start (System/nanoTime)]
+                         (.put out (process-fn image))
+                         (record-collection-statistic
+                           [camera-channel-name :processing-ms] +
+                           (/ (- (System/nanoTime) start) 1e6)))
+                       (recur))))
+                 (catch Throwable t
+                   (.offer out t))))}))
+
+(defn camera-channel-of [^TaggedImage image camera-index-tag]
+  (let [cam-chan-str (.optString (.tags image) camera-index-tag "")]
+    (if (empty? cam-chan-str)
+      0
+      (Long/parseLong cam-chan-str))))
+
+(defn drain-burst-images
+  "Pop n images from the circular buffer, putting each on the lane of its
+   camera channel, and the lane's index on the order queue. An exception
+   is put on the order queue instead."
+  [n timeout-ms camera-index-tag camera-channel-names lanes order]
+  (future
+    (try
+      (dotimes [_ n]
+        (let [image (pop-tagged-image-timeout timeout-ms)
+              cam-chan (camera-channel-of image camera-index-tag)
+              camera-channel-name (nth camera-channel-names cam-chan)
+              lane (nth lanes cam-chan)
+              t (jvm-time-ms)]
+          ; time offset from the first image, whichever lane handles it
+          (when-not (@state :burst-time-offset)
+            (swap! state assoc-if-nil :burst-time-offset
+                   (- (elapsed-time @state)
+                      (core-time-from-tags (json-to-data (.tags image))))))
+          (swap! collection-statistics
+                 (fn [stats]
+                   (-> stats
+                       (update-in [camera-channel-name :images] (fnil inc 0))
+                       (update-in [camera-channel-name :first-image-ms]
+                                  #(or % t))
+                       (assoc-in [camera-channel-name :last-image-ms] t)
+                       (update-in [camera-channel-name :max-queued-images]
+                                  (fnil max 0) (.size (:in lane)))
+                       (update-in [:max-buffered-images] (fnil max 0)
+                                  (core getRemainingImageCount)))))
+          (.put (:in lane) image)
+          (.put order cam-chan)))
+      (catch Throwable t
+        (.put order t))
+      (finally
+        (doseq [lane lanes]
+          (.offer (:in lane) ::done))))))
+
+(defn take-or-throw [queue]
+  (let [item (.take queue)]
+    (if (instance? Throwable item)
+      (throw item)
+      item)))
+
 (defn produce-burst-images
-  "Pops images from circular buffer, tags them, and sends them to output queue."
+  "Pops images from circular buffer, tags them (in parallel for each camera
+   channel), and sends them to output queue."
   [burst-events camera-channel-names timeout-ms out-queue]
   (let [total (* (count burst-events)
                  (count camera-channel-names))
         camera-index-tag (str (. mmc getCameraDevice) "-CameraChannelIndex")
         image-number-offset (if (first-trigger-missing?) -1 0)
-        image-queue (pop-burst-images total timeout-ms)]
+        lanes (vec (for [camera-channel-name camera-channel-names]
+                     (make-collection-lane
+                       camera-channel-name
+                       #(-> %
+                          unwrap-tagged-image
+                          (tag-burst-image burst-events camera-channel-names
+                                           camera-index-tag image-number-offset)
+                          make-TaggedImage))))
+        order (LinkedBlockingQueue.)
+        drain (drain-burst-images total timeout-ms camera-index-tag
+                                  camera-channel-names lanes order)]
     (try
-      (doseq [i (range total)]
-        (send-tagged-image
-          out-queue
-          (let [image (try
-                        (.take image-queue)
-                        (catch RuntimeException e
-                          (if (.getCause e) ; unwrap rethrown exception
-                            (throw (.getCause e))
-                            (throw e))))]
-            (-> image
-              (tag-burst-image burst-events camera-channel-names camera-index-tag
-                               image-number-offset)
-              make-TaggedImage))))
-      (finally (burst-cleanup)))))
+      (dotimes [_ total]
+        (let [lane (nth lanes (take-or-throw order))]
+          (send-tagged-image out-queue (take-or-throw (:out lane)))))
+      (finally
+        (future-cancel drain)
+        (doseq [lane lanes]
+          (future-cancel (:future lane)))
+        (burst-cleanup)))))
 
 (defn collect-burst-images [event out-queue settings]
   (let [pop-timeout-ms (+ (:camera-timeout settings) (* 10 (:exposure event)))]
@@ -543,7 +737,11 @@
 ;; sleeping
 
 (defn await-resume []
-  (while (and (:pause @state) (not (:stop @state))) (Thread/sleep 5)))
+  (when (:pause @state)
+    (let [start (precise-time-ms)]
+      (while (and (:pause @state) (not (:stop @state))) (Thread/sleep 5))
+      (swap! state update-in [:paused-ms] (fnil + 0)
+             (- (precise-time-ms) start)))))
 
 (defn interruptible-sleep [time-ms]
   (let [sleepy (CountDownLatch. 1)]
@@ -551,30 +749,87 @@
       (let [event (AcquisitionSleepEvent. (+ (jvm-time-ms) time-ms))]
         (.post (.events gui) event)))
     (swap! state assoc :sleepy sleepy :next-wake-time (+ (jvm-time-ms) time-ms))
-    (.await sleepy time-ms TimeUnit/MILLISECONDS)))
-
-(defn acq-sleep [interval-ms]
+    (.await sleepy (long time-ms) TimeUnit/MILLISECONDS)))
+
+(defn busy-wait-until [target-ms]
+  (while (and (< (precise-time-ms) target-ms)
+              (not (:stop @state)))
+    (Thread/yield)))
+
+;; time-point scheduling
+
+(defn reset-schedule-statistics []
+  (reset! schedule-statistics {:time-points 0
+                               :late-time-points 0
+                               :mean-slip-ms 0.0
+                               :max-slip-ms 0.0
+                               :last-slip-ms 0.0}))
+
+(defn record-slip
+  "Add the delay (ms) with which a time point started to the statistics."
+  [slip-ms late-threshold-ms]
+  (swap! schedule-statistics
+         (fn [{:keys [time-points late-time-points mean-slip-ms max-slip-ms]
+               :as stats}]
+           (let [n (inc time-points)]
+             (assoc stats
+                    :time-points n
+                    :late-time-points (if (< late-threshold-ms slip-ms)
+                                        (inc late-time-points)
+                                        late-time-points)
+                    :mean-slip-ms (+ mean-slip-ms (/ (- slip-ms mean-slip-ms) n))
+                    :max-slip-ms (max max-slip-ms slip-ms)
+                    :last-slip-ms slip-ms)))))
+
+(defn acq-sleep
+  "Wait until the next time point, planned interval-ms after the previous
+   one (see schedule-settings). An interval of 0 means as soon as possible,
+   and restarts the schedule."
+  [interval-ms]
   (log "acq-sleep")
   (when (and (@state :init-continuous-focus)
              (not (core isContinuousFocusEnabled)))
     (try (enable-continuous-focus true) (catch Throwable t nil))) ; don't quit if this fails
-  (let [target-time (+ (@state :last-wake-time) interval-ms)
-        delta (- target-time (jvm-time-ms))]
+  (let [{:keys [compensate-drift? busy-wait-ms late-threshold-ms]}
+          @schedule-settings
+        paused-ms (or (@state :paused-ms) 0)
+        _ (swap! state assoc :paused-ms 0)
+        scheduled? (pos? interval-ms)
+        target-time (if scheduled?
+                      (+ (@state :planned-time) paused-ms interval-ms)
+                      (precise-time-ms))
+        delta (- target-time (precise-time-ms))]
      (when (and gui
                 (< 1000 delta)
                 (@state :live-mode-on)
                 (not (.isLiveModeOn (.live gui))))
       (.setLiveMode (.live gui) true))
-    (when (pos? delta)
-      (interruptible-sleep delta))
+    (when (< busy-wait-ms delta)
+      (interruptible-sleep (- delta busy-wait-ms)))
+    (busy-wait-until target-time)
     (await-resume)
     (when gui
       (swap! state assoc :live-mode-on (.isLiveModeOn (.live gui)))
       (when (.isLiveModeOn (.live gui))
         (.setLiveMode (.live gui) false)))
-    (let [now (jvm-time-ms)
-          wake-time (if (> now (+ target-time 10)) now target-time)]
-      (swap! state assoc :last-wake-time wake-time))))
+    (let [now (precise-time-ms)
+          slip (- now target-time)
+          ; a pause while waiting restarts the schedule
+          paused? (pos? (or (@state :paused-ms) 0))
+          origin (@state :schedule-origin)]
+      (when (and scheduled? (not paused?))
+        (record-slip slip late-threshold-ms)
+        (when (< late-threshold-ms slip)
+          (log (format "time point started %.1f ms late" slip))))
+      (swap! state assoc
+             :paused-ms 0
+             :planned-time (if (or paused?
+                                   (and (not compensate-drift?)
+                                        (< late-threshold-ms slip)))
+                             now
+                             target-time)
+             :time-point {:planned-ms (- target-time origin)
+                          :actual-ms (- now origin)}))))
 
 ;; higher level
 
@@ -653,12 +908,18 @@
         default-xy-stage (core getXYStageDevice)
         z (get-z-stage-position default-z-drive)
         xy (get-xy-stage-position default-xy-stage)
-        exposure (core getExposure)]
+        exposure (core getExposure)
+        now (precise-time-ms)]
+    (reset-schedule-statistics)
+    (reset! collection-statistics {})
     (swap! state assoc
            :pause false
            :stop false
            :finished false
-           :last-wake-time (jvm-time-ms)
+           :planned-time now
+           :schedule-origin now
+           :paused-ms 0
+           :time-point nil
            :last-stage-positions (into {} [[default-z-drive z]
                                            [default-xy-stage xy]])
            :reference-z z
@@ -670,6 +931,7 @@
            :default-z-drive default-z-drive
            :default-xy-stage default-xy-stage
            :autofocus-device autofocus-device
+           :focus-model (when autofocus-device (make-focus-model))
            :position-list position-list
            :init-z-position z
            :init-system-state (get-system-config-cached)
@@ -705,75 +967,427 @@
     (catch Throwable t 
            (ReportingUtils/showError t "Acquisition cleanup failed."))))
 
+;; concurrent device actuation
+
+(defn actuation-step [device label f]
+  {:device device :label label :fn f})
+
+(defn actuation-dependencies
+  "For each device among steps, the set of devices it must wait for. Core
+   properties (e.g. the current camera) affect everything else, so all
+   devices wait for \"Core\"."
+  [steps ordering]
+  (let [devices (set (map :device steps))]
+    (into {}
+          (for [d devices]
+            [d (set (concat
+                      (for [[a b] ordering
+                            :when (and (= b d) (not= a d) (devices a))]
+                        a)
+                      (when (and (not= "Core" d) (devices "Core"))
+                        ["Core"])))]))))
+
+(defn actuation-order
+  "Devices in an order compatible with deps (a topological sort), or nil if
+   the constraints are cyclic."
+  [deps]
+  (loop [done [] remaining deps]
+    (if (empty? remaining)
+      done
+      (let [ready (sort (for [[d ds] remaining
+                              :when (every? (set done) ds)]
+                          d))]
+        (when (seq ready)
+          (recur (into done ready) (apply dissoc remaining ready)))))))
+
+(defn run-actuation-step [step]
+  (let [start (System/nanoTime)]
+    ((:fn step))
+    (let [ms (/ (- (System/nanoTime) start) 1e6)]
+      (log "actuation step" (:label step) "took" ms "ms")
+      [(:label step) ms])))
+
+(defn run-actuation-lane
+  "Issue a device's commands in order, once the devices it depends on are
+   done. Delivers to the device's promise when done (or failed)."
+  [device steps deps done-promises wait?]
+  (try
+    (doseq [dep deps]
+      (let [result @(done-promises dep)]
+        (when (instance? Throwable result)
+          (throw (Exception. (str "Not actuating " device
+                                  " because " dep " failed"))))))
+    (let [timings (doall (map run-actuation-step steps))]
+      (when wait?
+        (wait-for-device device))
+      (deliver (done-promises device) timings)
+      timings)
+    (catch Throwable t
+      (deliver (done-promises device) t)
+      (throw t))))
+
+(defn execute-actuation-plan
+  "Apply steps (maps with :device, :label and :fn), overlapping independent
+   devices when enabled in actuation-settings. Does not wait for devices to
+   settle, except where required by ordering constraints; devices remain
+   pending and are waited for before exposure."
+  [steps]
+  (let [{:keys [concurrent? ordering]} @actuation-settings
+        deps (actuation-dependencies steps ordering)
+        order (actuation-order deps)
+        start (System/nanoTime)]
+    (if (or (not concurrent?) (nil? order) (>= 1 (count order)))
+      (do
+        (when (and concurrent? (nil? order))
+          (log "cyclic device ordering constraints; actuating sequentially"))
+        (dorun (map run-actuation-step steps)))
+      (let [dependents (set (mapcat val deps))
+            done-promises (into {} (for [d order] [d (promise)]))
+            lanes (doall
+                    (for [d order]
+                      (let [lane-steps (filter #(= d (:device %)) steps)]
+                        (future (run-actuation-lane d lane-steps (deps d)
+                                                    done-promises
+                                                    (dependents d))))))]
+        (doseq [lane lanes]
+          (try @lane
+            (catch java.util.concurrent.ExecutionException e
+              (throw (or (.getCause e) e)))))))
+    (log "actuation of" (count steps) "steps took"
+         (/ (- (System/nanoTime) start) 1e6) "ms"
+         (if concurrent? "(concurrent)" "(sequential)"))))
+
+(defn make-position-steps [event]
+  (when (:new-position event)
+    (for [[axis pos]
+          (:axes (MultiStagePosition-to-map
+                   (get-msp (@state :position-list) (:position event))))
+          :when pos]
+      (actuation-step axis (str "set position of stage " axis)
+                      #(apply set-stage-position axis pos)))))
+
+(defn make-actuation-steps [event]
+  (concat
+    (make-position-steps event)
+    (for [prop (get-in event [:channel :properties])
+          :let [[[d p] v] prop]]
+      (actuation-step d (str "set property " d "-" p " to " v)
+                      #(set-property prop)))
+    (when-let [exposure (:exposure event)]
+      ; The camera may have been changed by a Core property above
+      (let [camera (or (get-in event [:channel :properties ["Core" "Camera"]])
+                       (core getCameraDevice))]
+        [(actuation-step camera (str "set exposure to " exposure)
+                         #(when-let [camera (core getCameraDevice)]
+                            (set-exposure camera exposure)))]))))
+
+;; event log
+
+(def event-log-levels {:off 0 :events 1 :steps 2})
+
+(defn open-event-log []
+  (let [level (event-log-levels (:verbosity @event-log-settings) 0)]
+    (when (pos? level)
+      (let [dir (LogFileManager/getLogFileDirectory)
+            file (File. dir (str "AcqEngineEvents"
+                                 (.format (SimpleDateFormat. "yyyyMMdd'T'HHmmss")
+                                          (Date.))
+                                 ".bin"))]
+        (.mkdirs dir)
+        (reset! active-event-log {:log (AcquisitionEventLog/create file)
+                                  :level level})
+        (log "recording acquisition events to" (.getAbsolutePath file))))))
+
+(defn close-event-log []
+  (when-let [{event-log :log} @active-event-log]
+    (reset! active-event-log nil)
+    (.close ^AcquisitionEventLog event-log)
+    (log "acquisition event log closed;"
+         (str (.getDroppedStepCount ^AcquisitionEventLog event-log))
+         "steps dropped")))
+
+(defn log-step
+  "Record a step in processing event: in the event log if it is open and
+   level (:events or :steps) is enabled, otherwise as text in the debug
+   log. Never formats the event itself."
+  [level message event]
+  (if-let [{event-log :log max-level :level} @active-event-log]
+    (when (<= (event-log-levels level) max-level)
+      (let [^AcquisitionEventLog event-log event-log]
+        (.record event-log
+                 (.getMessageId event-log message)
+                 (int (or (:frame-index event) -1))
+                 (int (or (:position-index event) -1))
+                 (int (or (:channel-index event) -1))
+                 (int (or (:slice-index event) -1)))))
+    ; Not (core debugLogEnabled), which would itself log two lines; the
+    ; check keeps the indices from being formatted when nothing is logged
+    (when (.debugLogEnabled mmc)
+      (if (= :events level)
+        (log message (format "(frame %s, position %s, channel %s, slice %s)"
+                             (:frame-index event) (:position-index event)
+                             (:channel-index event) (:slice-index event)))
+        (log message)))))
+
+;; pipelined stage moves
+
+(defn checks-z-reference? [event]
+  (and (@state :default-z-drive)
+       (or (:autofocus event)
+           (when-let [t (:wait-time-ms event)]
+             (< 1000 t)))))
+
+(defn make-early-move-steps
+  "The stage moves for event that could be made before the previous event's
+   images have been collected: the move to a new position, and the move to
+   the z slice unless the z reference has to be checked first."
+  [event]
+  (let [z-drive (@state :default-z-drive)]
+    (concat
+      (make-position-steps event)
+      (when (and (not (empty? z-drive))
+                 (not (checks-z-reference? event)))
+        [(actuation-step z-drive "set z position"
+                         #(set-stage-position z-drive
+                                              (compute-z-position event)))]))))
+
+(defn early-move-blocker
+  "The reason the move steps for next-event must not be made while the
+   images of event are collected, or nil if they can be."
+  [event next-event move-steps]
+  (let [stages (set (map :device move-steps))
+        other-devices (clojure.set/difference
+                        (set (map :device (make-actuation-steps next-event)))
+                        stages)
+        {:keys [properties slices]} (:trigger-sequence event)
+        sequenced (set (concat (map ffirst properties)
+                               (when slices [(@state :default-z-drive)])))]
+    (cond
+      (:stop @state) "acquisition stopping"
+      (core getShutterOpen) "shutter is open"
+      (some sequenced stages) "stage is being sequenced"
+      (other-devices "Core") "Core properties change"
+      (some (fn [[a b]] (or (and (stages a) (other-devices b))
+                            (and (other-devices a) (stages b))))
+            (:ordering @actuation-settings)) "device ordering constraints"
+      (seq (:runnables next-event)) "runnables attached"
+      (pos? (or (:wait-time-ms next-event) 0)) "waiting before next event")))
+
+(defn await-exposure-end
+  "Wait until the camera has finished exposing all of event's images.
+   Returns false if this doesn't happen within timeout-ms."
+  [event timeout-ms]
+  (if (= :burst (:task event))
+    (let [deadline (+ (jvm-time-ms) timeout-ms)]
+      (loop []
+        (cond
+          (not (core isSequenceRunning)) true
+          (or (@state :stop) (< deadline (jvm-time-ms))) false
+          :else (do (Thread/sleep 1) (recur)))))
+    true)) ; snapImage returns at the end of the exposure
+
+(defn start-early-move
+  "Once event's exposure is over, start the stage moves for next-event in
+   the background, if safe, while event's images are collected."
+  [event next-event]
+  (let [move-steps (make-early-move-steps next-event)]
+    (when (seq move-steps)
+      (swap! state assoc :early-move
+             (future
+               (if-not (await-exposure-end
+                         event (:exposure-end-timeout-ms @pipeline-settings))
+                 (log "early move not started: exposure end not seen")
+                 (if-let [blocker (early-move-blocker event next-event
+                                                      move-steps)]
+                   (log "early move not started:" blocker)
+                   (do
+                     (log-step :steps "BEGIN early move" next-event)
+                     (execute-actuation-plan move-steps)
+                     (log-step :steps "END early move" next-event)))))))))
+
+(defn finish-early-move
+  "Wait for the early move started by start-early-move, if any. The moved
+   stages remain pending."
+  []
+  (when-let [early-move (@state :early-move)]
+    (swap! state dissoc :early-move)
+    (try @early-move
+      (catch java.util.concurrent.ExecutionException e
+        (throw (or (.getCause e) e))))))
+
 ;; running events
 
-(defn make-event-fns [event out-queue settings]
+(defn make-event-fns [event next-event out-queue settings]
   (let [current-position (:position event)
         z-drive (@state :default-z-drive)
-        check-z-ref (and z-drive
-                         (or (:autofocus event)
-                             (when-let [t (:wait-time-ms event)]
-                               (< 1000 t))))]
+        check-z-ref (checks-z-reference? event)]
     (filter identity
             ; The items of the flattened list get executed without stopping or
             ; pausing in between (except when throwing)
             (flatten
               (list
-                #(log "#####" "BEGIN acquisition event:" event)
-                (when (:new-position event)
-                  (for [[axis pos]
-                        (:axes (MultiStagePosition-to-map
-                                 (get-msp (@state :position-list) current-position)))
-                        :when pos]
-                    #(do
-                       (log "BEGIN set position of stage" axis)
-                       (apply set-stage-position axis pos)
-                       (log "END set position of stage" axis))))
-                #(log "BEGIN channel properties and exposure")
-                (for [prop (get-in event [:channel :properties])]
-                  #(set-property prop))
-                #(when-lets [exposure (:exposure event)
-                             camera (core getCameraDevice)]
-                            (set-exposure camera exposure))
-                #(log "END channel properties and exposure")
+                #(log-step :events "##### BEGIN acquisition event" event)
+                #(do
+                   (finish-early-move)
+                   (log-step :steps
+                             "BEGIN stage positions, channel properties and exposure"
+                             event)
+                   (execute-actuation-plan (make-actuation-steps event))
+                   (log-step :steps
+                             "END stage positions, channel properties and exposure"
+                             event))
                 #(when check-z-ref
-                   (log "BEGIN recall-z-reference")
+                   (log-step :steps "BEGIN recall-z-reference" event)
                    (recall-z-reference current-position)
-                   (log "END recall-z-reference"))
+                   (log-step :steps "END recall-z-reference" event))
                 #(when-let [wait-time-ms (:wait-time-ms event)]
                    (acq-sleep wait-time-ms))
                 #(when (get event :autofocus)
                    (wait-for-pending-devices)
-                   (run-autofocus))
+                   (autofocus-or-predict event))
                 #(when check-z-ref
-                   (log "BEGIN store/update z reference")
+                   (log-step :steps "BEGIN store/update z reference" event)
                    (store-z-reference current-position)
                    (update-z-positions current-position)
-                   (log "END store/update z reference"))
+                   (log-step :steps "END store/update z reference" event))
                 #(when z-drive
-                   (log "BEGIN set z position")
+                   (log-step :steps "BEGIN set z position" event)
                    (let [z (compute-z-position event)]
                      (set-stage-position z-drive z))
-                   (log "END set z position"))
+                   (log-step :steps "END set z position" event))
                 (for [runnable (event :runnables)]
                   #(do
-                     (log "BEGIN run one runnable")
+                     (log-step :steps "BEGIN run one runnable" event)
                      (.run runnable)
-                     (log "END run one runnable")))
+                     (log-step :steps "END run one runnable" event)))
                 #(do
                    (wait-for-pending-devices)
-                   (log "BEGIN acquire")
+                   (log-step :steps "BEGIN acquire" event)
                    (expose event)
+                   (when next-event
+                     (start-early-move event next-event))
                    (collect event out-queue settings)
                    (stop-triggering)
-                   (log "END acquire"))
-                #(log "#####" "END acquisition event"))))))
+                   (log-step :steps "END acquire" event))
+                #(log-step :events "##### END acquisition event" event))))))
+
+;; position routing
+
+(defn routing-axes
+  "The [stage axis-index] pairs set by any of the positions."
+  [msps]
+  (vec (sort (distinct (for [msp msps
+                             [stage coords] (:axes msp)
+                             i (range (count coords))]
+                         [stage i])))))
+
+(defn routing-coords
+  "Coordinates of a position along the given axes (NaN where not set)."
+  [msp axes]
+  (double-array (for [[stage i] axes]
+                  (double (or (get-in msp [:axes stage i]) Double/NaN)))))
+
+(defn current-routing-coords
+  "Current coordinates of the stages along the given axes, or nil if they
+   cannot be read."
+  [axes xy-stages]
+  (try
+    (let [xy-position (memoize get-xy-stage-position)]
+      (double-array (for [[stage i] axes]
+                      (double (if (xy-stages stage)
+                                (get (xy-position stage) i)
+                                (get-z-stage-position stage))))))
+    (catch Exception e
+      (log "can't read stage positions for routing:" e)
+      nil)))
+
+(defn optimize-position-order
+  "Reorder (:positions settings) to reduce stage travel time, when enabled
+   in route-settings. The route is closed (returns to its start) when it is
+   repeated at every time point. Events keep the position list index as
+   :position-index, so image metadata is unaffected by the reordering."
+  [settings]
+  (let [{:keys [optimize? speeds-um-per-ms default-speed-um-per-ms]}
+          @route-settings
+        positions (:positions settings)
+        position-list (@state :position-list)
+        msps (when (and optimize? position-list (< 2 (count positions)))
+               (map #(MultiStagePosition-to-map (get-msp position-list %))
+                    positions))
+        axes (routing-axes msps)]
+    (if (empty? axes)
+      settings
+      (let [xy-stages (set (for [msp msps
+                                 [stage coords] (:axes msp)
+                                 :when (= 2 (count coords))]
+                             stage))
+            optimizer (StageRouteOptimizer/create
+                        (double-array
+                          (for [[stage i] axes]
+                            (double (get-in speeds-um-per-ms [stage i]
+                                            default-speed-um-per-ms)))))
+            coords (into-array (map #(routing-coords % axes) msps))
+            start (current-routing-coords axes xy-stages)
+            closed (and (< 1 (:numFrames settings))
+                        (not (:time-first settings)))
+            t0 (System/nanoTime)
+            order (.optimize optimizer coords start closed)
+            optimize-ms (/ (- (System/nanoTime) t0) 1e6)
+            travel-ms #(.getTotalTravelTimeMs optimizer coords % start closed)]
+        (log (format (str "position route: %d positions, travel time %.0f ms "
+                          "in list order, %.0f ms optimized (computed in "
+                          "%.0f ms)")
+                     (count positions)
+                     (travel-ms (int-array (range (count positions))))
+                     (travel-ms order)
+                     optimize-ms))
+        (assoc settings :positions (vec (map #(nth positions %) order)))))))
 
 (defn execute [event-fns]
   (doseq [event-fn event-fns :while (not (:stop @state))]
     (event-fn)
     (await-resume)))
 
+(defn timed-seq
+  "A lazy sequence of the items of coll, adding the time taken to realize
+   them to the generation-ns atom and counting them in the item-count atom."
+  [coll generation-ns item-count]
+  (lazy-seq
+    (let [start (System/nanoTime)
+          s (seq coll)]
+      (swap! generation-ns + (- (System/nanoTime) start))
+      (when s
+        (swap! item-count inc)
+        (cons (first s) (timed-seq (rest s) generation-ns item-count))))))
+
+(defn make-acquisition-fns
+  "Generate the events of an acquisition (after prepare-state), and return
+   the functions that carry them out, in order. Events are generated as
+   they are needed; the total time taken is logged at the end."
+  [settings out-queue runnables]
+  (let [start (System/nanoTime)
+        n-capabilities (snapshot-capabilities settings)
+        snapshot-ms (/ (- (System/nanoTime) start) 1e6)
+        generation-ns (atom 0)
+        event-count (atom 0)
+        acq-seq (timed-seq (generate-acq-sequence
+                             (optimize-position-order settings) runnables)
+                           generation-ns event-count)]
+    (swap! generation-ns + (- (System/nanoTime) start))
+    (log (format "hardware capability snapshot (%d entries) took %.1f ms"
+                 n-capabilities snapshot-ms))
+    ; for debugging; only the first events, so that the rest can be
+    ; garbage collected once executed
+    (def acq-sequence (doall (take 100 acq-seq)))
+    (concat
+      (mapcat #(make-event-fns %1 %2 out-queue settings)
+              acq-seq
+              (if (:pipelined-moves? @pipeline-settings)
+                (concat (rest acq-seq) [nil])
+                (repeat nil)))
+      [#(log (format "generating %d events took %.1f ms" @event-count
+                     (/ @generation-ns 1e6)))])))
+
 (defn run-acquisition [settings out-queue cleanup? position-list autofocus-device]
     (try
       (def acq-settings settings) ; for debugging
@@ -783,16 +1397,23 @@
         (.. gui uiManager frame (enableRoiButtons false)))
       (prepare-state state (when (:use-position-list settings) position-list) autofocus-device)
       (def last-state state) ; for debugging
-      (let [acq-seq (generate-acq-sequence settings @attached-runnables)]
-        (def acq-sequence acq-seq) ; for debugging
-        (execute (mapcat #(make-event-fns % out-queue settings) acq-seq)))
+      (open-event-log)
+      (execute (make-acquisition-fns settings out-queue @attached-runnables))
       (catch Throwable t
              (def acq-error t) ; for debugging
              ; XXX There ought to be a way to get errors programmatically...
              (future (ReportingUtils/showError t "Acquisition failed.")))
       (finally
+        (try (finish-early-move)
+          (catch Throwable t (log "early move failed:" t)))
+        (try (close-event-log)
+          (catch Throwable t (log "closing event log failed:" t)))
         (when cleanup?
           (cleanup))
+        (log "time point schedule:" @schedule-statistics)
+        (try (report-focus-model)
+          (catch Throwable t (log "focus model report failed:" t)))
+        (log "burst image collection:" @collection-statistics)
         (if (:stop @state)
           ; In the case where we canceled the acquisition via stop, it is
           ; possible that the out-queue is full. But we have already given up
@@ -1049,6 +1670,31 @@
 (defn -nextWakeTime [this]
   (or (:next-wake-time @(.state this)) -1))
 
+(defn -getCollectionStatistics [this]
+  (let [stats @collection-statistics]
+    (HashMap.
+      (into {"MaxBufferedImages" (or (:max-buffered-images stats) 0)}
+        (apply concat
+          (for [[camera {:keys [images first-image-ms last-image-ms
+                                max-queued-images processing-ms]}] stats
+                :when (string? camera)]
+            {(str camera "-Images") images
+             (str camera "-ImagesPerSecond")
+               (if (< first-image-ms last-image-ms)
+                 (/ (* 1000.0 (dec images)) (- last-image-ms first-image-ms))
+                 0.0)
+             (str camera "-MaxQueuedImages") max-queued-images
+             (str camera "-ProcessingTime-ms") (or processing-ms 0.0)}))))))
+
+(defn -getScheduleStatistics [this]
+  (let [{:keys [time-points late-time-points mean-slip-ms max-slip-ms
+                last-slip-ms]} @schedule-statistics]
+    (HashMap. {"TimePoints" (or time-points 0)
+               "LateTimePoints" (or late-time-points 0)
+               "MeanSlip-ms" (or mean-slip-ms 0.0)
+               "MaxSlip-ms" (or max-slip-ms 0.0)
+               "LastSlip-ms" (or last-slip-ms 0.0)})))
+
 ;; attaching runnables
 
 (defn -attachRunnable [this f p c s runnable]
@@ -1063,6 +1709,11 @@
 (defn -clearRunnables [this]
   (reset! attached-runnables (vec nil)))
 
+;; hardware capabilities
+
+(defn -invalidateCapabilities [this]
+  (invalidate-capabilities))
+
 ;; testing
 
 (defn stop []
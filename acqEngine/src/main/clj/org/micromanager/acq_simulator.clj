@@ -0,0 +1,485 @@
+; FILE:         acq_simulator.clj
+; PROJECT:      Micro-Manager
+; SUBSYSTEM:    mmstudio acquisition engine
+; ----------------------------------------------------------------------------
+; LICENSE:      This file is distributed under the BSD license.
+;               License text is included with the source distribution.
+;               This file is distributed in the hope that it will be useful,
+;               but WITHOUT ANY WARRANTY; without even the implied warranty
+;               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+;               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+;               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+;               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+(ns org.micromanager.acq-simulator
+  "Dry runs of multi-dimensional acquisitions. The acquisition engine's
+   event generation and event functions are run against a simulated core,
+   whose devices take (virtual) time according to a timing model, and a
+   report of the projected duration and where the time goes is returned.
+
+   Usage, from a REPL in a running Micro-Manager:
+     (simulate (.getSequenceSettings (.acquisitions gui))
+               (.getPositionList gui)
+               (assoc-in default-timing-model
+                         [:devices \"Wheel\" :switch-ms] 80.0))"
+  (:import [java.util.concurrent LinkedBlockingQueue]
+           [mmcorej TaggedImage]
+           [mmcorej.org.json JSONObject])
+  (:require [org.micromanager.acq-engine :as engine]
+            [org.micromanager.mm :as mm]
+            [org.micromanager.sequence-generator :as seqgen]))
+
+(def default-timing-model
+  "Devices and their timing. Times are in ms, speeds in um/ms (per axis for
+   XY stages). Devices that are not listed take :default-switch-ms to
+   change a property, and stages move as :default-stage. A device with a
+   :sequence-max-length can have its properties (or, for a stage, its
+   position) hardware-sequenced."
+  {:camera "Camera"
+   :xy-stage "XY"
+   :focus "Z"
+   :shutter "Shutter"
+   :width 512
+   :height 512
+   :bytes-per-pixel 2
+   :devices {"Camera" {:readout-ms 10.0}
+             "XY" {:speed-um-per-ms [10.0 10.0] :settle-ms 20.0}
+             "Z" {:speed-um-per-ms 1.0 :settle-ms 5.0}
+             "Shutter" {:switch-ms 5.0}}
+   :default-stage {:speed-um-per-ms 1.0 :settle-ms 0.0}
+   :default-switch-ms 0.0
+   :autofocus-ms 1000.0
+   :all-sequenceable? false
+   :initial-positions {"XY" [0.0 0.0] "Z" [0.0]}
+   :initial-properties {}})
+
+;; simulation state
+
+(defn make-sim [model]
+  {:model model
+   :clock (atom 0.0)
+   ; device -> {:busy-until :busy-ms :waited-ms}
+   :devices (atom {})
+   :properties (atom (merge {[(:camera model) "Binning"] "1"}
+                            (:initial-properties model)))
+   :positions (atom (:initial-positions model))
+   :camera-state (atom {:exposure 10.0 :auto-shutter true
+                        :shutter-open false :sequence nil})
+   :interval-wait-ms (atom 0.0)})
+
+(defn now [sim]
+  @(:clock sim))
+
+(defn advance-to! [sim t]
+  (swap! (:clock sim) max t))
+
+(defn occupy!
+  "Keep device busy for ms, starting when it is next free. Returns the time
+   at which it will be free again."
+  [sim device ms]
+  (let [t (now sim)]
+    (-> (swap! (:devices sim) update-in [device]
+               (fn [{:keys [busy-until busy-ms]
+                     :or {busy-until 0.0 busy-ms 0.0} :as d}]
+                 (assoc d
+                        :busy-until (+ (max t busy-until) ms)
+                        :busy-ms (+ busy-ms ms))))
+        (get-in [device :busy-until]))))
+
+(defn wait-for! [sim device]
+  (let [until (get-in @(:devices sim) [device :busy-until] 0.0)
+        t (now sim)]
+    (when (< t until)
+      (swap! (:devices sim) update-in [device :waited-ms] (fnil + 0.0) (- until t))
+      (advance-to! sim until))))
+
+(defn device-model [sim device]
+  (get-in sim [:model :devices device]))
+
+(defn switch-ms [sim device]
+  (or (:switch-ms (device-model sim device))
+      (get-in sim [:model :default-switch-ms])
+      0.0))
+
+(defn move-ms
+  "Time for a stage to move between positions (vectors with one coordinate
+   per axis). The axes move simultaneously."
+  [sim stage from to]
+  (let [{:keys [speed-um-per-ms settle-ms]}
+          (merge (get-in sim [:model :default-stage])
+                 (device-model sim stage))
+        speeds (if (number? speed-um-per-ms)
+                 (repeat speed-um-per-ms)
+                 speed-um-per-ms)]
+    (+ (or settle-ms 0.0)
+       (if from
+         (apply max 0.0 (map #(/ (Math/abs (double (- %2 %1))) %3)
+                             from to speeds))
+         0.0))))
+
+(defn sequence-max-length [sim device]
+  (if (get-in sim [:model :all-sequenceable?])
+    Integer/MAX_VALUE
+    (or (:sequence-max-length (device-model sim device)) 0)))
+
+(defn current-device [sim core-property default-key]
+  (get @(:properties sim) ["Core" core-property]
+       (get-in sim [:model default-key])))
+
+(defn readout-ms [sim camera]
+  (or (:readout-ms (device-model sim camera)) 0.0))
+
+(defn image-ready-time
+  "Time at which image k of a sequence acquisition can be popped."
+  [{:keys [start interval exposure readout]} k]
+  (+ start (* k interval) exposure readout))
+
+(defn make-image [sim camera image-number t]
+  (TaggedImage. (if (= 1 (get-in sim [:model :bytes-per-pixel]))
+                  (byte-array 0)
+                  (short-array 0))
+                (JSONObject. {"Camera" camera
+                              (str camera "-CameraChannelIndex") "0"
+                              "ImageNumber" (str image-number)
+                              "ElapsedTime-ms" (str t)})))
+
+;; simulated core
+
+; The engine calls the core reflectively, so any object with the methods it
+; uses can stand in for it.
+(definterface SimulatedCoreMethods
+  (getCameraDevice [])
+  (getFocusDevice [])
+  (getXYStageDevice [])
+  (getShutterDevice [])
+  (getAutoFocusDevice [])
+  (getNumberOfCameraChannels [])
+  (getCameraChannelName [i])
+  (getImageWidth [])
+  (getImageHeight [])
+  (getBytesPerPixel [])
+  (getNumberOfComponents [])
+  (getImageBitDepth [])
+  (getPixelSizeUm [])
+  (getPixelSizeAffineAsString [])
+  (getExposure [])
+  (setExposure [exposure])
+  (getAutoShutter [])
+  (setAutoShutter [auto])
+  (getShutterOpen [])
+  (setShutterOpen [open])
+  (isContinuousFocusEnabled [])
+  (isContinuousFocusDrive [stage])
+  (enableContinuousFocus [enable])
+  (getProperty [device property])
+  (hasProperty [device property])
+  (setProperty [device property value])
+  (getSystemStateCache [])
+  (isPropertySequenceable [device property])
+  (getPropertySequenceMaxLength [device property])
+  (loadPropertySequence [device property values])
+  (startPropertySequence [device property])
+  (stopPropertySequence [device property])
+  (getPosition [stage])
+  (setPosition [stage z])
+  (getXYPosition [stage x y])
+  (setXYPosition [stage x y])
+  (isStageSequenceable [stage])
+  (getStageSequenceMaxLength [stage])
+  (loadStageSequence [stage positions])
+  (startStageSequence [stage])
+  (stopStageSequence [stage])
+  (waitForDevice [device])
+  (snapImage [])
+  (getTaggedImage [channel])
+  (startSequenceAcquisition [n interval-ms stop-on-overflow])
+  (stopSequenceAcquisition [])
+  (isSequenceRunning [])
+  (popNextTaggedImage [])
+  (getRemainingImageCount [])
+  (isBufferOverflowed [])
+  (logMessage [message debug])
+  (debugLogEnabled []))
+
+(deftype SimulatedCore [sim]
+  SimulatedCoreMethods
+  (getCameraDevice [_] (current-device sim "Camera" :camera))
+  (getFocusDevice [_] (current-device sim "Focus" :focus))
+  (getXYStageDevice [_] (current-device sim "XYStage" :xy-stage))
+  (getShutterDevice [_] (current-device sim "Shutter" :shutter))
+  (getAutoFocusDevice [_] "")
+  (getNumberOfCameraChannels [_] 1)
+  (getCameraChannelName [this i] (.getCameraDevice this))
+  (getImageWidth [_] (get-in sim [:model :width]))
+  (getImageHeight [_] (get-in sim [:model :height]))
+  (getBytesPerPixel [_] (get-in sim [:model :bytes-per-pixel]))
+  (getNumberOfComponents [_] 1)
+  (getImageBitDepth [_] (* 8 (get-in sim [:model :bytes-per-pixel])))
+  (getPixelSizeUm [_] 1.0)
+  (getPixelSizeAffineAsString [_] "1.0;0.0;0.0;0.0;1.0;0.0")
+  (getExposure [_] (:exposure @(:camera-state sim)))
+  (setExposure [this exposure]
+    (occupy! sim (.getCameraDevice this) (switch-ms sim (.getCameraDevice this)))
+    (swap! (:camera-state sim) assoc :exposure (double exposure)))
+  (getAutoShutter [_] (:auto-shutter @(:camera-state sim)))
+  (setAutoShutter [_ auto]
+    (swap! (:camera-state sim) assoc :auto-shutter (boolean auto)))
+  (getShutterOpen [_] (:shutter-open @(:camera-state sim)))
+  (setShutterOpen [this open]
+    (occupy! sim (.getShutterDevice this) (switch-ms sim (.getShutterDevice this)))
+    (swap! (:camera-state sim) assoc :shutter-open (boolean open)))
+  (isContinuousFocusEnabled [_] false)
+  (isContinuousFocusDrive [_ stage] false)
+  (enableContinuousFocus [_ enable] nil)
+  (getProperty [_ device property]
+    (get @(:properties sim) [device property] ""))
+  (hasProperty [_ device property]
+    (contains? @(:properties sim) [device property]))
+  (setProperty [_ device property value]
+    (occupy! sim device (if (= "Core" device) 0.0 (switch-ms sim device)))
+    (swap! (:properties sim) assoc [device property] (str value)))
+  (getSystemStateCache [_] @(:properties sim))
+  (isPropertySequenceable [_ device property]
+    (pos? (sequence-max-length sim device)))
+  (getPropertySequenceMaxLength [_ device property]
+    (sequence-max-length sim device))
+  (loadPropertySequence [_ device property values] nil)
+  (startPropertySequence [_ device property] nil)
+  (stopPropertySequence [_ device property] nil)
+  (getPosition [_ stage]
+    (double (first (get @(:positions sim) stage [0.0]))))
+  (setPosition [_ stage z]
+    (let [from (get @(:positions sim) stage)
+          to [(double z)]]
+      (swap! (:positions sim) assoc stage to)
+      (occupy! sim stage (move-ms sim stage from to))))
+  (getXYPosition [_ stage x y]
+    (let [[px py] (get @(:positions sim) stage [0.0 0.0])]
+      (aset ^doubles x 0 (double px))
+      (aset ^doubles y 0 (double py))))
+  (setXYPosition [_ stage x y]
+    (let [from (get @(:positions sim) stage)
+          to [(double x) (double y)]]
+      (swap! (:positions sim) assoc stage to)
+      (occupy! sim stage (move-ms sim stage from to))))
+  (isStageSequenceable [_ stage]
+    (pos? (sequence-max-length sim stage)))
+  (getStageSequenceMaxLength [_ stage]
+    (sequence-max-length sim stage))
+  (loadStageSequence [_ stage positions] nil)
+  (startStageSequence [_ stage] nil)
+  (stopStageSequence [_ stage] nil)
+  (waitForDevice [_ device]
+    (wait-for! sim device))
+  (snapImage [this]
+    (let [camera (.getCameraDevice this)
+          exposure (:exposure @(:camera-state sim))]
+      (wait-for! sim camera)
+      ; Returns at the end of the exposure; readout continues
+      (advance-to! sim (occupy! sim camera exposure))
+      (occupy! sim camera (readout-ms sim camera))))
+  (getTaggedImage [this channel]
+    (let [camera (.getCameraDevice this)]
+      (wait-for! sim camera)
+      (make-image sim camera 0 (now sim))))
+  (startSequenceAcquisition [this n interval-ms stop-on-overflow]
+    (let [camera (.getCameraDevice this)
+          {:keys [exposure auto-shutter]} @(:camera-state sim)
+          readout (readout-ms sim camera)]
+      (wait-for! sim camera)
+      (let [start (if auto-shutter
+                    (occupy! sim (.getShutterDevice this)
+                             (switch-ms sim (.getShutterDevice this)))
+                    (now sim))
+            sequence {:start start :count (long n)
+                      :interval (max exposure readout (double interval-ms))
+                      :exposure exposure :readout readout
+                      :popped 0 :stopped false}]
+        (occupy! sim camera (- (image-ready-time sequence (dec n)) (now sim)))
+        (swap! (:camera-state sim) assoc :sequence sequence))))
+  (stopSequenceAcquisition [_]
+    (swap! (:camera-state sim)
+           #(if (:sequence %) (assoc-in % [:sequence :stopped] true) %)))
+  (isSequenceRunning [_]
+    (let [sequence (:sequence @(:camera-state sim))]
+      (boolean (and sequence
+                    (not (:stopped sequence))
+                    (< (now sim)
+                       (image-ready-time sequence (dec (:count sequence))))))))
+  (popNextTaggedImage [this]
+    (let [sequence (:sequence @(:camera-state sim))
+          k (:popped sequence)]
+      (when (or (nil? sequence) (>= k (:count sequence)))
+        (throw (Exception. "Circular buffer is empty.")))
+      (swap! (:camera-state sim) update-in [:sequence :popped] inc)
+      (let [t (image-ready-time sequence k)]
+        (advance-to! sim t)
+        (make-image sim (.getCameraDevice this) k t))))
+  (getRemainingImageCount [_]
+    (let [{n :count popped :popped} (:sequence @(:camera-state sim))]
+      (if n (- n popped) 0)))
+  (isBufferOverflowed [_] false)
+  (logMessage [_ message debug] nil)
+  (debugLogEnabled [_] false))
+
+(definterface SimulatedAutofocusMethods
+  (getName [])
+  (fullFocus []))
+
+(deftype SimulatedAutofocus [sim]
+  SimulatedAutofocusMethods
+  (getName [_] "Simulated autofocus")
+  (fullFocus [_]
+    (let [z-drive (get-in sim [:model :focus])]
+      (wait-for! sim z-drive)
+      (advance-to! sim (occupy! sim "Autofocus"
+                                (get-in sim [:model :autofocus-ms])))
+      (double (first (get @(:positions sim) z-drive [0.0]))))))
+
+;; reporting
+
+(defn sequencing-summary
+  "Count the events that are hardware-sequenced (bursts) and those that are
+   not (snaps), listing the first bursts."
+  [acq-seq]
+  (reduce
+    (fn [summary event]
+      (if (= :burst (:task event))
+        (-> summary
+            (update-in [:bursts] inc)
+            (update-in [:burst-images] + (:burst-length event))
+            (update-in [:sequenced-properties] into
+                       (keys (get-in event [:trigger-sequence :properties])))
+            (update-in [:sequenced-z-stacks] +
+                       (if (get-in event [:trigger-sequence :slices]) 1 0))
+            (update-in [:first-bursts]
+                       #(if (< (count %) 20)
+                          (conj % (select-keys event [:position-index
+                                                      :frame-index
+                                                      :burst-length]))
+                          %)))
+        (update-in summary [:snaps] inc)))
+    {:bursts 0 :burst-images 0 :snaps 0 :sequenced-properties #{}
+     :sequenced-z-stacks 0 :first-bursts []}
+    acq-seq))
+
+(defn device-report [sim duration]
+  (into (sorted-map)
+        (for [device (distinct (concat (keys (get-in sim [:model :devices]))
+                                       (keys @(:devices sim))))
+              :let [{:keys [busy-ms waited-ms]
+                     :or {busy-ms 0.0 waited-ms 0.0}}
+                      (get @(:devices sim) device)]]
+          [device {:busy-ms busy-ms
+                   :idle-ms (max 0.0 (- duration busy-ms))
+                   :waited-for-ms waited-ms}])))
+
+;; running
+
+(defmacro with-simulated-core
+  "Run body with the engine talking to the simulated core of sim, and on
+   sim's clock. Redefines engine functions globally, so must not be used
+   while an acquisition is running."
+  [sim & body]
+  `(let [sim# ~sim]
+     (with-redefs [mm/mmc (SimulatedCore. sim#)
+                   mm/gui nil
+                   mm/log (fn [& _#])
+                   mm/config-struct identity
+                   engine/jvm-time-ms #(long (now sim#))
+                   engine/precise-time-ms #(now sim#)
+                   engine/busy-wait-until
+                     (fn [t#]
+                       (swap! (:interval-wait-ms sim#) +
+                              (max 0.0 (- t# (now sim#))))
+                       (advance-to! sim# t#))
+                   engine/interruptible-sleep
+                     (fn [ms#]
+                       (swap! (:interval-wait-ms sim#) + ms#)
+                       (advance-to! sim# (+ (now sim#) ms#))
+                       true)]
+       ~@body)))
+
+(defn simulate
+  "Simulate an acquisition and report its projected duration, the busy,
+   idle and waited-for time of each device, the time spent waiting for
+   time points, and which events are hardware-sequenced (as configured,
+   and if all devices supported sequencing). settings is a
+   SequenceSettings, or an engine settings map as made by
+   convert-settings. The engine's global settings (device ordering,
+   position routing, pipelined moves) apply. Must not be run while an
+   acquisition is running."
+  ([settings position-list]
+    (simulate settings position-list default-timing-model))
+  ([settings position-list timing-model]
+    (let [sim (make-sim timing-model)
+          images (atom 0)
+          out-queue (proxy [LinkedBlockingQueue] []
+                      (offer
+                        ([image] (swap! images inc) true)
+                        ([image timeout unit] (swap! images inc) true)))
+          saved [@engine/pending-devices
+                 @engine/active-property-sequences
+                 @engine/active-slice-sequence]]
+      (try
+        (with-simulated-core sim
+          (reset! engine/pending-devices #{})
+          (reset! engine/active-property-sequences nil)
+          (reset! engine/active-slice-sequence nil)
+          (let [settings (if (map? settings)
+                           settings
+                           (engine/convert-settings settings position-list))
+                wall-start (System/nanoTime)]
+            (binding [engine/state (atom {})]
+              (engine/prepare-state engine/state
+                                    (when (:use-position-list settings)
+                                      position-list)
+                                    (SimulatedAutofocus. sim))
+              (engine/execute (engine/make-acquisition-fns settings out-queue []))
+              (engine/finish-early-move)
+              (engine/wait-for-pending-devices)
+              (let [duration (now sim)]
+                {:duration-ms duration
+                 :images @images
+                 :interval-wait-ms @(:interval-wait-ms sim)
+                 :schedule @engine/schedule-statistics
+                 :devices (device-report sim duration)
+                 :sequencing
+                   {:as-configured
+                      (sequencing-summary
+                        (seqgen/generate-acq-sequence settings []))
+                    :if-all-sequenceable
+                      (with-simulated-core
+                        (make-sim (assoc timing-model :all-sequenceable? true))
+                        (seqgen/snapshot-capabilities settings)
+                        (sequencing-summary
+                          (seqgen/generate-acq-sequence settings [])))}
+                 :simulation-ms (/ (- (System/nanoTime) wall-start) 1e6)}))))
+        (finally
+          ; Don't leave simulated capabilities behind
+          (mm/invalidate-capabilities)
+          (let [[pending property-sequences slice-sequence] saved]
+            (reset! engine/pending-devices pending)
+            (reset! engine/active-property-sequences property-sequences)
+            (reset! engine/active-slice-sequence slice-sequence)))))))
+
+(defn print-report [report]
+  (let [{:keys [duration-ms images interval-wait-ms schedule devices
+                sequencing]} report]
+    (println (format "Projected duration: %.1f s for %d images"
+                     (/ duration-ms 1000.0) images))
+    (println (format "Waiting for time points: %.1f s"
+                     (/ interval-wait-ms 1000.0)))
+    (println (format "Time points late: %d of %d (mean %.1f ms, max %.1f ms)"
+                     (:late-time-points schedule) (:time-points schedule)
+                     (:mean-slip-ms schedule) (:max-slip-ms schedule)))
+    (println "Device                    busy (s)   idle (s)   waited for (s)")
+    (doseq [[device {:keys [busy-ms idle-ms waited-for-ms]}] devices]
+      (println (format "%-24s %9.1f  %9.1f  %15.1f" device
+                       (/ busy-ms 1000.0) (/ idle-ms 1000.0)
+                       (/ waited-for-ms 1000.0))))
+    (doseq [[k summary] sequencing]
+      (println (format "%s: %d bursts (%d images), %d snaps; sequenced: %s"
+                       (name k) (:bursts summary) (:burst-images summary)
+                       (:snaps summary)
+                       (pr-str (:sequenced-properties summary)))))))
@@ -117,16 +117,18 @@
     formatted))
 
 (defn log
-  "Log string or form x to the Core log output (debug only)."
+  "Log string or form x to the Core log output (debug only). Forms are
+   only formatted when debug logging is enabled."
   [& x]
-  (let [converted (for [item x]
-                    (if (string? item)
-                      item
-                      (form-to-log-string item)))]
-    (->> converted
-         (join-string " ")
-         cleanup-multiline
-         send-to-debug-log)))
+  (when (.debugLogEnabled mmc)
+    (let [converted (for [item x]
+                      (if (string? item)
+                        item
+                        (form-to-log-string item)))]
+      (->> converted
+           (join-string " ")
+           cleanup-multiline
+           send-to-debug-log))))
 
 (defmacro log-cmd
   "Log the enclosed expr to the Core log output (debug only)."
@@ -459,13 +461,52 @@
   (for [dev (.getLoadedDevices mmc) prop (.getDevicePropertyNames mmc dev)]
     [dev prop]))
 
+;; hardware capabilities
+
+; Hardware sequencing capabilities, so that they are not queried from the
+; core over and over. Maps [:property device property], [:stage device]
+; and [:exposure camera] to the maximum sequence length (0 if not
+; sequenceable); the sequence generator also caches [:focus-device] here.
+; Filled on first use (and by the sequence generator at the start of each
+; acquisition); emptied when the system configuration changes.
+(def capabilities (atom {}))
+
+(defn invalidate-capabilities []
+  (reset! capabilities {}))
+
+(defn cached-capabilities-count []
+  (count @capabilities))
+
+(defn cached-capability [k query]
+  (let [v (get @capabilities k ::none)]
+    (if (= ::none v)
+      (let [v (query)]
+        (swap! capabilities assoc k v)
+        v)
+      v)))
+
+(defn property-sequence-max-length [dev prop]
+  (cached-capability [:property dev prop]
+                     #(if (.isPropertySequenceable mmc dev prop)
+                        (.getPropertySequenceMaxLength mmc dev prop)
+                        0)))
+
+(defn stage-sequence-max-length [stage]
+  (cached-capability [:stage stage]
+                     #(if (.isStageSequenceable mmc stage)
+                        (.getStageSequenceMaxLength mmc stage)
+                        0)))
+
+(defn exposure-sequence-max-length [camera]
+  (cached-capability [:exposure camera]
+                     #(if (.isExposureSequenceable mmc camera)
+                        (.getExposureSequenceMaxLength mmc camera)
+                        0)))
+
 (defn property-sequence-max-lengths []
   (into {}
         (for [[dev prop :as property] (all-properties)]
-          [property
-           (if (.isPropertySequenceable mmc dev prop)
-             (.getPropertySequenceMaxLength mmc dev prop)
-             0)])))
+          [property (property-sequence-max-length dev prop)])))
 
 (defn all-cameras []
   (seq (.getLoadedDevicesOfType mmc (eval 'mmcorej.DeviceType/CameraDevice))))
@@ -473,10 +514,7 @@
 (defn exposure-sequence-max-lengths []
   (into {}
         (for [camera (all-cameras)]
-          [camera
-           (if (.isExposureSequenceable mmc camera)
-             (.getExposureSequenceMaxLength mmc camera)
-             0)])))
+          [camera (exposure-sequence-max-length camera)])))
 
 (defn all-z-stages []
   (seq (.getLoadedDevicesOfType mmc (eval 'mmcorej.DeviceType/StageDevice))))
@@ -484,10 +522,7 @@
 (defn stage-sequence-max-lengths []
   (into {}
         (for [stage (all-z-stages)]
-          [stage
-           (if (.isStageSequenceable mmc stage)
-             (.getStageSequenceMaxLength mmc stage)
-             0)])))
+          [stage (stage-sequence-max-length stage)])))
 
 (defn sequence-max-lengths []
   {:camera-exposures (exposure-sequence-max-lengths)
@@ -15,14 +15,44 @@
 ;               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 
 (ns org.micromanager.sequence-generator
-  (:use [org.micromanager.mm :only [select-values-match? core mmc]]))
+  (:use [org.micromanager.mm :only
+         [cached-capabilities-count cached-capability
+          invalidate-capabilities mmc property-sequence-max-length
+          select-values-match? stage-sequence-max-length]]))
 
 (def MAX-Z-TRIGGER-DIST 5.0)
 
+; Events are generated lazily, so that memory use does not grow with the
+; length of the acquisition. Each stage looks ahead a bounded number of
+; events: one for the pairwise stages (shutter, autofocus, new position,
+; wait time, next frame index), and up to MAX-BURST-LENGTH + 1 when merging
+; events into bursts. Longer bursts are split.
+(def MAX-BURST-LENGTH 10000)
+
 (defstruct acq-settings :frames :positions :channels :slices :slices-first
   :time-first :keep-shutter-open-slices :keep-shutter-open-channels
   :use-autofocus :autofocus-skip :relative-slices :exposure :interval-ms :custom-intervals-ms)
 
+;; hardware capabilities
+
+; The capabilities are cached in org.micromanager.mm; the focus device is
+; cached along with them.
+(defn focus-device []
+  (cached-capability [:focus-device] #(.getFocusDevice mmc)))
+
+(defn snapshot-capabilities
+  "Take a fresh snapshot of the capabilities used by an acquisition with
+   the given settings."
+  [settings]
+  (invalidate-capabilities)
+  (let [z-drive (focus-device)]
+    (when-not (empty? z-drive)
+      (stage-sequence-max-length z-drive)))
+  (doseq [channel (:channels settings)
+          [[d p] _] (:properties channel)]
+    (property-sequence-max-length d p))
+  (cached-capabilities-count))
+
 (defn all-equal?
   ([coll]
     (or (empty? coll)
@@ -65,8 +95,7 @@
     (not (some false?
            (for [[[d p] s] property-sequences]
              (or (all-equal? s)
-                 (and (core isPropertySequenceable d p)
-                      (<= (count s) (core getPropertySequenceMaxLength d p)))))))
+                 (<= (count s) (property-sequence-max-length d p))))))
     (all-equal? (map :exposure channels))))
 
 (defn select-triggerable-sequences
@@ -74,7 +103,7 @@
   [property-sequences]
   (into (sorted-map)
     (filter #(let [[[d p] vs] %]
-               (and (core isPropertySequenceable d p)
+               (and (pos? (property-sequence-max-length d p))
                     (not (all-equal? vs))))
             property-sequences)))
 
@@ -92,20 +121,26 @@
     (concat a b)))
         
 (defn nest-loop
-  "Create a loop for a given dimension, as generated by make-dimensions."
-  [events dim-vals dim dim-index-kw]
+  "Create a loop for a given dimension, as generated by make-dimensions,
+   around the events returned by make-events. The inner events are
+   regenerated for each value rather than retained.
+   Positions are indices into the position list, possibly reordered to
+   reduce stage travel; they are used as-is for :position-index."
+  [make-events dim-vals dim dim-index-kw]
   (if (and dim-vals (pos? (count dim-vals)))
-    (for [i (range (count dim-vals)) event events]
+    (for [i (range (count dim-vals)) event (make-events)]
       (assoc event
-        dim-index-kw i
+        dim-index-kw (if (= dim-index-kw :position-index) (get dim-vals i) i)
         dim (if (= dim-index-kw :frame-index) i (get dim-vals i))))
-    (map #(assoc % dim-index-kw 0) events)))
+    (map #(assoc % dim-index-kw 0) (make-events))))
 
 (defn create-loops
   "Generate loops of events from a set of dimensions parameters as
    generated by make-dimensinos."
   [dimensions]
-  (reduce #(apply (partial nest-loop %1) %2) [{}] dimensions))
+  ((reduce (fn [make-events dimension]
+             #(apply nest-loop make-events dimension))
+           (constantly [{}]) dimensions)))
 
 (defn make-main-loops
   "Make the sequence of multi-d acq. events using the acquisition settings."
@@ -211,25 +246,37 @@
                                    interval)))))
 
 (defn stage-sequenceable? []
-  (let [z-drive (.getFocusDevice mmc)]
+  (let [z-drive (focus-device)]
     (when-not (empty? z-drive)
-      (.isStageSequenceable mmc z-drive))))
+      (pos? (stage-sequence-max-length z-drive)))))
 
 (defn sequence-fits-stage? [z-drive n-slices]
-  (<= n-slices (.getStageSequenceMaxLength mmc z-drive)))
+  (<= n-slices (stage-sequence-max-length z-drive)))
+
+(defn varying-properties
+  "Returns the channel properties ([d p]) whose values differ between two
+   events."
+  [e1 e2]
+  (let [props1 (get-in e1 [:channel :properties])
+        props2 (get-in e2 [:channel :properties])]
+    (filter #(not= (get props1 %) (get props2 %))
+            (distinct (concat (keys props1) (keys props2))))))
 
 (defn event-triggerable
-  "Returns true if an event can be added to a burst."
-  [burst event]
+  "Returns true if an event can be added to a burst. varying is the set of
+   channel properties that vary within the burst with the event added (see
+   varying-properties)."
+  [burst varying event]
   (let [n (count burst)
         e1 (peek burst)
-        e2 event
-        channels (map :channel (conj burst event))
-        props (map :properties channels)]
+        e2 event]
     (and
-      (channels-sequenceable (make-property-sequences props) channels)
+      (every? (fn [[d p]] (<= (inc n) (property-sequence-max-length d p)))
+              varying)
+      (= (get-in (first burst) [:channel :exposure])
+         (get-in e2 [:channel :exposure]))
       (or (= (e1 :slice) (e2 :slice))
-          (when-let [z-drive (. mmc getFocusDevice)]
+          (when-let [z-drive (focus-device)]
             (and
               (stage-sequenceable?)
               (sequence-fits-stage? z-drive (inc n))
@@ -266,14 +313,19 @@
    couldn't be included in the burst." 
   [events]
   (loop [remaining-events (next events)
-         burst [(first events)]]
-    (let [e1 (last burst)
-          e2 (first remaining-events)]
+         burst [(first events)]
+         varying #{}]
+    (let [e1 (peek burst)
+          e2 (first remaining-events)
+          varying (into varying (varying-properties (first burst) e2))]
       (if (and e1
+               e2
+               (< (count burst) MAX-BURST-LENGTH)
                (burst-valid e1 e2)
-               (event-triggerable burst e2))
+               (event-triggerable burst varying e2))
         (recur (next remaining-events)
-               (conj burst e2))
+               (conj burst e2)
+               varying)
         [burst remaining-events]))))
       
 (defn make-bursts
@@ -382,9 +434,13 @@
              :slice (get slices s)
              :frame-index f
              :metadata (make-channel-metadata (get channels c))}))
+        ; Long bursts are only split at whole frames: the hardware restarts
+        ; the channel property sequence at each burst
+        frame-burst-length (* numChannels
+                              (max 1 (quot MAX-BURST-LENGTH numChannels)))
         partitioned-events (if (< 1 numSlices)
                              (partition-by :frame-index raw-events)
-                             (lazy-seq (list raw-events)))]
+                             (partition-all frame-burst-length raw-events))]
     (map (fn [events]
            (assoc (first events)
                   :task :burst
@@ -400,12 +456,10 @@
                                      relative-slices]
   (process-new-position
     (flatten
-      (for [pos-index (range (count positions))]
-        (map #(assoc % :position-index pos-index
-                     :position (nth positions pos-index))
-             (generate-simple-burst-sequence
-               num-frames use-autofocus channels slices
-               default-exposure triggers pos-index relative-slices))))))
+      (for [position positions]
+        (generate-simple-burst-sequence
+          num-frames use-autofocus channels slices
+          default-exposure triggers position relative-slices)))))
 
 (defn generate-acq-sequence [settings runnables]
   (let [{:keys [numFrames time-first positions slices channels
@@ -420,7 +474,7 @@
         have-multiple-channels (< 1 (count channels))
         channel-properties-sequenceable (channels-sequenceable property-sequences channels)
         slices-sequenceable (and (stage-sequenceable?)
-                                 (sequence-fits-stage? (.getFocusDevice mmc) n-slices))
+                                 (sequence-fits-stage? (focus-device) n-slices))
         no-channel-skips-frames (all-equal? 0 (map :skip-frames channels))
         all-channels-do-z-stack (all-equal? true (map :use-z-stack channels))
         channel-total-exposure (if (< 0 (count channels))
@@ -0,0 +1,109 @@
+(ns org.micromanager.test.generation
+  "Check that acquisition events are generated lazily, so that very long
+   acquisitions start immediately and run in bounded memory."
+  (:require [org.micromanager.mm :as mm]
+            [org.micromanager.sequence-generator :as seqgen]))
+
+(defn make-channel [name label]
+  {:name name
+   :exposure 10.0
+   :properties {["Wheel" "Label"] label}
+   :use-z-stack true
+   :skip-frames 0
+   :use-channel true})
+
+;; 10^6 frames x 10 positions x 2 channels x 5 slices = 10^8 events
+(def long-settings
+  {:numFrames 1000000
+   :frames (range 1000000)
+   :positions (vec (range 10))
+   :channels [(make-channel "DAPI" "1") (make-channel "FITC" "2")]
+   :slices [0.0 1.0 2.0 3.0 4.0]
+   :slices-first true
+   :time-first false
+   :keep-shutter-open-slices false
+   :keep-shutter-open-channels false
+   :use-autofocus false
+   :autofocus-skip 0
+   :relative-slices true
+   :default-exposure 10.0
+   :interval-ms 1000.0
+   :custom-intervals-ms []})
+
+(defn with-fake-capabilities*
+  "Call f with hardware capabilities that need no Core (no focus drive,
+   nothing sequenceable)."
+  [f]
+  (reset! mm/capabilities {[:focus-device] ""
+                           [:property "Wheel" "Label"] 0})
+  (try (f)
+    (finally (mm/invalidate-capabilities))))
+
+(defn check-starts-instantly
+  "Generate the first n events of a 10^8-event acquisition, checking that
+   this takes well under a second. Returns the time taken in ms."
+  ([] (check-starts-instantly 1000))
+  ([n]
+    (with-fake-capabilities*
+      #(let [start (System/nanoTime)
+             events (take n (seqgen/generate-acq-sequence long-settings []))
+             first-events (doall events)
+             elapsed-ms (/ (- (System/nanoTime) start) 1e6)]
+         (assert (= n (count first-events)))
+         (assert (= (range 5) (map :slice-index (take 5 first-events)))
+                 "unexpected event order")
+         (assert (< elapsed-ms 1000)
+                 (str "generating " n " events took " elapsed-ms " ms"))
+         elapsed-ms))))
+
+(defn check-bounded-memory
+  "Walk the first n events of the 10^8-event acquisition without holding
+   on to them, and return the change in used heap (MB) after GC. Run with
+   a small heap (e.g. -Xmx256m): if events were retained, this would run
+   out of memory."
+  ([] (check-bounded-memory 5000000))
+  ([n]
+    (with-fake-capabilities*
+      #(let [runtime (Runtime/getRuntime)
+             used (fn [] (System/gc)
+                    (/ (- (.totalMemory runtime) (.freeMemory runtime))
+                       1048576.0))
+             before (used)]
+         (dorun (take n (seqgen/generate-acq-sequence long-settings [])))
+         (- (used) before)))))
+
+;; 4000 frames x 3 channels = 12000 events, more than MAX-BURST-LENGTH
+(def burst-settings
+  (assoc long-settings
+         :numFrames 4000
+         :frames (range 4000)
+         :positions []
+         :channels [(make-channel "DAPI" "1") (make-channel "FITC" "2")
+                    (make-channel "Cy5" "3")]
+         :slices []
+         :interval-ms 0.0))
+
+(defn check-burst-channel-order
+  "Generate a frame x channel burst acquisition that is split into several
+   bursts, and check that each burst starts on the channel its property
+   sequence starts with (the hardware restarts the sequence at each burst).
+   Returns the number of bursts."
+  []
+  (reset! mm/capabilities {[:focus-device] ""
+                           [:property "Wheel" "Label"] 10000})
+  (try
+    (let [bursts (seqgen/generate-acq-sequence burst-settings [])]
+      (assert (< 1 (count bursts)) "expected the acquisition to be split")
+      (assert (every? #(= :burst (:task %)) bursts))
+      (assert (= 12000 (reduce + (map :burst-length bursts))))
+      (doseq [burst bursts]
+        (let [sequence (get-in burst [:trigger-sequence :properties
+                                      ["Wheel" "Label"]])
+              first-event (first (:burst-data burst))]
+          (assert (= (first sequence)
+                     (get-in first-event [:channel :properties
+                                          ["Wheel" "Label"]]))
+                  (str "burst at frame " (:frame-index first-event)
+                       " starts on channel " (:channel-index first-event)))))
+      (count bursts))
+    (finally (mm/invalidate-capabilities))))
@@ -0,0 +1,323 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Binary log of the steps taken by the acquisition engine.
+ *
+ * Recording a step costs a hash lookup and copying a few numbers into a
+ * buffer; nothing is formatted, and the file is written by a background
+ * thread. Use {@link #render} (or run this class with the log file as
+ * argument) to turn a log into text.
+ *
+ * The file starts with a magic string, the wall clock time (ms since the
+ * epoch) and the {@code System.nanoTime()} at which the log was created.
+ * Then follow records, each starting with a type byte:
+ * <ul>
+ * <li>{@code MESSAGE}: message id (int), message (UTF-8, preceded by its
+ * length in bytes as an int). Each message is defined before it is used.
+ * <li>{@code STEP}: time ({@code System.nanoTime()}, long), thread id
+ * (long), message id, frame, position, channel and slice index (ints; -1
+ * when not applicable).
+ * </ul>
+ *
+ * If steps are recorded faster than they can be written, the excess is
+ * dropped (and counted) rather than blocking the caller.
+ *
+ * This class is thread safe.
+ */
+public final class AcquisitionEventLog {
+   private static final byte[] MAGIC =
+         "MMACQLOG2".getBytes(Charset.forName("US-ASCII"));
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final byte MESSAGE = 1;
+   private static final byte STEP = 2;
+   private static final int STEP_SIZE = 1 + 8 + 8 + 5 * 4;
+   private static final int BUFFER_SIZE = 256 * 1024;
+   private static final long WRITE_INTERVAL_MS = 200;
+
+   private final FileChannel channel_;
+   private final Map<String, Integer> messageIds_ =
+         new ConcurrentHashMap<String, Integer>();
+   private final Thread writer_;
+
+   // Guarded by this
+   private ByteBuffer active_ = ByteBuffer.allocate(BUFFER_SIZE);
+   private ByteBuffer spare_ = ByteBuffer.allocate(BUFFER_SIZE);
+   private final List<byte[]> pendingMessages_ = new ArrayList<byte[]>();
+   private long droppedSteps_ = 0;
+   private boolean closed_ = false;
+
+   /**
+    * Create a log, writing to the given file (which is overwritten).
+    *
+    * @param file the log file
+    * @return the new log
+    * @throws IOException if the file cannot be created
+    */
+   public static AcquisitionEventLog create(File file) throws IOException {
+      AcquisitionEventLog log = new AcquisitionEventLog(file);
+      log.writer_.start();
+      return log;
+   }
+
+   private AcquisitionEventLog(File file) throws IOException {
+      channel_ = new FileOutputStream(file).getChannel();
+      ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 16);
+      header.put(MAGIC);
+      header.putLong(System.currentTimeMillis());
+      header.putLong(System.nanoTime());
+      header.flip();
+      writeFully(header);
+      writer_ = ThreadFactoryFactory.createThreadFactory(
+            "AcquisitionEventLog").newThread(new Runnable() {
+               @Override
+               public void run() {
+                  runWriter();
+               }
+            });
+   }
+
+   /**
+    * Get the id of a message, defining it if it is new. Callers may cache
+    * the id.
+    *
+    * @param message the message, e.g. "BEGIN acquire"
+    * @return the id to pass to {@link #record}
+    */
+   public int getMessageId(String message) {
+      Integer id = messageIds_.get(message);
+      if (id != null) {
+         return id;
+      }
+      synchronized (this) {
+         id = messageIds_.get(message);
+         if (id == null) {
+            id = messageIds_.size();
+            byte[] text = message.getBytes(UTF8);
+            ByteBuffer definition = ByteBuffer.allocate(1 + 4 + 4 + text.length);
+            definition.put(MESSAGE).putInt(id).putInt(text.length).put(text);
+            pendingMessages_.add(definition.array());
+            messageIds_.put(message, id);
+         }
+         return id;
+      }
+   }
+
+   /**
+    * Record a step. Does not block on I/O.
+    *
+    * @param messageId id of the message, from {@link #getMessageId}
+    * @param frame frame index, or -1
+    * @param position position index, or -1
+    * @param channel channel index, or -1
+    * @param slice slice index, or -1
+    */
+   public void record(int messageId, int frame, int position, int channel,
+         int slice)
+   {
+      long time = System.nanoTime();
+      long threadId = Thread.currentThread().getId();
+      synchronized (this) {
+         if (closed_ || active_.remaining() < STEP_SIZE) {
+            ++droppedSteps_;
+            return;
+         }
+         active_.put(STEP).putLong(time).putLong(threadId).
+               putInt(messageId).putInt(frame).putInt(position).
+               putInt(channel).putInt(slice);
+         if (active_.position() > BUFFER_SIZE / 2) {
+            notifyAll(); // write early
+         }
+      }
+   }
+
+   /**
+    * @return the number of steps dropped because the writer could not keep
+    * up (or because the log was closed)
+    */
+   public synchronized long getDroppedStepCount() {
+      return droppedSteps_;
+   }
+
+   /**
+    * Write out the remaining steps and close the file.
+    *
+    * @throws InterruptedException if interrupted while waiting for the
+    * writer
+    */
+   public void close() throws InterruptedException {
+      synchronized (this) {
+         if (closed_) {
+            return;
+         }
+         closed_ = true;
+         notifyAll();
+      }
+      writer_.join();
+   }
+
+   private void runWriter() {
+      try {
+         boolean done = false;
+         while (!done) {
+            List<byte[]> messages;
+            ByteBuffer steps;
+            synchronized (this) {
+               if (!closed_) {
+                  wait(WRITE_INTERVAL_MS);
+               }
+               done = closed_;
+               messages = new ArrayList<byte[]>(pendingMessages_);
+               pendingMessages_.clear();
+               steps = active_;
+               active_ = spare_;
+               spare_ = steps;
+            }
+            // Messages are defined before any step that uses them was
+            // recorded, so writing them first keeps them ahead of their use
+            for (byte[] message : messages) {
+               writeFully(ByteBuffer.wrap(message));
+            }
+            steps.flip();
+            writeFully(steps);
+            steps.clear();
+         }
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to write acquisition event log");
+      }
+      finally {
+         try {
+            channel_.close();
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Failed to close acquisition event log");
+         }
+      }
+   }
+
+   private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+         channel_.write(buffer);
+      }
+   }
+
+   /**
+    * Write a log as text, one line per step: the time since the log was
+    * created, the thread id, the message and the indices.
+    *
+    * @param in the log
+    * @param out where to write the text
+    * @throws IOException if the log cannot be read or is not a log
+    */
+   public static void render(InputStream in, Writer out) throws IOException {
+      DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+      PrintWriter writer = new PrintWriter(out);
+      byte[] magic = new byte[MAGIC.length];
+      data.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+         throw new IOException("Not an acquisition event log");
+      }
+      long startMs = data.readLong();
+      long startNs = data.readLong();
+      writer.printf("# Acquisition event log started %tF %<tT.%<tL%n",
+            startMs);
+      Map<Integer, String> messages = new HashMap<Integer, String>();
+      while (true) {
+         int type = data.read();
+         if (type < 0) {
+            break;
+         }
+         try {
+            if (type == MESSAGE) {
+               int id = data.readInt();
+               byte[] text = new byte[data.readInt()];
+               data.readFully(text);
+               messages.put(id, new String(text, UTF8));
+            }
+            else if (type == STEP) {
+               long time = data.readLong();
+               long threadId = data.readLong();
+               int id = data.readInt();
+               int frame = data.readInt();
+               int position = data.readInt();
+               int channel = data.readInt();
+               int slice = data.readInt();
+               String message = messages.get(id);
+               writer.printf("%12.3f ms [%d] %s", (time - startNs) / 1e6,
+                     threadId, message == null ? "(message " + id + ")" :
+                     message);
+               if (frame >= 0 || position >= 0 || channel >= 0 || slice >= 0) {
+                  writer.printf(" (frame %d, position %d, channel %d, " +
+                        "slice %d)", frame, position, channel, slice);
+               }
+               writer.println();
+            }
+            else {
+               throw new IOException("Unknown record type " + type);
+            }
+         }
+         catch (EOFException e) {
+            writer.println("# (truncated)");
+            break;
+         }
+      }
+      writer.flush();
+   }
+
+   /**
+    * Render the log file given as argument to standard output.
+    *
+    * @param args the log file
+    * @throws IOException if the file cannot be read
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length != 1) {
+         System.err.println("Usage: AcquisitionEventLog LOGFILE");
+         System.exit(1);
+      }
+      InputStream in = new FileInputStream(args[0]);
+      try {
+         render(in, new OutputStreamWriter(System.out, UTF8));
+      }
+      finally {
+         in.close();
+      }
+   }
+}
@@ -0,0 +1,409 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predicts the focus position from past autofocus results, so that
+ * autofocus can be skipped where focus is predictable.
+ *
+ * Focus is modeled as a fixed surface plus a drift that is the same
+ * everywhere and linear in time. The drift rate is fitted to the changes
+ * between autofocus results at the same position, so it is not confused
+ * by the shape of the surface. A position that has been autofocused before
+ * is predicted from its last result plus the drift since then; other
+ * positions from a plane fitted across the positions (with the drift
+ * removed). Older results are weighted down exponentially.
+ *
+ * Every autofocus result is also used to check the model: the prediction
+ * that would have been made is compared with the result. A prediction is
+ * only made when there is enough data, the expected error (from the recent
+ * prediction errors, growing with the time since the position's last
+ * result, or from the scatter around the plane) is within the tolerance,
+ * and fewer than {@code checkInterval} predictions have been made since
+ * the last autofocus. Otherwise, {@link #predict} returns NaN, and the
+ * caller should run autofocus and pass the result to {@link #observe}. A
+ * failed check (an error beyond the tolerance) raises the expected error,
+ * so predictions stop until autofocus results agree with the model again.
+ *
+ * This class is not thread safe.
+ */
+public final class FocusModel {
+   private static final int MIN_CHECKS = 3;
+   private static final int MIN_PLANE_POSITIONS = 6;
+   private static final double ERROR_SMOOTHING = 0.2;
+   private static final double MIN_WEIGHT = 1e-3;
+   // Expected errors are kept this far within the tolerance
+   private static final double SAFETY_FACTOR = 2.0;
+
+   private final double toleranceUm_;
+   private final int checkInterval_;
+   private final double memoryMs_;
+
+   private final List<Observation> observations_ =
+         new ArrayList<Observation>();
+   private final Map<Integer, Observation> lastAtPosition_ =
+         new HashMap<Integer, Observation>();
+
+   // Drift: rate (um/ms), and the weighted sum of squared time deviations
+   // within positions, which sets how well the rate is known
+   private double driftRate_ = 0.0;
+   private double driftTimeSpread_ = 0.0;
+   private Plane plane_ = null;
+
+   private int observationCount_ = 0;
+   private int checkCount_ = 0;
+   private int failedCheckCount_ = 0;
+   private double meanSquaredError_ = 0.0;
+   private int predictionCount_ = 0;
+   private int predictionsSinceObservation_ = 0;
+
+   private static final class Observation {
+      final int position;
+      final double x;
+      final double y;
+      final double t;
+      final double z;
+
+      Observation(int position, double x, double y, double t, double z) {
+         this.position = position;
+         this.x = x;
+         this.y = y;
+         this.t = t;
+         this.z = z;
+      }
+   }
+
+   /**
+    * Least squares fit of z = c0 + c1 x + c2 y, in centered and scaled
+    * coordinates.
+    */
+   private static final class Plane {
+      final double[] center = new double[2];
+      final double[] scale = new double[2];
+      final double[] coefficients = new double[3];
+      // Inverse of the normal matrix, for leverage
+      final double[][] inverse = new double[3][3];
+      double residualVariance;
+
+      double[] features(double x, double y) {
+         return new double[] { 1.0,
+            (x - center[0]) / scale[0],
+            (y - center[1]) / scale[1] };
+      }
+
+      double evaluate(double x, double y) {
+         double[] f = features(x, y);
+         double z = 0.0;
+         for (int i = 0; i < 3; ++i) {
+            z += coefficients[i] * f[i];
+         }
+         return z;
+      }
+
+      double leverage(double x, double y) {
+         double[] f = features(x, y);
+         double h = 0.0;
+         for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+               h += f[i] * inverse[i][j] * f[j];
+            }
+         }
+         return Math.max(0.0, h);
+      }
+   }
+
+   /**
+    * @param toleranceUm the largest acceptable focus error
+    * @param checkInterval the most predictions between two autofocus runs
+    * @param memoryMs the time over which the weight of an autofocus result
+    * falls by a factor e
+    * @return a new, empty model
+    */
+   public static FocusModel create(double toleranceUm, int checkInterval,
+         double memoryMs)
+   {
+      Preconditions.checkArgument(toleranceUm > 0.0);
+      Preconditions.checkArgument(checkInterval >= 1);
+      Preconditions.checkArgument(memoryMs > 0.0);
+      return new FocusModel(toleranceUm, checkInterval, memoryMs);
+   }
+
+   private FocusModel(double toleranceUm, int checkInterval, double memoryMs) {
+      toleranceUm_ = toleranceUm;
+      checkInterval_ = checkInterval;
+      memoryMs_ = memoryMs;
+   }
+
+   /**
+    * Predict the focus position, if it can be predicted with confidence.
+    *
+    * @param position position index
+    * @param x stage X (um)
+    * @param y stage Y (um)
+    * @param t time (ms)
+    * @return the predicted focus position, or NaN if autofocus should be
+    * run instead
+    */
+   public double predict(int position, double x, double y, double t) {
+      if (predictionsSinceObservation_ >= checkInterval_ ||
+            SAFETY_FACTOR * getUncertaintyUm(position, x, y, t) > toleranceUm_)
+      {
+         return Double.NaN;
+      }
+      ++predictionCount_;
+      ++predictionsSinceObservation_;
+      return estimate(position, x, y, t);
+   }
+
+   /**
+    * Add an autofocus result, checking it against the model first.
+    *
+    * @param position position index
+    * @param x stage X (um)
+    * @param y stage Y (um)
+    * @param t time (ms)
+    * @param z focus position found by autofocus
+    * @return the difference between the result and the model's estimate,
+    * or NaN if the model could not estimate it
+    */
+   public double observe(int position, double x, double y, double t,
+         double z)
+   {
+      double error = z - estimate(position, x, y, t);
+      if (!Double.isNaN(error)) {
+         if (Math.abs(error) > toleranceUm_) {
+            ++failedCheckCount_;
+         }
+         // Only errors of drift predictions (from a position's own last
+         // result) are averaged; the plane has its own residuals
+         if (lastAtPosition_.containsKey(position)) {
+            meanSquaredError_ = checkCount_ == 0 ? error * error :
+                  (1 - ERROR_SMOOTHING) * meanSquaredError_ +
+                  ERROR_SMOOTHING * error * error;
+            ++checkCount_;
+         }
+      }
+      Observation observation = new Observation(position, x, y, t, z);
+      observations_.add(observation);
+      ++observationCount_;
+      lastAtPosition_.put(position, observation);
+      predictionsSinceObservation_ = 0;
+      refit();
+      return error;
+   }
+
+   /**
+    * @return the expected error of a prediction, or infinity if there are
+    * not enough data
+    */
+   public double getUncertaintyUm(int position, double x, double y,
+         double t)
+   {
+      if (checkCount_ < MIN_CHECKS) {
+         return Double.POSITIVE_INFINITY;
+      }
+      Observation last = lastAtPosition_.get(position);
+      if (last != null) {
+         double dt = t - last.t;
+         if (driftTimeSpread_ <= 0.0) {
+            return dt == 0.0 ? Math.sqrt(meanSquaredError_) :
+                  Double.POSITIVE_INFINITY;
+         }
+         return Math.sqrt(meanSquaredError_ *
+               (1.0 + dt * dt / driftTimeSpread_));
+      }
+      if (plane_ == null) {
+         return Double.POSITIVE_INFINITY;
+      }
+      return Math.sqrt(plane_.residualVariance *
+            (1.0 + plane_.leverage(x, y)) + meanSquaredError_);
+   }
+
+   /**
+    * @return the number of predictions made, i.e. autofocus runs saved
+    */
+   public int getPredictionCount() {
+      return predictionCount_;
+   }
+
+   /**
+    * @return the number of autofocus results observed
+    */
+   public int getObservationCount() {
+      return observationCount_;
+   }
+
+   /**
+    * @return the number of autofocus results that differed from the model
+    * by more than the tolerance
+    */
+   public int getFailedCheckCount() {
+      return failedCheckCount_;
+   }
+
+   private double estimate(int position, double x, double y, double t) {
+      Observation last = lastAtPosition_.get(position);
+      if (last != null) {
+         return last.z + driftRate_ * (t - last.t);
+      }
+      if (plane_ == null) {
+         return Double.NaN;
+      }
+      return plane_.evaluate(x, y) + driftRate_ * t;
+   }
+
+   private void refit() {
+      double newest = observations_.get(observations_.size() - 1).t;
+      // Forget observations that no longer carry weight (the last one at
+      // each position is still kept in lastAtPosition_)
+      for (Iterator<Observation> it = observations_.iterator(); it.hasNext(); ) {
+         if (weight(it.next(), newest) < MIN_WEIGHT) {
+            it.remove();
+         }
+      }
+      fitDrift(newest);
+      fitPlane();
+   }
+
+   // Weighted regression of z on t within positions
+   private void fitDrift(double newest) {
+      Map<Integer, double[]> sums = new HashMap<Integer, double[]>();
+      for (Observation o : observations_) {
+         double w = weight(o, newest);
+         double[] s = sums.get(o.position);
+         if (s == null) {
+            s = new double[3];
+            sums.put(o.position, s);
+         }
+         s[0] += w;
+         s[1] += w * o.t;
+         s[2] += w * o.z;
+      }
+      double stt = 0.0;
+      double stz = 0.0;
+      for (Observation o : observations_) {
+         double w = weight(o, newest);
+         double[] s = sums.get(o.position);
+         double dt = o.t - s[1] / s[0];
+         stt += w * dt * dt;
+         stz += w * dt * (o.z - s[2] / s[0]);
+      }
+      driftTimeSpread_ = stt;
+      driftRate_ = stt > 0.0 ? stz / stt : 0.0;
+   }
+
+   // Plane through the last result at each position, with drift removed
+   private void fitPlane() {
+      int n = lastAtPosition_.size();
+      if (n < MIN_PLANE_POSITIONS) {
+         plane_ = null;
+         return;
+      }
+      Plane plane = new Plane();
+      for (Observation o : lastAtPosition_.values()) {
+         plane.center[0] += o.x / n;
+         plane.center[1] += o.y / n;
+      }
+      double[] variance = new double[2];
+      for (Observation o : lastAtPosition_.values()) {
+         variance[0] += (o.x - plane.center[0]) * (o.x - plane.center[0]) / n;
+         variance[1] += (o.y - plane.center[1]) * (o.y - plane.center[1]) / n;
+      }
+      for (int i = 0; i < 2; ++i) {
+         plane.scale[i] = variance[i] > 0.0 ? Math.sqrt(variance[i]) : 1.0;
+      }
+      double[][] normal = new double[3][3];
+      double[] rhs = new double[3];
+      for (Observation o : lastAtPosition_.values()) {
+         double[] f = plane.features(o.x, o.y);
+         double z = o.z - driftRate_ * o.t;
+         for (int i = 0; i < 3; ++i) {
+            rhs[i] += f[i] * z;
+            for (int j = 0; j < 3; ++j) {
+               normal[i][j] += f[i] * f[j];
+            }
+         }
+      }
+      // Keep the system solvable when an axis does not vary (e.g.
+      // positions along a line)
+      for (int i = 1; i < 3; ++i) {
+         normal[i][i] += 1e-6 * n;
+      }
+      if (!invert(normal, plane.inverse)) {
+         plane_ = null;
+         return;
+      }
+      for (int i = 0; i < 3; ++i) {
+         for (int j = 0; j < 3; ++j) {
+            plane.coefficients[i] += plane.inverse[i][j] * rhs[j];
+         }
+      }
+      double sumSquares = 0.0;
+      for (Observation o : lastAtPosition_.values()) {
+         double r = o.z - driftRate_ * o.t - plane.evaluate(o.x, o.y);
+         sumSquares += r * r;
+      }
+      plane.residualVariance = sumSquares / (n - 3);
+      plane_ = plane;
+   }
+
+   private double weight(Observation o, double newest) {
+      return Math.exp(-(newest - o.t) / memoryMs_);
+   }
+
+   // Gauss-Jordan elimination with partial pivoting
+   private static boolean invert(double[][] matrix, double[][] inverse) {
+      int n = matrix.length;
+      double[][] a = new double[n][2 * n];
+      for (int i = 0; i < n; ++i) {
+         System.arraycopy(matrix[i], 0, a[i], 0, n);
+         a[i][n + i] = 1.0;
+      }
+      for (int col = 0; col < n; ++col) {
+         int pivot = col;
+         for (int row = col + 1; row < n; ++row) {
+            if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) {
+               pivot = row;
+            }
+         }
+         if (Math.abs(a[pivot][col]) < 1e-12) {
+            return false;
+         }
+         double[] tmp = a[col];
+         a[col] = a[pivot];
+         a[pivot] = tmp;
+         double p = a[col][col];
+         for (int j = 0; j < 2 * n; ++j) {
+            a[col][j] /= p;
+         }
+         for (int row = 0; row < n; ++row) {
+            if (row != col && a[row][col] != 0.0) {
+               double factor = a[row][col];
+               for (int j = 0; j < 2 * n; ++j) {
+                  a[row][j] -= factor * a[col][j];
+               }
+            }
+         }
+      }
+      for (int i = 0; i < n; ++i) {
+         System.arraycopy(a[i], n, inverse[i], 0, n);
+      }
+      return true;
+   }
+}
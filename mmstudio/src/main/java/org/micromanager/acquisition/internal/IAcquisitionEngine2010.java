@@ -21,6 +21,7 @@
 
 package org.micromanager.acquisition.internal;
 
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONObject;
@@ -105,6 +106,23 @@ public interface IAcquisitionEngine2010 {
     */
    public long nextWakeTime();
 
+   /*
+    * Returns how late time points have started in the current (or last)
+    * acquisition, relative to their planned times: "TimePoints",
+    * "LateTimePoints", "MeanSlip-ms", "MaxSlip-ms" and "LastSlip-ms".
+    * A steadily growing slip means the requested interval is infeasible.
+    */
+   public Map<String, Number> getScheduleStatistics();
+
+   /*
+    * Returns burst image collection counters for the current (or last)
+    * acquisition. For each camera channel: "<camera>-Images",
+    * "<camera>-ImagesPerSecond", "<camera>-MaxQueuedImages" (images waiting
+    * to be processed) and "<camera>-ProcessingTime-ms"; and
+    * "MaxBufferedImages", the most images left in the circular buffer.
+    */
+   public Map<String, Number> getCollectionStatistics();
+
    /*
     * Attach a Runnable object to the acquisition, such that an extra
     * hardware event can be carried out at a specified point in a
@@ -124,5 +142,12 @@ public interface IAcquisitionEngine2010 {
     */
    public void clearRunnables();
 
+   /*
+    * Discards the cached hardware capabilities (whether properties and
+    * stages can be sequenced, and their maximum sequence lengths), e.g.
+    * because the hardware configuration has changed.
+    */
+   public void invalidateCapabilities();
+
 
 }
@@ -0,0 +1,428 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+
+/**
+ * Orders stage positions so as to minimize the total time spent moving
+ * between them.
+ *
+ * Positions are points with one coordinate per stage axis (e.g. X, Y, Z).
+ * All axes are assumed to move simultaneously, each at its own constant
+ * speed, so the time to travel between two positions is the largest of the
+ * per-axis times. Axes whose coordinate is NaN at either end (e.g. a stage
+ * that is not part of a position) do not count.
+ *
+ * The route is built by nearest neighbour and then improved by 2-opt and
+ * Or-opt moves, searching only among each position's closest neighbours.
+ * This is not guaranteed to be optimal, but typically comes within a few
+ * percent of it, and takes about a second for 10000 positions.
+ *
+ * This class is thread safe.
+ */
+public final class StageRouteOptimizer {
+   private static final int NEIGHBORS = 10;
+   private static final int MAX_SEGMENT_LENGTH = 3;
+   private static final int MAX_PASSES = 50;
+   private static final double EPSILON = 1e-9;
+
+   private final double[] speeds_;
+
+   /**
+    * Create an optimizer.
+    *
+    * @param speedsUmPerMs the speed of each axis, in the units of the
+    * coordinates per millisecond
+    * @return the optimizer
+    */
+   public static StageRouteOptimizer create(double[] speedsUmPerMs) {
+      for (double speed : speedsUmPerMs) {
+         Preconditions.checkArgument(speed > 0.0, "Speeds must be positive");
+      }
+      return new StageRouteOptimizer(speedsUmPerMs.clone());
+   }
+
+   private StageRouteOptimizer(double[] speeds) {
+      speeds_ = speeds;
+   }
+
+   /**
+    * Time to move between two positions.
+    *
+    * @param from coordinates of the first position
+    * @param to coordinates of the second position
+    * @return travel time in milliseconds
+    */
+   public double getTravelTimeMs(double[] from, double[] to) {
+      double time = 0.0;
+      for (int axis = 0; axis < speeds_.length; ++axis) {
+         double t = Math.abs(to[axis] - from[axis]) / speeds_[axis];
+         if (t > time) { // False for NaN
+            time = t;
+         }
+      }
+      return time;
+   }
+
+   /**
+    * Total time to visit positions in the given order.
+    *
+    * @param positions coordinates of each position
+    * @param order indices into {@code positions}
+    * @param start the coordinates to start from, or null to start at the
+    * first position
+    * @param closed whether to return to the first position at the end
+    * @return travel time in milliseconds
+    */
+   public double getTotalTravelTimeMs(double[][] positions, int[] order,
+         double[] start, boolean closed)
+   {
+      if (order.length == 0) {
+         return 0.0;
+      }
+      double total = start == null ? 0.0 :
+            getTravelTimeMs(start, positions[order[0]]);
+      for (int i = 1; i < order.length; ++i) {
+         total += getTravelTimeMs(positions[order[i - 1]], positions[order[i]]);
+      }
+      if (closed) {
+         total += getTravelTimeMs(positions[order[order.length - 1]],
+               positions[order[0]]);
+      }
+      return total;
+   }
+
+   /**
+    * Find a fast order in which to visit the positions.
+    *
+    * @param positions coordinates of each position
+    * @param start the coordinates to start from, or null to start anywhere;
+    * for closed routes, the route is rotated to begin at the position
+    * closest to {@code start}
+    * @param closed whether the route returns to its first position (e.g.
+    * because it is repeated at every time point)
+    * @return indices into {@code positions}, in visiting order
+    */
+   public int[] optimize(double[][] positions, double[] start,
+         boolean closed)
+   {
+      int n = positions.length;
+      if (n < 3) {
+         int[] order = new int[n];
+         for (int i = 0; i < n; ++i) {
+            order[i] = i;
+         }
+         if (n == 2 && start != null && getTravelTimeMs(start, positions[1]) <
+               getTravelTimeMs(start, positions[0]))
+         {
+            order[0] = 1;
+            order[1] = 0;
+         }
+         return order;
+      }
+
+      // Open routes get an extra first node: the start position, or a
+      // virtual node at zero distance from everything. The first node never
+      // moves, and the edge returning to it is free for open routes.
+      Route route = new Route(positions, closed ? null : start, !closed);
+      route.buildNearestNeighbor();
+      route.computeNeighbors();
+      for (int pass = 0; pass < MAX_PASSES; ++pass) {
+         boolean improved = route.twoOpt();
+         improved |= route.orOpt();
+         if (!improved) {
+            break;
+         }
+      }
+
+      int offset = closed ? 0 : 1;
+      int[] order = new int[n];
+      for (int i = 0; i < n; ++i) {
+         order[i] = route.tour_[i + offset] - offset;
+      }
+      if (closed && start != null) {
+         int best = 0;
+         for (int i = 1; i < n; ++i) {
+            if (getTravelTimeMs(start, positions[order[i]]) <
+                  getTravelTimeMs(start, positions[order[best]]))
+            {
+               best = i;
+            }
+         }
+         int[] rotated = new int[n];
+         for (int i = 0; i < n; ++i) {
+            rotated[i] = order[(best + i) % n];
+         }
+         order = rotated;
+      }
+      return order;
+   }
+
+   private final class Route {
+      private final double[][] coords_;
+      private final int size_;
+      // Index of the node with zero distance to all others, or -1
+      private final int virtualNode_;
+      private final boolean open_;
+
+      private final int[] tour_;
+      private final int[] indexInTour_;
+      private int[][] neighbors_;
+      private final int[] scratch_ = new int[MAX_SEGMENT_LENGTH];
+
+      Route(double[][] positions, double[] start, boolean open) {
+         int n = positions.length;
+         open_ = open;
+         size_ = open ? n + 1 : n;
+         coords_ = Arrays.copyOf(positions, size_);
+         if (open) {
+            // Nodes are shifted so that the start is node 0
+            System.arraycopy(positions, 0, coords_, 1, n);
+            coords_[0] = start;
+            virtualNode_ = start == null ? 0 : -1;
+         }
+         else {
+            virtualNode_ = -1;
+         }
+         tour_ = new int[size_];
+         indexInTour_ = new int[size_];
+      }
+
+      private double distance(int a, int b) {
+         if (a == virtualNode_ || b == virtualNode_) {
+            return 0.0;
+         }
+         return getTravelTimeMs(coords_[a], coords_[b]);
+      }
+
+      // Cost of the edge from a to b, where b follows a in the tour
+      private double link(int a, int b) {
+         if (open_ && b == tour_[0]) {
+            return 0.0;
+         }
+         return distance(a, b);
+      }
+
+      private int at(int index) {
+         return tour_[index == size_ ? 0 : index];
+      }
+
+      void buildNearestNeighbor() {
+         boolean[] visited = new boolean[size_];
+         tour_[0] = 0;
+         visited[0] = true;
+         for (int i = 1; i < size_; ++i) {
+            int last = tour_[i - 1];
+            int best = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (int candidate = 0; candidate < size_; ++candidate) {
+               if (visited[candidate]) {
+                  continue;
+               }
+               double d = distance(last, candidate);
+               if (best < 0 || d < bestDistance) {
+                  best = candidate;
+                  bestDistance = d;
+               }
+            }
+            tour_[i] = best;
+            visited[best] = true;
+         }
+         for (int i = 0; i < size_; ++i) {
+            indexInTour_[tour_[i]] = i;
+         }
+      }
+
+      void computeNeighbors() {
+         int k = Math.min(NEIGHBORS, size_ - 1);
+         neighbors_ = new int[size_][];
+         double[] nearest = new double[k];
+         for (int a = 0; a < size_; ++a) {
+            if (a == virtualNode_) {
+               neighbors_[a] = new int[0];
+               continue;
+            }
+            int[] list = new int[k];
+            int count = 0;
+            for (int b = 0; b < size_; ++b) {
+               if (b == a || b == virtualNode_) {
+                  continue;
+               }
+               double d = distance(a, b);
+               if (count == k && !(d < nearest[k - 1])) {
+                  continue;
+               }
+               // Insertion into the sorted list
+               int i = count < k ? count++ : k - 1;
+               while (i > 0 && nearest[i - 1] > d) {
+                  nearest[i] = nearest[i - 1];
+                  list[i] = list[i - 1];
+                  --i;
+               }
+               nearest[i] = d;
+               list[i] = b;
+            }
+            neighbors_[a] = Arrays.copyOf(list, count);
+         }
+      }
+
+      // Reverse tour_[from..to]
+      private void reverse(int from, int to) {
+         while (from < to) {
+            int tmp = tour_[from];
+            tour_[from] = tour_[to];
+            tour_[to] = tmp;
+            indexInTour_[tour_[from]] = from;
+            indexInTour_[tour_[to]] = to;
+            ++from;
+            --to;
+         }
+      }
+
+      // Try replacing the edges leaving tour_[p] and tour_[q] (p < q) by
+      // reversing tour_[p+1..q]
+      private boolean tryTwoOptMove(int p, int q) {
+         if (p < 0 || p >= q) {
+            return false;
+         }
+         int a = tour_[p];
+         int b = tour_[p + 1];
+         int c = tour_[q];
+         int d = at(q + 1);
+         double delta = link(a, c) + link(b, d) - link(a, b) - link(c, d);
+         if (delta < -EPSILON) {
+            reverse(p + 1, q);
+            return true;
+         }
+         return false;
+      }
+
+      boolean twoOpt() {
+         boolean improved = false;
+         for (int a = 0; a < size_; ++a) {
+            for (int c : neighbors_[a]) {
+               int i = indexInTour_[a];
+               int j = indexInTour_[c];
+               double d = distance(a, c);
+               boolean viaSuccessor = d < link(a, at(i + 1));
+               boolean viaPredecessor =
+                     d < link(tour_[(i + size_ - 1) % size_], a);
+               if (!viaSuccessor && !viaPredecessor) {
+                  break; // Neighbors are sorted, so the rest won't help
+               }
+               // New edge joining a to c, replacing the edges leaving them
+               if (viaSuccessor && tryTwoOptMove(Math.min(i, j), Math.max(i, j))) {
+                  improved = true;
+                  continue;
+               }
+               // Or replacing the edges entering them
+               int ei = (i + size_ - 1) % size_;
+               int ej = (j + size_ - 1) % size_;
+               if (viaPredecessor &&
+                     tryTwoOptMove(Math.min(ei, ej), Math.max(ei, ej))) {
+                  improved = true;
+               }
+            }
+         }
+         return improved;
+      }
+
+      boolean orOpt() {
+         boolean improved = false;
+         for (int length = 1; length <= MAX_SEGMENT_LENGTH; ++length) {
+            for (int s = 1; s + length <= size_; ++s) {
+               if (tryMoveSegment(s, length)) {
+                  improved = true;
+               }
+            }
+         }
+         return improved;
+      }
+
+      // Try moving tour_[s..s+length-1] elsewhere, possibly reversed
+      private boolean tryMoveSegment(int s, int length) {
+         int e = s + length - 1;
+         int first = tour_[s];
+         int last = tour_[e];
+         int prev = tour_[s - 1];
+         int next = at(e + 1);
+         double removalGain = link(prev, first) + link(last, next) -
+               link(prev, next);
+         if (removalGain <= EPSILON) {
+            return false;
+         }
+         int bestK = -1;
+         boolean bestReversed = false;
+         double bestGain = EPSILON;
+         for (int end = 0; end < 2; ++end) {
+            int node = end == 0 ? first : last;
+            for (int x : neighbors_[node]) {
+               int ix = indexInTour_[x];
+               if (ix >= s && ix <= e) {
+                  continue;
+               }
+               // Insert between x and its successor, or its predecessor
+               // and x
+               for (int side = 0; side < 2; ++side) {
+                  int k = side == 0 ? ix : (ix + size_ - 1) % size_;
+                  if (k == s - 1 || (k >= s && k <= e)) {
+                     continue;
+                  }
+                  int u = tour_[k];
+                  int v = at(k + 1);
+                  double base = link(u, v);
+                  double forward = link(u, first) + link(last, v) - base;
+                  double backward = link(u, last) + link(first, v) - base;
+                  if (removalGain - forward > bestGain) {
+                     bestGain = removalGain - forward;
+                     bestK = k;
+                     bestReversed = false;
+                  }
+                  if (removalGain - backward > bestGain) {
+                     bestGain = removalGain - backward;
+                     bestK = k;
+                     bestReversed = true;
+                  }
+               }
+            }
+         }
+         if (bestK < 0) {
+            return false;
+         }
+
+         for (int i = 0; i < length; ++i) {
+            scratch_[i] = tour_[bestReversed ? e - i : s + i];
+         }
+         int from;
+         int to;
+         if (bestK > e) {
+            System.arraycopy(tour_, e + 1, tour_, s, bestK - e);
+            System.arraycopy(scratch_, 0, tour_, bestK - length + 1, length);
+            from = s;
+            to = bestK;
+         }
+         else {
+            System.arraycopy(tour_, bestK + 1, tour_, bestK + 1 + length,
+                  s - bestK - 1);
+            System.arraycopy(scratch_, 0, tour_, bestK + 1, length);
+            from = bestK + 1;
+            to = e;
+         }
+         for (int i = from; i <= to; ++i) {
+            indexInTour_[tour_[i]] = i;
+         }
+         return true;
+      }
+   }
+}
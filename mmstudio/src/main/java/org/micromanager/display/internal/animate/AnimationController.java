@@ -13,7 +13,9 @@
 
 package org.micromanager.display.internal.animate;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -230,6 +232,22 @@ public final class AnimationController<P> {
       return animationEnabled_.get();
    }
 
+   /**
+    * Predict the positions that playback animation will display next, based
+    * on the current animation rate and tick interval.
+    *
+    * @param count maximum number of positions to predict
+    * @return upcoming positions in display order; empty if not animating
+    */
+   public synchronized List<P> getUpcomingAnimationPositions(int count) {
+      if (!isTicksScheduled() || count <= 0) {
+         return Collections.emptyList();
+      }
+      int framesPerTick = (int) Math.max(1,
+            Math.round(animationRateFPS_ * tickIntervalMs_ / 1000.0));
+      return sequencer_.predictAnimationPositions(framesPerTick, count);
+   }
+
    public synchronized void forceDataPosition(final P position) {
       // Always call listeners from scheduler thread
       scheduler_.schedule(new Runnable() {
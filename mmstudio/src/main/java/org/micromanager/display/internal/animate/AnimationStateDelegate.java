@@ -13,6 +13,8 @@
 
 package org.micromanager.display.internal.animate;
 
+import java.util.List;
+
 /**
  * An object that computes the next data position to render in an animated
  * display.
@@ -67,4 +69,18 @@ public interface AnimationStateDelegate<P> {
     */
    P advanceAnimationPosition(double frames);
 
+   /**
+    * Compute the data positions that repeated calls to
+    * {@code advanceAnimationPosition} would produce, without changing the
+    * current data position.
+    * <p>
+    * This is used to read ahead data that is about to be displayed. The
+    * prediction need not be exact.
+    *
+    * @param framesPerStep frames to advance at each step (at least 1)
+    * @param count maximum number of positions to return
+    * @return the upcoming data positions, in order
+    */
+   List<P> predictAnimationPositions(int framesPerStep, int count);
+
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ import org.micromanager.data.Coords;
 import org.micromanager.data.Coords.CoordsBuilder;
 import org.micromanager.data.internal.DefaultCoords;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -74,6 +75,33 @@ public class DataCoordsAnimationState implements AnimationStateDelegate<Coords>
       return advanceAnimationPositionImpl(frames, true);
    }
 
+   @Override
+   public synchronized List<Coords> predictAnimationPositions(
+         int framesPerStep, int count)
+   {
+      List<Coords> ret = new ArrayList<Coords>(count);
+      if (framesPerStep < 1 || delegate_.getAnimatedAxes().isEmpty()) {
+         return ret;
+      }
+      final Coords savedCoords = animationCoords_;
+      final double savedError = cumulativeFrameCountError_;
+      try {
+         for (int i = 0; i < count; ++i) {
+            cumulativeFrameCountError_ = 0.0;
+            Coords next = advanceAnimationPositionImpl(framesPerStep, true);
+            if (next == null || ret.contains(next) || next.equals(savedCoords)) {
+               break; // Wrapped around to where we started
+            }
+            ret.add(next);
+         }
+      }
+      finally {
+         animationCoords_ = savedCoords;
+         cumulativeFrameCountError_ = savedError;
+      }
+      return ret;
+   }
+
    private Coords advanceAnimationPositionImpl(double frames,
          boolean skipNonExistent)
    {
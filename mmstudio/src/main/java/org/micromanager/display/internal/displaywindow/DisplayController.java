@@ -105,6 +105,9 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    private final Set<String> playbackAxes_ = new HashSet<>();
 
    private final StatsComputeQueue computeQueue_ = StatsComputeQueue.create();
+
+   // Reads ahead images for playback animation
+   private final PlanePrefetcher prefetcher_;
    private static final long MIN_REPAINT_PERIOD_NS = Math.round(1e9 / 60.0);
 
    private final LinkManager linkManager_;
@@ -257,8 +260,10 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       dataProvider_ = dataProvider;
       controlsFactory_ = controlsFactory;
       linkManager_ = linkManager;
+      prefetcher_ = PlanePrefetcher.create(dataProvider);
 
       computeQueue_.setPerformanceMonitor(perfMon_);
+      prefetcher_.setPerformanceMonitor(perfMon_);
       
       ReportingUtils.logMessage("Class: " + this.getClass());
       ReportingUtils.logMessage("Classloader: " + this.getClass().getClassLoader());
@@ -552,15 +557,18 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       }
 
       // Always compute stats for all channels
-      List<Image> images;
-      try {
-         images = dataProvider_.getImagesIgnoringAxes(
-                 position.copyRemovingAxes(Coords.CHANNEL),
-                 Coords.CHANNEL);
-      } catch (IOException e) {
-         // TODO Should display error
-         images = Collections.emptyList();
+      Coords planePosition = position.copyRemovingAxes(Coords.CHANNEL);
+      List<Image> images = prefetcher_.getImages(planePosition);
+      if (images == null) {
+         try {
+            images = dataProvider_.getImagesIgnoringAxes(planePosition,
+                    Coords.CHANNEL);
+         } catch (IOException e) {
+            // TODO Should display error
+            images = Collections.emptyList();
+         }
       }
+      schedulePrefetch();
 
 
 
@@ -653,6 +661,31 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    }
 
 
+   /**
+    * Ask the prefetcher to read ahead the positions that playback animation
+    * will display next (or to stop reading ahead, and drop what was read
+    * ahead, if not playing).
+    */
+   private void schedulePrefetch() {
+      AnimationController<Coords> animationController = animationController_;
+      if (animationController == null) { // Closing
+         return;
+      }
+      double fps = animationController.getAnimationRateFPS();
+      List<Coords> upcoming = animationController.
+            getUpcomingAnimationPositions(prefetcher_.getLookahead(fps));
+      if (upcoming.isEmpty()) {
+         prefetcher_.cancel();
+         return;
+      }
+      List<Coords> planePositions = new ArrayList<>(upcoming.size());
+      for (Coords c : upcoming) {
+         planePositions.add(c.copyRemovingAxes(Coords.CHANNEL));
+      }
+      prefetcher_.prefetch(planePositions);
+   }
+
+
    //
    // Implementation of AnimationController.Listener<Coords>
    //
@@ -930,6 +963,8 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       // any ongoing playback animation. Actual display of new images happens
       // upon receiving callbacks via the AnimationController.Listener
       // interface.
+      prefetcher_.invalidate(
+            event.getImage().getCoords().copyRemovingAxes(Coords.CHANNEL));
       animationController_.newDataPosition(event.getImage().getCoords());
    }
 
@@ -1113,6 +1148,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
          // TODO: report exception
       }
       perfMon_ = null;
+      prefetcher_.shutdown();
       animationController_.shutdown();
       animationController_.removeListener(this);
       animationController_ = null;
@@ -248,6 +248,9 @@ public final class DisplayUIController implements Closeable, WindowListener,
 
    public void setPerformanceMonitor(PerformanceMonitor perfMon) {
       perfMon_ = perfMon;
+      if (ijBridge_ != null) {
+         ijBridge_.setPerformanceMonitor(perfMon);
+      }
    }
 
    @MustCallOnEDT
@@ -406,6 +409,10 @@ public final class DisplayUIController implements Closeable, WindowListener,
       }
 
       ijBridge_ = ImageJBridge.create(this, images);
+      ijBridge_.setPerformanceMonitor(perfMon_);
+      if (isPreview_ && studio_.live().isLiveModeOn()) {
+         ijBridge_.mm2ijSetLiveRendering(true);
+      }
       double zoomRatio = getDisplayController().getDisplaySettings().getZoomRatio();
       if (zoomRatio <= 0) {
          zoomRatio = 1.0;
@@ -1128,7 +1135,7 @@ public final class DisplayUIController implements Closeable, WindowListener,
       if (ijBridge_ == null) {
          return;
       }
-      ijBridge_.mm2ijRepaint();
+      ijBridge_.mm2ijRepaintOverlays();
    }
 
    void setPlaybackFpsIndicator(double fps) {
@@ -2115,6 +2122,16 @@ public final class DisplayUIController implements Closeable, WindowListener,
          lastElapsedTimeMs_ = 0.0;
          fps_ = 0.0;
       }
+      // Render live frames off the EDT, so that the UI stays responsive at
+      // high frame rates
+      if (isPreview_) {
+         final boolean isOn = liveModeEvent.isOn();
+         SwingUtilities.invokeLater(() -> {
+            if (ijBridge_ != null) {
+               ijBridge_.mm2ijSetLiveRendering(isOn);
+            }
+         });
+      }
    }
 
    @Subscribe
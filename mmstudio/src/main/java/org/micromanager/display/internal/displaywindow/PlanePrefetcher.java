@@ -0,0 +1,260 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.displaywindow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+
+/**
+ * Reads ahead the images that playback animation is about to display.
+ *
+ * Images are fetched (all channels at once, as the display does) on a
+ * background thread and kept in a small cache bounded by total pixel data
+ * size (a fraction of the maximum heap size). The cache is only kept while
+ * playing; it is emptied when playback stops. The display looks up each position before falling back to reading
+ * from the data provider. When a requested position was not among the
+ * predicted ones (the user jumped elsewhere), pending reads are canceled.
+ *
+ * All methods are thread safe.
+ */
+final class PlanePrefetcher {
+   // How far ahead (in playback time) to read
+   private static final double LOOKAHEAD_SECONDS = 0.5;
+   private static final int MIN_LOOKAHEAD = 2;
+   private static final int MAX_LOOKAHEAD = 32;
+
+   // Cache at most this fraction of the maximum heap, and at most
+   // MAX_CACHE_BYTES, per display
+   private static final int HEAP_FRACTION = 16;
+   private static final long MAX_CACHE_BYTES = 256L * 1024 * 1024;
+
+   private final DataProvider dataProvider_;
+   private final long maxCacheBytes_;
+
+   private final ExecutorService executor_ = Executors.newSingleThreadExecutor(
+         ThreadFactoryFactory.createThreadFactory("PlanePrefetcher"));
+
+   private static final class CacheEntry {
+      final List<Image> images_;
+      final long bytes_;
+
+      CacheEntry(List<Image> images, long bytes) {
+         images_ = images;
+         bytes_ = bytes;
+      }
+   }
+
+   // Guarded by monitor on this. Access-ordered for LRU eviction.
+   private final LinkedHashMap<Coords, CacheEntry> cache_ =
+         new LinkedHashMap<Coords, CacheEntry>(16, 0.75f, true);
+   private long cacheBytes_ = 0;
+   private long bytesPerPosition_ = 0;
+   private final Map<Coords, Future<?>> pending_ =
+         new HashMap<Coords, Future<?>>();
+   private List<Coords> predicted_ = Collections.emptyList();
+
+   private long hits_ = 0;
+   private long misses_ = 0;
+
+   private PerformanceMonitor perfMon_;
+
+   static PlanePrefetcher create(DataProvider dataProvider) {
+      return new PlanePrefetcher(dataProvider, Math.min(MAX_CACHE_BYTES,
+            Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+   }
+
+   private PlanePrefetcher(DataProvider dataProvider, long maxCacheBytes) {
+      dataProvider_ = dataProvider;
+      maxCacheBytes_ = maxCacheBytes;
+   }
+
+   void setPerformanceMonitor(PerformanceMonitor perfMon) {
+      perfMon_ = perfMon;
+   }
+
+   /**
+    * Number of positions to read ahead at the given playback rate, taking
+    * into account the cache size.
+    *
+    * @param fps the playback rate
+    * @return number of positions
+    */
+   synchronized int getLookahead(double fps) {
+      int count = (int) Math.ceil(fps * LOOKAHEAD_SECONDS);
+      count = Math.max(MIN_LOOKAHEAD, Math.min(MAX_LOOKAHEAD, count));
+      if (bytesPerPosition_ > 0) {
+         // Leave room so that prefetched positions don't evict each other
+         long fit = maxCacheBytes_ / (2 * bytesPerPosition_);
+         count = (int) Math.max(1, Math.min(count, fit));
+      }
+      return count;
+   }
+
+   /**
+    * Look up the images for a position.
+    *
+    * @param position the position, with the channel axis removed
+    * @return the images (a list that the caller may modify), or null if not
+    * prefetched
+    */
+   synchronized List<Image> getImages(Coords position) {
+      CacheEntry entry = cache_.get(position);
+      List<Image> images = entry == null ? null : entry.images_;
+      if (images != null) {
+         ++hits_;
+      }
+      else {
+         ++misses_;
+         if (!predicted_.contains(position)) {
+            // Jump: whatever we were reading is no longer useful
+            cancelPending();
+         }
+      }
+      if (perfMon_ != null) {
+         perfMon_.sample("Prefetch hit (%)", images != null ? 100.0 : 0.0);
+         perfMon_.sample("Prefetch hits (count)", hits_);
+         perfMon_.sample("Prefetch misses (count)", misses_);
+         perfMon_.sample("Prefetch cache (MB)", cacheBytes_ / 1048576.0);
+      }
+      return images == null ? null : new ArrayList<Image>(images);
+   }
+
+   /**
+    * Start reading the given positions in the background, in order.
+    *
+    * @param upcoming the positions, with the channel axis removed
+    */
+   synchronized void prefetch(List<Coords> upcoming) {
+      predicted_ = new ArrayList<Coords>(upcoming);
+      // Drop pending reads that are no longer predicted
+      for (Iterator<Map.Entry<Coords, Future<?>>> it =
+            pending_.entrySet().iterator(); it.hasNext(); ) {
+         Map.Entry<Coords, Future<?>> e = it.next();
+         if (!predicted_.contains(e.getKey())) {
+            e.getValue().cancel(false);
+            it.remove();
+         }
+      }
+      for (final Coords position : predicted_) {
+         if (cache_.containsKey(position) || pending_.containsKey(position)) {
+            continue;
+         }
+         pending_.put(position, executor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               read(position);
+            }
+         }));
+      }
+   }
+
+   private void read(Coords position) {
+      synchronized (this) {
+         if (!pending_.containsKey(position)) {
+            return; // Canceled
+         }
+      }
+      List<Image> images;
+      try {
+         images = dataProvider_.getImagesIgnoringAxes(position, Coords.CHANNEL);
+      }
+      catch (IOException e) {
+         images = null;
+      }
+      synchronized (this) {
+         if (pending_.remove(position) == null || images == null ||
+               images.isEmpty())
+         {
+            return;
+         }
+         long bytes = 0;
+         for (Image image : images) {
+            bytes += (long) image.getWidth() * image.getHeight() *
+                  image.getBytesPerPixel();
+         }
+         bytesPerPosition_ = bytes;
+         CacheEntry old = cache_.put(position,
+               new CacheEntry(Collections.unmodifiableList(images), bytes));
+         if (old != null) {
+            cacheBytes_ -= old.bytes_;
+         }
+         cacheBytes_ += bytes;
+         evict();
+      }
+   }
+
+   private void evict() {
+      Iterator<CacheEntry> it = cache_.values().iterator();
+      while (cacheBytes_ > maxCacheBytes_ && it.hasNext()) {
+         cacheBytes_ -= it.next().bytes_;
+         it.remove();
+      }
+   }
+
+   private void cancelPending() {
+      for (Future<?> f : pending_.values()) {
+         f.cancel(false);
+      }
+      pending_.clear();
+      predicted_ = Collections.emptyList();
+   }
+
+   /**
+    * Cancel any pending reads and empty the cache (e.g. because playback
+    * stopped).
+    */
+   synchronized void cancel() {
+      cancelPending();
+      cache_.clear();
+      cacheBytes_ = 0;
+   }
+
+   /**
+    * Forget a position, because its images may have changed.
+    *
+    * @param position the position, with the channel axis removed
+    */
+   synchronized void invalidate(Coords position) {
+      CacheEntry old = cache_.remove(position);
+      if (old != null) {
+         cacheBytes_ -= old.bytes_;
+      }
+      Future<?> f = pending_.remove(position);
+      if (f != null) {
+         f.cancel(false);
+      }
+   }
+
+   void shutdown() {
+      synchronized (this) {
+         cancelPending();
+         cache_.clear();
+         cacheBytes_ = 0;
+         perfMon_ = null;
+      }
+      executor_.shutdownNow();
+   }
+}
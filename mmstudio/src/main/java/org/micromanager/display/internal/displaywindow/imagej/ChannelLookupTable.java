@@ -0,0 +1,133 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.process.LUT;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookup table mapping the raw sample values of one channel directly to
+ * packed RGB.
+ *
+ * The table folds together the intensity scaling (the {@code min} and
+ * {@code max} of the LUT) and the 8-bit color LUT, which already includes
+ * gamma and HiLo highlighting (see {@code AbstractColorModeStrategy}). It has
+ * 256 entries for 8-bit samples and 65536 for 16-bit samples, and is only
+ * recomputed when the scaling or the LUT colors change, so that adjusting
+ * one channel does not cost anything for the others, and redisplaying an
+ * unchanged channel costs only the table lookups.
+ *
+ * This class is not thread safe.
+ */
+final class ChannelLookupTable {
+   // Versions are unique across tables
+   private static final AtomicLong VERSION_COUNTER = new AtomicLong();
+
+   private final byte[] reds_ = new byte[256];
+   private final byte[] greens_ = new byte[256];
+   private final byte[] blues_ = new byte[256];
+   private int min_;
+   private int max_;
+   private int[] table_;
+   private long version_ = 0;
+
+   // Scratch space for comparing LUTs
+   private final byte[] scratch_ = new byte[256];
+
+   static ChannelLookupTable create() {
+      return new ChannelLookupTable();
+   }
+
+   private ChannelLookupTable() {
+   }
+
+   /**
+    * Get the lookup table for the given LUT, recomputing it if necessary.
+    *
+    * @param lut the color LUT (already including gamma); its {@code min} and
+    * {@code max} fields give the intensity scaling
+    * @param bytesPerSample 1 or 2
+    * @return the table, mapping raw sample values to packed RGB; owned by
+    * this object and valid until the next call
+    */
+   int[] getTable(LUT lut, int bytesPerSample) {
+      int size = bytesPerSample == 1 ? 256 : 65536;
+      int min = Math.max(0, Math.min(size - 1, (int) lut.min));
+      int max = Math.max(min, Math.min(size - 1, (int) lut.max));
+      if (!matches(lut, min, max, size)) {
+         compute(lut, min, max, size);
+      }
+      return table_;
+   }
+
+   /**
+    * A number that changes whenever the table is recomputed, and that is
+    * never shared with another table.
+    *
+    * @return the version
+    */
+   long getVersion() {
+      return version_;
+   }
+
+   private boolean matches(LUT lut, int min, int max, int size) {
+      if (table_ == null || table_.length != size ||
+            min != min_ || max != max_ || lut.getMapSize() != 256)
+      {
+         return false;
+      }
+      lut.getReds(scratch_);
+      if (!Arrays.equals(scratch_, reds_)) {
+         return false;
+      }
+      lut.getGreens(scratch_);
+      if (!Arrays.equals(scratch_, greens_)) {
+         return false;
+      }
+      lut.getBlues(scratch_);
+      return Arrays.equals(scratch_, blues_);
+   }
+
+   private void compute(LUT lut, int min, int max, int size) {
+      version_ = VERSION_COUNTER.incrementAndGet();
+      min_ = min;
+      max_ = max;
+      lut.getReds(reds_);
+      lut.getGreens(greens_);
+      lut.getBlues(blues_);
+      if (table_ == null || table_.length != size) {
+         table_ = new int[size];
+      }
+
+      int[] rgb = new int[256];
+      for (int i = 0; i < 256; ++i) {
+         rgb[i] = ((reds_[i] & 0xff) << 16) | ((greens_[i] & 0xff) << 8) |
+               (blues_[i] & 0xff);
+      }
+
+      // Same mapping as ImageJ's ShortProcessor.create8BitImage(). Values at
+      // or below min, and above the value that maps to 255, are constant, so
+      // only the ramp in between needs to be computed.
+      Arrays.fill(table_, 0, min + 1, rgb[0]);
+      double scale = 256.0 / (max - min + 1);
+      int v = min + 1;
+      for (; v < size; ++v) {
+         int index = (int) ((v - min) * scale + 0.5);
+         if (index >= 255) {
+            break;
+         }
+         table_[v] = rgb[index];
+      }
+      Arrays.fill(table_, v, size, rgb[255]);
+   }
+}
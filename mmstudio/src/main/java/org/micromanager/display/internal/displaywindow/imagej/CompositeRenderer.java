@@ -0,0 +1,424 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import com.google.common.base.Preconditions;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Conversion of one or more channels into an RGB image, replacing the
+ * single-threaded rescaling done by ImageJ's {@code ImageProcessor} and the
+ * blending done by ImageJ's {@code CompositeImage}. Used for all
+ * non-RGB color modes (grayscale, color, LUT and composite).
+ *
+ * Each channel's min/max scaling and (gamma-corrected) color LUT are folded
+ * into a lookup table that maps raw sample values directly to packed RGB
+ * (see {@link ChannelLookupTable}).
+ * The tables are kept until the scaling or LUT of the channel changes, so
+ * that per-frame work is reduced to table lookups and saturating additions.
+ *
+ * The output raster is divided into square tiles, which are rendered in
+ * parallel. Callers may restrict rendering to a region (the viewport of a
+ * zoomed-in canvas); only tiles touching the region plus a margin of one
+ * tile are then rendered. Rendered tiles are remembered until the pixels,
+ * tables or set of visible channels change, so that panning back and forth
+ * only renders newly exposed tiles. The raster is reused as long as the
+ * image size stays the same.
+ *
+ * This class is not thread safe; each instance must be used from a single
+ * thread at a time (the EDT, or the live frame render thread). The worker
+ * threads only ever touch disjoint tiles of the raster.
+ */
+final class CompositeRenderer {
+   static final int TILE_SIZE = 256;
+
+   private static final int N_THREADS =
+         Math.max(1, Runtime.getRuntime().availableProcessors());
+
+   // Shared by all viewers; at most the EDT and the live render thread are
+   // rendering at the same time
+   private static final ExecutorService EXECUTOR =
+         Executors.newFixedThreadPool(N_THREADS,
+               ThreadFactoryFactory.createThreadFactory("CompositeRenderer"));
+
+   private final List<ChannelLookupTable> tables_ =
+         new ArrayList<ChannelLookupTable>();
+
+   private BufferedImage image_;
+   private int[] raster_;
+
+   // What the valid tiles of the raster currently show: the pixel arrays and
+   // table versions of the channels blended, in order
+   private final List<Object> renderedPixels_ = new ArrayList<Object>();
+   private final List<Long> renderedVersions_ = new ArrayList<Long>();
+   private int tilesX_;
+   private int tilesY_;
+   private boolean[] validTiles_;
+
+   static CompositeRenderer create() {
+      return new CompositeRenderer();
+   }
+
+   private CompositeRenderer() {
+   }
+
+   private ChannelLookupTable getTable(int index) {
+      while (tables_.size() <= index) {
+         tables_.add(ChannelLookupTable.create());
+      }
+      return tables_.get(index);
+   }
+
+   private int[] getRaster(int width, int height) {
+      if (image_ == null || image_.getWidth() != width ||
+            image_.getHeight() != height)
+      {
+         image_ = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+         raster_ = ((DataBufferInt) image_.getRaster().getDataBuffer()).
+               getData();
+         tilesX_ = (width + TILE_SIZE - 1) / TILE_SIZE;
+         tilesY_ = (height + TILE_SIZE - 1) / TILE_SIZE;
+         validTiles_ = new boolean[tilesX_ * tilesY_];
+      }
+      return raster_;
+   }
+
+   /**
+    * Blend the given channels into an RGB image.
+    *
+    * The returned image is owned by this renderer and will be overwritten by
+    * the next call to this method.
+    *
+    * @param pixels raw pixel arrays (all {@code byte[]} or all
+    * {@code short[]}), one per channel; null entries are skipped
+    * @param luts the LUT for each channel (with min and max set)
+    * @param active whether each channel is visible
+    * @param width image width
+    * @param height image height
+    * @return the rendered image
+    */
+   BufferedImage render(Object[] pixels, LUT[] luts, boolean[] active,
+         int width, int height)
+   {
+      return render(pixels, luts, active, width, height, null);
+   }
+
+   /**
+    * Blend the given channels into an RGB image, rendering only what is
+    * needed to show the given region.
+    *
+    * Parts of the returned image outside of the region (plus margin) may be
+    * stale. The returned image is owned by this renderer and will be
+    * overwritten by the next call to this method.
+    *
+    * @param pixels raw pixel arrays (all {@code byte[]} or all
+    * {@code short[]}), one per channel; null entries are skipped
+    * @param luts the LUT for each channel (with min and max set)
+    * @param active whether each channel is visible
+    * @param width image width
+    * @param height image height
+    * @param region the region, in image coordinates, that must be up to
+    * date, or null to render the whole image
+    * @return the rendered image
+    */
+   BufferedImage render(Object[] pixels, LUT[] luts, boolean[] active,
+         final int width, int height, Rectangle region)
+   {
+      Preconditions.checkArgument(pixels.length == luts.length);
+
+      final List<Object> channelPixels = new ArrayList<Object>();
+      final List<int[]> channelTables = new ArrayList<int[]>();
+      List<Long> versions = new ArrayList<Long>();
+      for (int i = 0; i < pixels.length; ++i) {
+         if (pixels[i] == null || luts[i] == null ||
+               (i < active.length && !active[i]))
+         {
+            continue;
+         }
+         int bytesPerSample;
+         if (pixels[i] instanceof byte[]) {
+            bytesPerSample = 1;
+         }
+         else if (pixels[i] instanceof short[]) {
+            bytesPerSample = 2;
+         }
+         else {
+            throw new UnsupportedOperationException(
+                  "Unsupported pixel type for composite rendering");
+         }
+         ChannelLookupTable table = getTable(i);
+         channelPixels.add(pixels[i]);
+         channelTables.add(table.getTable(luts[i], bytesPerSample));
+         versions.add(table.getVersion());
+      }
+
+      final int[] raster = getRaster(width, height);
+
+      if (!isSameContent(channelPixels, versions)) {
+         invalidate();
+         renderedPixels_.addAll(channelPixels);
+         renderedVersions_.addAll(versions);
+      }
+
+      int tx0 = 0, ty0 = 0, tx1 = tilesX_, ty1 = tilesY_;
+      if (region != null) {
+         tx0 = Math.max(0, region.x / TILE_SIZE - 1);
+         ty0 = Math.max(0, region.y / TILE_SIZE - 1);
+         tx1 = Math.min(tilesX_,
+               (region.x + region.width - 1) / TILE_SIZE + 2);
+         ty1 = Math.min(tilesY_,
+               (region.y + region.height - 1) / TILE_SIZE + 2);
+      }
+      final List<Rectangle> tiles = new ArrayList<Rectangle>();
+      for (int ty = ty0; ty < ty1; ++ty) {
+         for (int tx = tx0; tx < tx1; ++tx) {
+            if (!validTiles_[ty * tilesX_ + tx]) {
+               int x = tx * TILE_SIZE;
+               int y = ty * TILE_SIZE;
+               tiles.add(new Rectangle(x, y,
+                     Math.min(TILE_SIZE, width - x),
+                     Math.min(TILE_SIZE, height - y)));
+            }
+         }
+      }
+
+      int nTasks = Math.min(N_THREADS, tiles.size());
+      if (nTasks <= 1) {
+         for (Rectangle tile : tiles) {
+            blendTile(channelPixels, channelTables, raster, width, tile);
+         }
+      }
+      else {
+         List<Future<?>> futures = new ArrayList<Future<?>>(nTasks);
+         for (int t = 0; t < nTasks; ++t) {
+            final int first = t;
+            final int stride = nTasks;
+            futures.add(EXECUTOR.submit(new Callable<Void>() {
+               @Override
+               public Void call() {
+                  for (int i = first; i < tiles.size(); i += stride) {
+                     blendTile(channelPixels, channelTables, raster, width,
+                           tiles.get(i));
+                  }
+                  return null;
+               }
+            }));
+         }
+         for (Future<?> future : futures) {
+            try {
+               future.get();
+            }
+            catch (InterruptedException e) {
+               // Leave the tiles marked invalid; the next repaint will fix
+               // things up
+               Thread.currentThread().interrupt();
+               return image_;
+            }
+            catch (ExecutionException e) {
+               throw new RuntimeException(e.getCause());
+            }
+         }
+      }
+      for (Rectangle tile : tiles) {
+         validTiles_[(tile.y / TILE_SIZE) * tilesX_ + tile.x / TILE_SIZE] =
+               true;
+      }
+      return image_;
+   }
+
+   private boolean isSameContent(List<Object> pixels, List<Long> versions) {
+      if (pixels.size() != renderedPixels_.size() ||
+            !versions.equals(renderedVersions_))
+      {
+         return false;
+      }
+      for (int i = 0; i < pixels.size(); ++i) {
+         if (pixels.get(i) != renderedPixels_.get(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Whether the given region of the last rendered image is up to date, as
+    * far as this renderer knows.
+    *
+    * @param region the region, in image coordinates, or null for the whole
+    * image
+    * @return false if any part of the region needs rendering
+    */
+   boolean isRendered(Rectangle region) {
+      if (image_ == null) {
+         return false;
+      }
+      int tx0 = 0, ty0 = 0, tx1 = tilesX_, ty1 = tilesY_;
+      if (region != null) {
+         tx0 = Math.max(0, region.x / TILE_SIZE);
+         ty0 = Math.max(0, region.y / TILE_SIZE);
+         tx1 = Math.min(tilesX_, (region.x + region.width - 1) / TILE_SIZE + 1);
+         ty1 = Math.min(tilesY_,
+               (region.y + region.height - 1) / TILE_SIZE + 1);
+      }
+      for (int ty = ty0; ty < ty1; ++ty) {
+         for (int tx = tx0; tx < tx1; ++tx) {
+            if (!validTiles_[ty * tilesX_ + tx]) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Forget which tiles are up to date, e.g. because the pixels were
+    * modified in place.
+    */
+   void invalidate() {
+      renderedPixels_.clear();
+      renderedVersions_.clear();
+      if (validTiles_ != null) {
+         Arrays.fill(validTiles_, false);
+      }
+   }
+
+   /**
+    * Get the image last returned by {@code render()}.
+    *
+    * @return the image, or null
+    */
+   BufferedImage getImage() {
+      return image_;
+   }
+
+   /**
+    * Convert the image held by an ImageJ processor into an RGB image, using
+    * the processor's LUT and intensity scaling.
+    *
+    * The returned image is owned by this renderer and will be overwritten by
+    * the next call to this method or {@code render()}.
+    *
+    * @param proc the processor
+    * @param channel the channel index, used to keep a separate lookup table
+    * for each channel
+    * @param region the region, in image coordinates, that must be up to
+    * date, or null to render the whole image
+    * @return the rendered image, or null if the processor is of a type not
+    * handled here (RGB or float)
+    */
+   BufferedImage renderProcessor(ImageProcessor proc, int channel,
+         Rectangle region)
+   {
+      Object raw = proc.getPixels();
+      if (!(raw instanceof byte[] || raw instanceof short[])) {
+         return null;
+      }
+      LUT lut = proc.getLut();
+      if (lut == null) {
+         return null;
+      }
+      Object[] pixels = new Object[channel + 1];
+      LUT[] luts = new LUT[channel + 1];
+      pixels[channel] = raw;
+      luts[channel] = lut;
+      return render(pixels, luts, new boolean[0],
+            proc.getWidth(), proc.getHeight(), region);
+   }
+
+   private static void blendTile(List<Object> channelPixels,
+         List<int[]> channelTables, int[] raster, int width, Rectangle tile)
+   {
+      int nChannels = channelPixels.size();
+      for (int y = tile.y; y < tile.y + tile.height; ++y) {
+         int start = y * width + tile.x;
+         int end = start + tile.width;
+         if (nChannels == 0) {
+            Arrays.fill(raster, start, end, 0);
+            continue;
+         }
+         // First channel initializes the raster; no saturation needed
+         copyMapped(channelPixels.get(0), channelTables.get(0), raster,
+               start, end);
+         for (int ch = 1; ch < nChannels; ++ch) {
+            addMapped(channelPixels.get(ch), channelTables.get(ch), raster,
+                  start, end);
+         }
+      }
+   }
+
+   private static void copyMapped(Object pixels, int[] table, int[] raster,
+         int start, int end)
+   {
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int i = start; i < end; ++i) {
+            raster[i] = table[p[i] & 0xff];
+         }
+      }
+      else {
+         short[] p = (short[]) pixels;
+         for (int i = start; i < end; ++i) {
+            raster[i] = table[p[i] & 0xffff];
+         }
+      }
+   }
+
+   private static void addMapped(Object pixels, int[] table, int[] raster,
+         int start, int end)
+   {
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int i = start; i < end; ++i) {
+            raster[i] = addSaturated(raster[i], table[p[i] & 0xff]);
+         }
+      }
+      else {
+         short[] p = (short[]) pixels;
+         for (int i = start; i < end; ++i) {
+            raster[i] = addSaturated(raster[i], table[p[i] & 0xffff]);
+         }
+      }
+   }
+
+   private static int addSaturated(int rgb1, int rgb2) {
+      int r = ((rgb1 >> 16) & 0xff) + ((rgb2 >> 16) & 0xff);
+      int g = ((rgb1 >> 8) & 0xff) + ((rgb2 >> 8) & 0xff);
+      int b = (rgb1 & 0xff) + (rgb2 & 0xff);
+      return (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) |
+            Math.min(b, 255);
+   }
+
+   /**
+    * Drop the cached tables and raster.
+    */
+   void release() {
+      tables_.clear();
+      renderedPixels_.clear();
+      renderedVersions_.clear();
+      validTiles_ = null;
+      image_ = null;
+      raster_ = null;
+   }
+}
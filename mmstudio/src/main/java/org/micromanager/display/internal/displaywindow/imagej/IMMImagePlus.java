@@ -14,6 +14,8 @@
 
 package org.micromanager.display.internal.displaywindow.imagej;
 
+import java.awt.Rectangle;
+
 /**
  * Common interface of {@code MMImagePlus} and {@code MMCompositeImage},
  * providing access to protected members of {@code ij.ImagePlus}.
@@ -74,4 +76,16 @@ interface IMMImagePlus {
     * see ij.ImagePlus.getNFrames
     */
    public int getNFramesWithoutSideEffect();
-}
\ No newline at end of file
+
+   /**
+    * Whether the given region of the image to be painted is up to date.
+    *
+    * When zoomed in, only the part of the image visible in the canvas is
+    * rendered. If this returns false, {@code updateImage()} needs to be
+    * called before painting the region.
+    *
+    * @param region the region, in image coordinates
+    * @return true if painting the region does not require an update
+    */
+   public boolean isRegionRendered(Rectangle region);
+}
@@ -24,6 +24,7 @@ import ij.gui.Roi;
 import ij.io.FileInfo;
 import ij.measure.Calibration;
 import ij.process.ByteProcessor;
+import ij.process.LUT;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
@@ -34,9 +35,11 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import javax.swing.SwingUtilities;
 import net.imglib2.display.ColorTable8;
 import org.micromanager.data.Coords;
 import org.micromanager.data.DataProvider;
@@ -51,6 +54,7 @@ import org.micromanager.display.internal.imagestats.BoundsRectAndMask;
 import org.micromanager.display.internal.imagestats.ImagesAndStats;
 import org.micromanager.internal.utils.JavaUtils;
 import org.micromanager.internal.utils.MustCallOnEDT;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
 
 /**
  * Bridge to ImageJ1 image viewer window.
@@ -116,6 +120,18 @@ public final class ImageJBridge {
    private Roi lastSeenRoi_;
    private Rectangle lastSeenRoiRect_;
 
+   // Non-null while live mode frames are rendered off the EDT. In that case
+   // the ImagePlus's ImageProcessor is not refreshed for every new frame
+   // (ijProcessorStale_ records this), and the canvas draws the frames
+   // produced by the renderer.
+   private LiveFrameRenderer liveRenderer_;
+   private boolean ijProcessorStale_ = false;
+   private boolean liveFrameSubmissionPending_ = false;
+   private PerformanceMonitor perfMon_;
+
+   // The canvas's source rect while the canvas is painting
+   private Rectangle paintingRegion_;
+
    // Get a copy of ImageCanvas's zoom levels
    private static final List<Double> IJ_ZOOM_LEVELS = new ArrayList<>();
    static {
@@ -228,6 +244,10 @@ public final class ImageJBridge {
 
    @MustCallOnEDT
    public void mm2ijWindowClosed() {
+      if (liveRenderer_ != null) {
+         liveRenderer_.shutdown();
+         liveRenderer_ = null;
+      }
       imagePlus_.changes = false; // Avoid "Save?" dialog
       proxyWindow_ = null;
       canvas_ = null;
@@ -347,6 +367,20 @@ public final class ImageJBridge {
       int timepoint = coords.hasAxis(Coords.T) ? coords.getT() : 0;
       imagePlus_.updatePosition(channel + 1, slice + 1, timepoint + 1);
 
+      if (isLiveRenderingActive()) {
+         // Defer the copy into the ImageProcessor until it is needed
+         ijProcessorStale_ = true;
+      }
+      else {
+         refreshIJProcessor(ijFlatIndex);
+      }
+      mm2ijRepaint(); // Redundant, but just in case.
+
+      colorModeStrategy_.displayedImageDidChange();
+   }
+
+   @MustCallOnEDT
+   private void refreshIJProcessor(int ijFlatIndex) {
       // The way to get ImagePlus to repaint even when the position hasn't
       // changed is to refresh its internal ImageProcessor that holds its
       // currently displayed image.
@@ -376,9 +410,7 @@ public final class ImageJBridge {
             compositeImage.setMode(saveMode);
          }
       }
-      mm2ijRepaint(); // Redundant, but just in case.
-
-      colorModeStrategy_.displayedImageDidChange();
+      ijProcessorStale_ = false;
    }
 
    @MustCallOnEDT
@@ -470,12 +502,203 @@ public final class ImageJBridge {
 
    @MustCallOnEDT
    public void mm2ijRepaint() {
+      if (isLiveRenderingActive()) {
+         scheduleLiveFrameSubmission();
+         return;
+      }
       if (canvas_ != null) {
          canvas_.setImageUpdated();
          canvas_.repaint();
       }
    }
 
+   /**
+    * Repaint without re-rendering the image, e.g. because only overlays
+    * changed.
+    */
+   @MustCallOnEDT
+   public void mm2ijRepaintOverlays() {
+      if (canvas_ != null) {
+         canvas_.repaint();
+      }
+   }
+
+   @MustCallOnEDT
+   void setPaintingRegion(Rectangle region) {
+      paintingRegion_ = region;
+   }
+
+   /**
+    * The part of the image currently being painted by the canvas.
+    *
+    * @return the region in image coordinates, or null if not painting
+    */
+   @MustCallOnEDT
+   Rectangle getPaintingRegion() {
+      return paintingRegion_;
+   }
+
+   @MustCallOnEDT
+   boolean isIJRegionRendered(Rectangle region) {
+      return !(imagePlus_ instanceof IMMImagePlus) ||
+            ((IMMImagePlus) imagePlus_).isRegionRendered(region);
+   }
+
+   public void setPerformanceMonitor(PerformanceMonitor perfMon) {
+      perfMon_ = perfMon;
+      if (liveRenderer_ != null) {
+         liveRenderer_.setPerformanceMonitor(perfMon);
+      }
+   }
+
+   /**
+    * Enable or disable rendering of displayed images on a background thread.
+    *
+    * This is intended for live mode, where new images arrive faster than the
+    * EDT can comfortably convert them to RGB. While enabled, each repaint
+    * request posts the current images and LUTs to a render thread that keeps
+    * only the latest frame, and the canvas merely draws the result.
+    *
+    * @param enable whether to render in the background
+    */
+   @MustCallOnEDT
+   public void mm2ijSetLiveRendering(boolean enable) {
+      if (enable == (liveRenderer_ != null)) {
+         return;
+      }
+      if (enable) {
+         liveRenderer_ = LiveFrameRenderer.create(new Runnable() {
+            @Override
+            public void run() {
+               SwingUtilities.invokeLater(new Runnable() {
+                  @Override
+                  public void run() {
+                     if (canvas_ != null && liveRenderer_ != null) {
+                        canvas_.setImageUpdated();
+                        canvas_.repaint();
+                     }
+                  }
+               });
+            }
+         });
+         liveRenderer_.setPerformanceMonitor(perfMon_);
+      }
+      else {
+         liveRenderer_.shutdown();
+         liveRenderer_ = null;
+         if (ijProcessorStale_ && imagePlus_ != null) {
+            refreshIJProcessor(imagePlus_.getCurrentSlice());
+            colorModeStrategy_.displayedImageDidChange();
+         }
+      }
+      mm2ijRepaint();
+   }
+
+   @MustCallOnEDT
+   boolean isLiveRenderingActive() {
+      return liveRenderer_ != null && !isIJRGB();
+   }
+
+   /**
+    * The lock to hold while drawing the current live frame.
+    *
+    * @return the lock, or null if not rendering in the background
+    */
+   @MustCallOnEDT
+   Object getLiveFramePaintLock() {
+      return isLiveRenderingActive() ? liveRenderer_.getPaintLock() : null;
+   }
+
+   /**
+    * The most recent frame rendered in the background. Must be called while
+    * holding the lock returned by {@code getLiveFramePaintLock()}.
+    *
+    * @return the image, or null if not rendering in the background or no
+    * frame is ready yet
+    */
+   @MustCallOnEDT
+   BufferedImage getLiveFrame() {
+      return isLiveRenderingActive() ? liveRenderer_.getFrontImage() : null;
+   }
+
+   // Repaint requests come in bursts (new position, then new scaling), so
+   // snapshot the state once after the burst
+   @MustCallOnEDT
+   private void scheduleLiveFrameSubmission() {
+      if (liveFrameSubmissionPending_) {
+         return;
+      }
+      liveFrameSubmissionPending_ = true;
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            liveFrameSubmissionPending_ = false;
+            if (imagePlus_ == null || !isLiveRenderingActive()) {
+               return;
+            }
+            LiveFrameRenderer.Frame frame = createLiveFrame();
+            if (frame != null) {
+               liveRenderer_.submit(frame);
+            }
+            else {
+               // Not something we can render; let ImageJ do it
+               mm2ijSetLiveRendering(false);
+            }
+         }
+      });
+   }
+
+   @MustCallOnEDT
+   private LiveFrameRenderer.Frame createLiveFrame() {
+      int width = getMMWidth();
+      int height = getMMHeight();
+      int nChannels = 1;
+      boolean composite = imagePlus_ instanceof CompositeImage &&
+            ((CompositeImage) imagePlus_).getMode() == CompositeImage.COMPOSITE;
+      if (composite) {
+         nChannels = Math.max(1,
+               ((IMMImagePlus) imagePlus_).getNChannelsWithoutSideEffect());
+      }
+
+      Object[] pixels = new Object[nChannels];
+      LUT[] luts = new LUT[nChannels];
+      boolean[] active = new boolean[nChannels];
+      LUT[] compositeLuts = composite ?
+            ((CompositeImage) imagePlus_).getLuts() : null;
+      boolean[] compositeActive = composite ?
+            ((CompositeImage) imagePlus_).getActiveChannels() : null;
+      for (int c = 0; c < nChannels; ++c) {
+         int flatIndex = composite ?
+               imagePlus_.getStackIndex(c + 1, imagePlus_.getSlice(),
+                     imagePlus_.getFrame()) :
+               imagePlus_.getCurrentSlice();
+         Image image = getMMImage(getMMCoordsForIJFlatIndex(flatIndex));
+         Object raw = image.getRawPixels();
+         if (image.getNumComponents() != 1 ||
+               image.getWidth() != width || image.getHeight() != height ||
+               !(raw instanceof byte[] || raw instanceof short[]))
+         {
+            return null;
+         }
+         pixels[c] = raw;
+         LUT lut;
+         if (composite) {
+            if (compositeLuts == null || compositeLuts.length <= c) {
+               return null;
+            }
+            lut = compositeLuts[c];
+         }
+         else {
+            lut = imagePlus_.getProcessor().getLut();
+         }
+         // Detach from ImageJ, which may modify min/max on the EDT
+         luts[c] = (LUT) lut.clone();
+         active[c] = compositeActive == null ||
+               (c < compositeActive.length && compositeActive[c]);
+      }
+      return new LiveFrameRenderer.Frame(pixels, luts, active, width, height);
+   }
+
    void paintMMOverlays(Graphics2D g, int canvasWidth, int canvasHeight,
          Rectangle sourceRect)
    {
@@ -0,0 +1,212 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.process.LUT;
+import java.awt.image.BufferedImage;
+import org.micromanager.internal.utils.MustCallOnEDT;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+import org.micromanager.internal.utils.performance.WallTimer;
+
+/**
+ * Renders live mode frames on a dedicated thread, so that the EDT only has
+ * to draw a ready-made image.
+ *
+ * Frames to render are posted to a single-slot mailbox: a frame that has not
+ * been picked up by the render thread when the next one arrives is dropped.
+ * Rendered frames are double buffered. The render thread writes into the back
+ * buffer and swaps it to the front under the paint lock, which the canvas
+ * holds while drawing the front buffer.
+ */
+final class LiveFrameRenderer {
+   private final Runnable frameReadyHandler_;
+
+   private final Object mailboxLock_ = new Object();
+   // Guarded by mailboxLock_
+   private Frame mailbox_;
+   private boolean shutdown_ = false;
+
+   private final Object paintLock_ = new Object();
+   // Back buffer is accessed only on the render thread
+   private CompositeRenderer backRenderer_ = CompositeRenderer.create();
+   // Guarded by paintLock_
+   private CompositeRenderer frontRenderer_ = CompositeRenderer.create();
+   private BufferedImage frontImage_;
+   private boolean frontDisplayed_ = true;
+
+   private final Thread thread_;
+
+   private volatile PerformanceMonitor perfMon_;
+
+   /**
+    * The data needed to render one frame; all arrays are owned by the frame.
+    */
+   static final class Frame {
+      private final Object[] pixels_;
+      private final LUT[] luts_;
+      private final boolean[] active_;
+      private final int width_;
+      private final int height_;
+
+      Frame(Object[] pixels, LUT[] luts, boolean[] active,
+            int width, int height)
+      {
+         pixels_ = pixels;
+         luts_ = luts;
+         active_ = active;
+         width_ = width;
+         height_ = height;
+      }
+   }
+
+   /**
+    * Create and start a renderer.
+    *
+    * @param frameReadyHandler called on the render thread whenever a new
+    * frame is available via {@code getFrontImage()}
+    * @return the renderer
+    */
+   static LiveFrameRenderer create(Runnable frameReadyHandler) {
+      LiveFrameRenderer instance = new LiveFrameRenderer(frameReadyHandler);
+      instance.thread_.start();
+      return instance;
+   }
+
+   private LiveFrameRenderer(Runnable frameReadyHandler) {
+      frameReadyHandler_ = frameReadyHandler;
+      thread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            renderLoop();
+         }
+      }, "Live Frame Renderer");
+      thread_.setDaemon(true);
+   }
+
+   void setPerformanceMonitor(PerformanceMonitor perfMon) {
+      perfMon_ = perfMon;
+   }
+
+   /**
+    * Post a frame to render, replacing any frame not yet picked up.
+    *
+    * @param frame the frame
+    */
+   void submit(Frame frame) {
+      boolean dropped;
+      synchronized (mailboxLock_) {
+         dropped = mailbox_ != null;
+         mailbox_ = frame;
+         mailboxLock_.notifyAll();
+      }
+      PerformanceMonitor perfMon = perfMon_;
+      if (perfMon != null) {
+         perfMon.sampleTimeInterval("Live frame submitted");
+         perfMon.sample("Live frames dropped before render (%)",
+               dropped ? 100.0 : 0.0);
+      }
+   }
+
+   /**
+    * The lock to hold while drawing the image returned by
+    * {@code getFrontImage()}.
+    *
+    * @return the lock object
+    */
+   Object getPaintLock() {
+      return paintLock_;
+   }
+
+   /**
+    * Get the most recently rendered frame. Must be called, and the result
+    * used, while holding the paint lock.
+    *
+    * @return the image, or null if no frame has been rendered yet
+    */
+   @MustCallOnEDT
+   BufferedImage getFrontImage() {
+      if (frontImage_ != null && !frontDisplayed_) {
+         frontDisplayed_ = true;
+         PerformanceMonitor perfMon = perfMon_;
+         if (perfMon != null) {
+            perfMon.sampleTimeInterval("Live frame displayed");
+         }
+      }
+      return frontImage_;
+   }
+
+   void shutdown() {
+      synchronized (mailboxLock_) {
+         shutdown_ = true;
+         mailbox_ = null;
+         mailboxLock_.notifyAll();
+      }
+   }
+
+   private void renderLoop() {
+      for (;;) {
+         Frame frame;
+         synchronized (mailboxLock_) {
+            while (mailbox_ == null && !shutdown_) {
+               try {
+                  mailboxLock_.wait();
+               }
+               catch (InterruptedException e) {
+                  shutdown_ = true;
+               }
+            }
+            if (shutdown_) {
+               break;
+            }
+            frame = mailbox_;
+            mailbox_ = null;
+         }
+
+         WallTimer timer = WallTimer.createStarted();
+         BufferedImage image;
+         try {
+            image = backRenderer_.render(frame.pixels_, frame.luts_,
+                  frame.active_, frame.width_, frame.height_);
+         }
+         catch (RuntimeException e) {
+            ReportingUtils.logError(e, "Failed to render live frame");
+            continue;
+         }
+
+         boolean undisplayed;
+         synchronized (paintLock_) {
+            undisplayed = !frontDisplayed_;
+            CompositeRenderer tmp = frontRenderer_;
+            frontRenderer_ = backRenderer_;
+            backRenderer_ = tmp;
+            frontImage_ = image;
+            frontDisplayed_ = false;
+         }
+
+         PerformanceMonitor perfMon = perfMon_;
+         if (perfMon != null) {
+            perfMon.sample("Live frame render time (ms)", timer.getMs());
+            perfMon.sampleTimeInterval("Live frame rendered");
+            perfMon.sample("Live frames dropped after render (%)",
+                  undisplayed ? 100.0 : 0.0);
+         }
+         frameReadyHandler_.run();
+      }
+
+      synchronized (paintLock_) {
+         frontImage_ = null;
+         frontRenderer_.release();
+      }
+      backRenderer_.release();
+   }
+}
@@ -16,6 +16,10 @@ package org.micromanager.display.internal.displaywindow.imagej;
 
 import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.process.LUT;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import org.micromanager.data.Image;
 
 /**
  * Wrapped version of ImageJ's {@code CompositeImage}.
@@ -26,13 +30,120 @@ import ij.ImagePlus;
 public final class MMCompositeImage extends CompositeImage
       implements IMMImagePlus
 {
+   private final ImageJBridge parent_;
+
+   // Used in place of ImageJ's rescaling and blending
+   private final CompositeRenderer compositeRenderer_ =
+         CompositeRenderer.create();
+
    static MMCompositeImage create(ImageJBridge parent, ImagePlus predecessor) {
       return new MMCompositeImage(parent, predecessor);
    }
 
    private MMCompositeImage(ImageJBridge parent, ImagePlus predecessor) {
       super(predecessor, COMPOSITE);
-      // So far we don't use parent reference
+      parent_ = parent;
+   }
+
+   @Override
+   public synchronized void updateImage() {
+      // ImageJ's own composite blending is single-threaded and recomputes the
+      // 8-bit images for all channels on every repaint. We render the RGB
+      // image ourselves (blending all channels in COMPOSITE mode, or just the
+      // current one otherwise); the canvas then paints it as usual via
+      // getImage(). ImageJ is used only for pixel types we don't handle.
+      // While painting, only the part visible in the canvas is rendered.
+
+      // In live mode, the image is rendered in the background
+      BufferedImage liveFrame = parent_.getLiveFrame();
+      if (liveFrame != null) {
+         img = liveFrame;
+         return;
+      }
+      Rectangle region = parent_.getPaintingRegion();
+      if (getMode() == COMPOSITE ?
+            !renderComposite(region) : !renderChannel(region))
+      {
+         super.updateImage();
+      }
+   }
+
+   @Override
+   public java.awt.Image getImage() {
+      // Outside of painting (e.g. ImageJ commands copying the displayed
+      // image), all of the image must be up to date
+      if (img != null && img == compositeRenderer_.getImage() &&
+            parent_.getPaintingRegion() == null &&
+            !compositeRenderer_.isRendered(null))
+      {
+         updateImage();
+      }
+      return super.getImage();
+   }
+
+   @Override
+   public void updateAndDraw() {
+      // ImageJ may have modified the pixels in place
+      compositeRenderer_.invalidate();
+      super.updateAndDraw();
+   }
+
+   @Override
+   public boolean isRegionRendered(Rectangle region) {
+      return img != null && (img != compositeRenderer_.getImage() ||
+            compositeRenderer_.isRendered(region));
+   }
+
+   private boolean renderComposite(Rectangle region) {
+      int nChannels = Math.max(1, getNChannelsWithoutSideEffect());
+      LUT[] allLuts = getLuts();
+      if (allLuts == null || allLuts.length < nChannels) {
+         return false;
+      }
+      int width = parent_.getMMWidth();
+      int height = parent_.getMMHeight();
+      Object[] pixels = new Object[nChannels];
+      LUT[] luts = new LUT[nChannels];
+      for (int c = 0; c < nChannels; ++c) {
+         int flatIndex = getStackIndex(c + 1, getSlice(), getFrame());
+         Image image = parent_.getMMImage(
+               parent_.getMMCoordsForIJFlatIndex(flatIndex));
+         if (image.getNumComponents() != 1 ||
+               image.getWidth() != width || image.getHeight() != height)
+         {
+            return false;
+         }
+         Object raw = image.getRawPixels();
+         if (!(raw instanceof byte[] || raw instanceof short[])) {
+            return false;
+         }
+         pixels[c] = raw;
+         luts[c] = allLuts[c];
+      }
+      img = compositeRenderer_.render(pixels, luts, getActiveChannels(),
+            width, height, region);
+      return true;
+   }
+
+   // In GRAYSCALE and COLOR modes the processor holds the current channel,
+   // with that channel's LUT and scaling applied by the color mode strategy
+   private boolean renderChannel(Rectangle region) {
+      if (ip == null) {
+         return false;
+      }
+      BufferedImage rendered = compositeRenderer_.renderProcessor(ip,
+            Math.max(0, getChannel() - 1), region);
+      if (rendered == null) {
+         return false;
+      }
+      img = rendered;
+      return true;
+   }
+
+   @Override
+   public void close() {
+      compositeRenderer_.release();
+      super.close();
    }
 
    @Override
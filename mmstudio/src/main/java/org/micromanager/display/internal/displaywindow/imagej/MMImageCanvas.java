@@ -86,7 +86,33 @@ public final class MMImageCanvas extends ImageCanvas
       // override paint() without reimplementing a whole bunch of stuff.
 
       // Let ImageJ draw the image, selection, zoom indicator, etc.
-      super.paint(g);
+      // (In composite mode, the image drawn is the one rendered by our
+      // CompositeRenderer; see MMCompositeImage.updateImage().)
+      Object liveFrameLock = parent_.getLiveFramePaintLock();
+      if (liveFrameLock != null) {
+         // The live frame buffers are swapped by the render thread; always
+         // pick up the current one and keep it from being swapped while we
+         // draw it.
+         synchronized (liveFrameLock) {
+            setImageUpdated();
+            super.paint(g);
+         }
+      }
+      else {
+         // When zoomed in, only the visible part of the image is rendered,
+         // so panning or zooming may expose parts that still need rendering
+         Rectangle region = new Rectangle(srcRect);
+         if (!parent_.isIJRegionRendered(region)) {
+            setImageUpdated();
+         }
+         parent_.setPaintingRegion(region);
+         try {
+            super.paint(g);
+         }
+         finally {
+            parent_.setPaintingRegion(null);
+         }
+      }
       parent_.paintMMOverlays((Graphics2D) g, getWidth(), getHeight(), srcRect);
       parent_.ijPaintDidFinish();
    }
@@ -15,6 +15,9 @@
 package org.micromanager.display.internal.displaywindow.imagej;
 
 import ij.ImagePlus;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 
 /**
  * Wrapped version of ImageJ's {@code ImagePlus}.
@@ -27,8 +30,63 @@ public final class MMImagePlus extends ImagePlus implements IMMImagePlus {
       return new MMImagePlus(parent);
    }
 
+   private final ImageJBridge parent_;
+
+   private final CompositeRenderer renderer_ = CompositeRenderer.create();
+
    private MMImagePlus(ImageJBridge parent) {
-      // So far we don't use parent reference
+      parent_ = parent;
+   }
+
+   @Override
+   public synchronized void updateImage() {
+      // In live mode, the image is rendered in the background
+      BufferedImage liveFrame = parent_.getLiveFrame();
+      if (liveFrame != null) {
+         img = liveFrame;
+         return;
+      }
+      // ImageJ rescales 16-bit images to 8-bit in a single thread on every
+      // update; we instead map to RGB via a cached lookup table, and (while
+      // painting) only the part visible in the canvas
+      BufferedImage rendered = ip == null ? null :
+            renderer_.renderProcessor(ip, 0, parent_.getPaintingRegion());
+      if (rendered == null) {
+         super.updateImage();
+         return;
+      }
+      img = rendered;
+   }
+
+   @Override
+   public Image getImage() {
+      // Outside of painting (e.g. ImageJ commands copying the displayed
+      // image), all of the image must be up to date
+      if (img != null && img == renderer_.getImage() &&
+            parent_.getPaintingRegion() == null && !renderer_.isRendered(null))
+      {
+         updateImage();
+      }
+      return super.getImage();
+   }
+
+   @Override
+   public void updateAndDraw() {
+      // ImageJ may have modified the pixels in place
+      renderer_.invalidate();
+      super.updateAndDraw();
+   }
+
+   @Override
+   public boolean isRegionRendered(Rectangle region) {
+      return img != null &&
+            (img != renderer_.getImage() || renderer_.isRendered(region));
+   }
+
+   @Override
+   public void close() {
+      renderer_.release();
+      super.close();
    }
 
    @Override
@@ -891,6 +891,10 @@ public final class MMStudio implements Studio {
 
       }
 
+      if (acquisitionEngine2010_ != null) {
+         acquisitionEngine2010_.invalidateCapabilities();
+      }
+
       ui_.initializeGUI();
 
       return result;
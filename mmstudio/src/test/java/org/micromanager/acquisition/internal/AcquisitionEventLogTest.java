@@ -0,0 +1,92 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcquisitionEventLogTest {
+   @Test
+   public void testRoundTrip() throws Exception {
+      File file = File.createTempFile("AcquisitionEventLogTest", ".bin");
+      file.deleteOnExit();
+      AcquisitionEventLog log = AcquisitionEventLog.create(file);
+      int begin = log.getMessageId("BEGIN acquire");
+      int end = log.getMessageId("END acquire");
+      assertEquals(begin, log.getMessageId("BEGIN acquire"));
+      for (int frame = 0; frame < 1000; ++frame) {
+         log.record(begin, frame, 2, 1, -1);
+         log.record(end, frame, 2, 1, -1);
+      }
+      log.record(log.getMessageId("done"), -1, -1, -1, -1);
+      log.close();
+      assertEquals(0, log.getDroppedStepCount());
+
+      StringWriter text = new StringWriter();
+      FileInputStream in = new FileInputStream(file);
+      try {
+         AcquisitionEventLog.render(in, text);
+      }
+      finally {
+         in.close();
+      }
+      String[] lines = text.toString().split("\n");
+      assertEquals(1 + 2001, lines.length);
+      assertTrue(lines[0].startsWith("# Acquisition event log started"));
+      assertTrue(lines[1].endsWith(
+            "BEGIN acquire (frame 0, position 2, channel 1, slice -1)"));
+      assertTrue(lines[2000].endsWith(
+            "END acquire (frame 999, position 2, channel 1, slice -1)"));
+      assertTrue(lines[2001].endsWith("] done"));
+   }
+
+   @Test
+   public void testLongMessage() throws Exception {
+      File file = File.createTempFile("AcquisitionEventLogTest", ".bin");
+      file.deleteOnExit();
+      AcquisitionEventLog log = AcquisitionEventLog.create(file);
+      StringBuilder message = new StringBuilder();
+      while (message.length() <= 70000) {
+         message.append("long message ");
+      }
+      log.record(log.getMessageId(message.toString()), -1, -1, -1, -1);
+      log.record(log.getMessageId("after"), -1, -1, -1, -1);
+      log.close();
+
+      StringWriter text = new StringWriter();
+      FileInputStream in = new FileInputStream(file);
+      try {
+         AcquisitionEventLog.render(in, text);
+      }
+      finally {
+         in.close();
+      }
+      String[] lines = text.toString().split("\n");
+      assertEquals(1 + 2, lines.length);
+      assertTrue(lines[1].endsWith("] " + message));
+      assertTrue(lines[2].endsWith("] after"));
+   }
+
+   @Test
+   public void testDropsWhenClosed() throws Exception {
+      File file = File.createTempFile("AcquisitionEventLogTest", ".bin");
+      file.deleteOnExit();
+      AcquisitionEventLog log = AcquisitionEventLog.create(file);
+      int id = log.getMessageId("step");
+      log.close();
+      log.record(id, 0, 0, 0, 0);
+      assertEquals(1, log.getDroppedStepCount());
+   }
+}
@@ -0,0 +1,108 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FocusModelTest {
+   private static final double TOLERANCE_UM = 1.0;
+
+   // A 96-well plate, tilted, with uneven wells, drifting 0.5 um per 10 min
+   private static final class Plate {
+      final double[] x = new double[96];
+      final double[] y = new double[96];
+      final double[] bump = new double[96];
+      final Random random = new Random(3);
+      double jump = 0.0;
+
+      Plate() {
+         for (int i = 0; i < 96; ++i) {
+            x[i] = (i % 12) * 9000.0;
+            y[i] = (i / 12) * 9000.0;
+            bump[i] = 4.0 * (random.nextDouble() - 0.5);
+         }
+      }
+
+      double focus(int well, double t) {
+         return 1000.0 + 1e-4 * x[well] - 2e-4 * y[well] + bump[well] +
+               0.5 * t / 600000.0 + jump + 0.05 * random.nextGaussian();
+      }
+   }
+
+   // Returns the number of autofocus runs
+   private static int runTimePoint(FocusModel model, Plate plate, double t,
+         double maxErrorUm)
+   {
+      int autofocusRuns = 0;
+      for (int well = 0; well < 96; ++well) {
+         double tWell = t + well * 2000.0;
+         double z = plate.focus(well, tWell);
+         double predicted = model.predict(well, plate.x[well], plate.y[well],
+               tWell);
+         if (Double.isNaN(predicted)) {
+            model.observe(well, plate.x[well], plate.y[well], tWell, z);
+            ++autofocusRuns;
+         }
+         else {
+            assertTrue("error " + (predicted - z),
+                  Math.abs(predicted - z) < maxErrorUm);
+         }
+      }
+      return autofocusRuns;
+   }
+
+   @Test
+   public void testSmoothDriftSavesAutofocus() {
+      FocusModel model = FocusModel.create(TOLERANCE_UM, 10, 3600000.0);
+      Plate plate = new Plate();
+      // Every well needs autofocus at the first time point
+      assertEquals(96, runTimePoint(model, plate, 0.0, TOLERANCE_UM));
+      int runs = 0;
+      for (int frame = 1; frame < 20; ++frame) {
+         runs += runTimePoint(model, plate, frame * 600000.0, TOLERANCE_UM);
+      }
+      // At least one autofocus per 10 predictions
+      assertTrue(runs >= 19 * 96 / 11);
+      assertTrue("autofocus runs: " + runs, runs < 19 * 96 / 2);
+      assertEquals(19 * 96 - runs, model.getPredictionCount());
+   }
+
+   @Test
+   public void testJumpStopsPredictions() {
+      FocusModel model = FocusModel.create(TOLERANCE_UM, 10, 3600000.0);
+      Plate plate = new Plate();
+      for (int frame = 0; frame < 10; ++frame) {
+         runTimePoint(model, plate, frame * 600000.0, TOLERANCE_UM);
+      }
+      int failedBefore = model.getFailedCheckCount();
+      plate.jump = 5.0;
+      // Predictions made before the next check are off by the jump
+      runTimePoint(model, plate, 10 * 600000.0, 6.0);
+      assertTrue(model.getFailedCheckCount() > failedBefore);
+      // Once the jump is seen, wells are autofocused until the model agrees
+      // again, so predictions are back within the tolerance
+      runTimePoint(model, plate, 11 * 600000.0, 6.0);
+      runTimePoint(model, plate, 12 * 600000.0, TOLERANCE_UM);
+   }
+
+   @Test
+   public void testNoPredictionWithoutData() {
+      FocusModel model = FocusModel.create(TOLERANCE_UM, 10, 3600000.0);
+      assertTrue(Double.isNaN(model.predict(0, 0.0, 0.0, 0.0)));
+      for (int i = 0; i < 5; ++i) {
+         model.observe(i, i * 100.0, 0.0, i * 1000.0, 10.0);
+      }
+      assertTrue(Double.isNaN(model.predict(0, 0.0, 0.0, 5000.0)));
+   }
+}
@@ -0,0 +1,48 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+/**
+ * Times StageRouteOptimizer on a 96 well plate of 11 x 11 sites (about
+ * 10000 positions) with a slow Y axis, and reports the travel time in list
+ * order and in optimized order.
+ *
+ * Usage: StageRouteOptimizerBenchmark [sites per well side]
+ */
+public final class StageRouteOptimizerBenchmark {
+
+   private StageRouteOptimizerBenchmark() {
+   }
+
+   public static void main(String[] args) {
+      int sites = args.length >= 1 ? Integer.parseInt(args[0]) : 11;
+      StageRouteOptimizer optimizer =
+            StageRouteOptimizer.create(new double[] { 20.0, 10.0 });
+      double[][] positions =
+            StageRouteOptimizerTest.makePlate(8, 12, sites, 42);
+      double[] start = new double[] { 0.0, 0.0 };
+
+      long startNs = System.nanoTime();
+      int[] order = optimizer.optimize(positions, start, false);
+      double elapsedMs = (System.nanoTime() - startNs) / 1e6;
+
+      double before = optimizer.getTotalTravelTimeMs(positions,
+            StageRouteOptimizerTest.listOrder(positions.length), start, false);
+      double after = optimizer.getTotalTravelTimeMs(positions, order,
+            start, false);
+      System.out.println(String.format(
+            "%d positions: travel time %.1f s in list order, %.1f s " +
+            "optimized (%.1f%%); optimized in %.0f ms",
+            positions.length, before / 1000.0, after / 1000.0,
+            100.0 * after / before, elapsedMs));
+   }
+}
@@ -0,0 +1,135 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.acquisition.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StageRouteOptimizerTest {
+
+   private static void assertPermutation(int[] order, int n) {
+      assertEquals(n, order.length);
+      int[] sorted = order.clone();
+      Arrays.sort(sorted);
+      for (int i = 0; i < n; ++i) {
+         assertEquals(i, sorted[i]);
+      }
+   }
+
+   @Test
+   public void testShuffledLine() {
+      StageRouteOptimizer optimizer =
+            StageRouteOptimizer.create(new double[] { 1.0, 1.0 });
+      double[][] positions = new double[100][];
+      Random random = new Random(1);
+      List<Integer> xs = new ArrayList<Integer>();
+      for (int i = 0; i < positions.length; ++i) {
+         xs.add(i);
+      }
+      java.util.Collections.shuffle(xs, random);
+      for (int i = 0; i < positions.length; ++i) {
+         positions[i] = new double[] { xs.get(i), 0.0 };
+      }
+      int[] order = optimizer.optimize(positions, null, false);
+      assertPermutation(order, positions.length);
+      assertEquals(99.0,
+            optimizer.getTotalTravelTimeMs(positions, order, null, false),
+            1e-9);
+   }
+
+   @Test
+   public void testPerAxisSpeed() {
+      // Y is 10x slower, so equal distances in Y cost more
+      StageRouteOptimizer optimizer =
+            StageRouteOptimizer.create(new double[] { 10.0, 1.0 });
+      assertEquals(1.0, optimizer.getTravelTimeMs(
+            new double[] { 0.0, 0.0 }, new double[] { 10.0, 1.0 }), 1e-12);
+      assertEquals(10.0, optimizer.getTravelTimeMs(
+            new double[] { 0.0, 0.0 }, new double[] { 10.0, 10.0 }), 1e-12);
+      // Missing coordinates do not count
+      assertEquals(1.0, optimizer.getTravelTimeMs(
+            new double[] { 0.0, Double.NaN }, new double[] { 10.0, 10.0 }),
+            1e-12);
+   }
+
+   @Test
+   public void testStartPosition() {
+      StageRouteOptimizer optimizer =
+            StageRouteOptimizer.create(new double[] { 1.0 });
+      double[][] positions = new double[][] {
+         { 0.0 }, { 5.0 }, { 1.0 }, { 3.0 }, { 4.0 }, { 2.0 } };
+      int[] order = optimizer.optimize(positions,
+            new double[] { 6.0 }, false);
+      assertArrayEquals(new int[] { 1, 4, 3, 5, 2, 0 }, order);
+
+      order = optimizer.optimize(positions, new double[] { 6.0 }, true);
+      assertPermutation(order, positions.length);
+      assertEquals(1, order[0]);
+      assertEquals(10.0,
+            optimizer.getTotalTravelTimeMs(positions, order, null, true),
+            1e-9);
+   }
+
+   /**
+    * Positions of a plate of wells of sites x sites sites, with 10% of
+    * the sites removed, in serpentine order by well and raster order
+    * within wells (as generated by the HCS plugin).
+    */
+   static double[][] makePlate(int rows, int cols, int sites, long seed) {
+      Random random = new Random(seed);
+      List<double[]> list = new ArrayList<double[]>();
+      for (int row = 0; row < rows; ++row) {
+         for (int c = 0; c < cols; ++c) {
+            int col = row % 2 == 0 ? c : cols - 1 - c;
+            for (int sy = 0; sy < sites; ++sy) {
+               for (int sx = 0; sx < sites; ++sx) {
+                  if (random.nextDouble() < 0.1) {
+                     continue;
+                  }
+                  list.add(new double[] {
+                     col * 9000.0 + sx * 500.0, row * 9000.0 + sy * 500.0 });
+               }
+            }
+         }
+      }
+      return list.toArray(new double[list.size()][]);
+   }
+
+   static int[] listOrder(int n) {
+      int[] order = new int[n];
+      for (int i = 0; i < n; ++i) {
+         order[i] = i;
+      }
+      return order;
+   }
+
+   @Test
+   public void testPlate() {
+      // 24 wells of 7 x 7 sites (about 1000 positions), with a slow Y axis
+      StageRouteOptimizer optimizer =
+            StageRouteOptimizer.create(new double[] { 20.0, 10.0 });
+      double[][] positions = makePlate(4, 6, 7, 42);
+      double[] start = new double[] { 0.0, 0.0 };
+      int[] order = optimizer.optimize(positions, start, false);
+
+      assertPermutation(order, positions.length);
+      double before = optimizer.getTotalTravelTimeMs(positions,
+            listOrder(positions.length), start, false);
+      double after = optimizer.getTotalTravelTimeMs(positions, order,
+            start, false);
+      assertTrue(after < 0.8 * before);
+   }
+}
@@ -181,6 +181,44 @@ public class DataCoordsAnimationStateTest {
       assertEquals(0, c.getChannel());
    }
 
+   @Test
+   public void testPredict() {
+      mockAxes_ = Arrays.asList(DefaultCoords.TIME, DefaultCoords.CHANNEL);
+      for (int t = 0; t < 5; ++t) {
+         for (int ch = 0; ch < 2; ++ch) {
+            mockDataset_.put(new DefaultCoords.Builder().
+                  time(t).channel(ch).build(), Boolean.TRUE);
+         }
+      }
+      mockAnimatedAxes_ = Collections.singleton(DefaultCoords.TIME);
+
+      DataCoordsAnimationState instance =
+            DataCoordsAnimationState.create(mockCoordsProvider_);
+      instance.setAnimationPosition(new DefaultCoords.Builder().
+            time(1).channel(1).build());
+
+      List<Coords> predicted = instance.predictAnimationPositions(1, 3);
+      assertEquals(3, predicted.size());
+      assertEquals(2, predicted.get(0).getTime());
+      assertEquals(3, predicted.get(1).getTime());
+      assertEquals(4, predicted.get(2).getTime());
+      assertEquals(1, predicted.get(2).getChannel());
+
+      // Prediction must not move the current position
+      assertEquals(1, instance.getAnimationPosition().getTime());
+
+      // Stepping by 2 wraps around, stopping before returning to start
+      predicted = instance.predictAnimationPositions(2, 10);
+      assertEquals(4, predicted.size());
+      assertEquals(3, predicted.get(0).getTime());
+      assertEquals(0, predicted.get(1).getTime());
+      assertEquals(2, predicted.get(2).getTime());
+      assertEquals(4, predicted.get(3).getTime());
+
+      // Actual advancement agrees with the prediction
+      assertEquals(3, instance.advanceAnimationPosition(2.0).getTime());
+   }
+
    @Test
    public void testEmptyDataset() {
       DataCoordsAnimationState instance =
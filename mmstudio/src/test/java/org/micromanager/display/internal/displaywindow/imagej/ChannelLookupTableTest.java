@@ -0,0 +1,99 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChannelLookupTableTest {
+   private static LUT makeLUT() {
+      byte[] r = new byte[256];
+      byte[] g = new byte[256];
+      byte[] b = new byte[256];
+      for (int i = 0; i < 256; ++i) {
+         r[i] = (byte) i;
+         g[i] = (byte) (255 - i);
+         b[i] = (byte) (i / 2);
+      }
+      return new LUT(r, g, b);
+   }
+
+   private static int rgbForIndex(int index) {
+      return (index << 16) | ((255 - index) << 8) | (index / 2);
+   }
+
+   private static void checkAgainstImageJ(int min, int max) {
+      // ImageJ's conversion of 16-bit to 8-bit for display
+      short[] pixels = new short[65536];
+      for (int v = 0; v < 65536; ++v) {
+         pixels[v] = (short) v;
+      }
+      ShortProcessor proc = new ShortProcessor(256, 256, pixels, null);
+      proc.setMinAndMax(min, max);
+      byte[] indices = (byte[]) ((ByteProcessor) proc.convertToByte(true)).
+            getPixels();
+
+      LUT lut = makeLUT();
+      lut.min = min;
+      lut.max = max;
+      int[] table = ChannelLookupTable.create().getTable(lut, 2);
+      assertEquals(65536, table.length);
+      for (int v = 0; v < 65536; ++v) {
+         assertEquals("value " + v, rgbForIndex(indices[v] & 0xff),
+               table[v]);
+      }
+   }
+
+   @Test
+   public void testMatchesImageJ16Bit() {
+      checkAgainstImageJ(0, 65535);
+      checkAgainstImageJ(100, 4095);
+      checkAgainstImageJ(1000, 1000);
+      checkAgainstImageJ(65535, 65535);
+   }
+
+   @Test
+   public void testTableReusedUntilSettingsChange() {
+      ChannelLookupTable instance = ChannelLookupTable.create();
+      LUT lut = makeLUT();
+      lut.min = 10;
+      lut.max = 200;
+      int[] table = instance.getTable(lut, 1);
+      assertEquals(256, table.length);
+      int before = table[100];
+
+      // Same settings in a different LUT object: no recomputation
+      LUT same = makeLUT();
+      same.min = 10;
+      same.max = 200;
+      assertSame(table, instance.getTable(same, 1));
+      assertEquals(before, table[100]);
+
+      // Changed scaling is picked up
+      same.max = 100;
+      assertEquals(rgbForIndex(255), instance.getTable(same, 1)[150]);
+
+      // Changed colors (e.g. gamma or HiLo) are picked up
+      byte[] r = new byte[256];
+      byte[] g = new byte[256];
+      byte[] b = new byte[256];
+      r[255] = (byte) 0xff;
+      LUT hilo = new LUT(r, g, b);
+      hilo.min = 10;
+      hilo.max = 100;
+      assertEquals(0xff0000, instance.getTable(hilo, 1)[150]);
+      assertEquals(0, instance.getTable(hilo, 1)[50]);
+   }
+}
@@ -86,7 +86,7 @@ public class ChannelCorrectorPanel extends JPanel {
       String channelGroup = dataProvider.getSummaryMetadata().getChannelGroup();
       List<String> channels = dataProvider.getSummaryMetadata().getChannelNameList();
       final MutablePropertyMapView settings = studio.profile().getSettings(this.getClass());
-      final String key = channelGroup + "-" + channels.get(0) + "-" + channels.get(ch2nr_);
+      final String key = transformKey(channelGroup, channels.get(0), channels.get(ch2nr_));
       affineTransform_ = settings.getAffineTransform(key, new AffineTransform());
       super.setLayout(new MigLayout("flowx, fill, insets 8"));
 
@@ -156,6 +156,14 @@ public class ChannelCorrectorPanel extends JPanel {
       }
    }
 
+   /**
+    * Key under which the transform from channel to channel0 is stored in
+    * the profile settings of this class.
+    */
+   static String transformKey(String channelGroup, String channel0, String channel) {
+      return channelGroup + "-" + channel0 + "-" + channel;
+   }
+
    public void updateValues() {
       for (JFormattedTextField ftf : ftfs) {
          try {
@@ -0,0 +1,122 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ChannelCorrector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import java.awt.geom.AffineTransform;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.Studio;
+import org.micromanager.channelcorrector.utils.AffineWarp;
+import org.micromanager.channelcorrector.utils.ImageAffineTransformException;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Registers each channel to the first channel while images are acquired.
+ *
+ * The transforms are looked up in the settings of the Correct Channels window
+ * when the acquisition starts. For each channel, an AffineWarp is made for
+ * the first image and re-used as long as the image size stays the same, so
+ * that per image only the warp itself needs to be applied. Images keep their
+ * size; areas that have no counterpart in the original image become 0.
+ * Images of the first channel, of channels without a transform, and of
+ * unsupported types are passed through unchanged.
+ */
+public class ChannelCorrectorProcessor implements Processor {
+
+   private final Studio studio_;
+   private final int interpolationType_;
+   // Transforms by channel index
+   private final Map<Integer, AffineTransform> transforms_ = new HashMap<>();
+   private final Map<Integer, AffineWarp> warps_ = new HashMap<>();
+   private boolean warned_ = false;
+
+   /**
+    * @param studio The Studio
+    * @param interpolationType AffineTransformOp.TYPE_NEAREST_NEIGHBOR or
+    *                          TYPE_BILINEAR
+    */
+   public ChannelCorrectorProcessor(Studio studio, int interpolationType) {
+      studio_ = studio;
+      interpolationType_ = interpolationType;
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      transforms_.clear();
+      warps_.clear();
+      List<String> channels = summary.getChannelNameList();
+      if (channels == null || channels.size() < 2) {
+         return summary;
+      }
+      MutablePropertyMapView settings = studio_.profile().getSettings(
+              ChannelCorrectorPanel.class);
+      for (int c = 1; c < channels.size(); c++) {
+         AffineTransform transform = settings.getAffineTransform(
+                 ChannelCorrectorPanel.transformKey(summary.getChannelGroup(),
+                         channels.get(0), channels.get(c)), null);
+         if (transform != null && !transform.isIdentity()) {
+            transforms_.put(c, transform);
+         }
+      }
+      return summary;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      int channel = image.getCoords().getChannel();
+      AffineTransform transform = transforms_.get(channel);
+      if (transform == null || image.getNumComponents() != 1
+              || image.getBytesPerPixel() > 2) {
+         context.outputImage(image);
+         return;
+      }
+      try {
+         AffineWarp warp = warps_.get(channel);
+         if (warp == null || warp.getSourceWidth() != image.getWidth()
+                 || warp.getSourceHeight() != image.getHeight()) {
+            warp = new AffineWarp(transform, interpolationType_,
+                    image.getWidth(), image.getHeight(),
+                    image.getWidth(), image.getHeight());
+            warps_.put(channel, warp);
+         }
+         context.outputImage(studio_.data().wrapImage(
+                 warp.apply(image.getRawPixels()), image.getWidth(),
+                 image.getHeight(), image.getBytesPerPixel(), 1,
+                 image.getCoords(),
+                 image.getMetadata().copyBuilderWithNewUUID().build()));
+      } catch (ImageAffineTransformException ex) {
+         if (!warned_) {
+            studio_.logs().showError(ex, ex.getMessage());
+            warned_ = true;
+         }
+         context.outputImage(image);
+      }
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      warps_.clear();
+   }
+}
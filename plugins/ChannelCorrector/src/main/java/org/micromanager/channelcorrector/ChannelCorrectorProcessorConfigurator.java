@@ -0,0 +1,93 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorProcessorConfigurator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ChannelCorrector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import java.awt.event.ActionEvent;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.WindowConstants;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Configuration window for the ChannelCorrectorProcessor.  The transforms
+ * themselves are set in the Correct Channels window.
+ */
+public class ChannelCorrectorProcessorConfigurator extends JFrame
+        implements ProcessorConfigurator {
+   private final MutablePropertyMapView settings_;
+
+   public ChannelCorrectorProcessorConfigurator(Studio studio,
+           PropertyMap configuratorSettings) {
+      settings_ = studio.profile().getSettings(this.getClass());
+      copySettings(settings_, configuratorSettings);
+
+      super.setTitle(ChannelCorrectorProcessorPlugin.MENUNAME);
+      super.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+      super.setLayout(new MigLayout("flowx, fill, insets 8"));
+
+      super.add(new JLabel("<html>Uses the transforms set in the \""
+              + ChannelCorrector.MENUNAME + "\" window<br>"
+              + "for the channel group and channels of the acquisition</html>"),
+              "span 2, wrap");
+
+      final JComboBox interpolationBox = new JComboBox(
+              ChannelCorrectorProcessorPlugin.INTERPOLATIONS);
+      interpolationBox.setSelectedItem(settings_.getString(
+              ChannelCorrectorProcessorPlugin.INTERPOLATION,
+              ChannelCorrectorProcessorPlugin.NEAREST_NEIGHBOR));
+      interpolationBox.addActionListener((ActionEvent e) -> {
+         settings_.putString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                 (String) interpolationBox.getSelectedItem());
+      });
+      super.add(new JLabel("interpolation"));
+      super.add(interpolationBox, "grow, wrap");
+
+      super.pack();
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      return settings_.toPropertyMap();
+   }
+
+   @Override
+   public void showGUI() {
+      setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+      dispose();
+   }
+
+   private void copySettings(MutablePropertyMapView settings,
+           PropertyMap configuratorSettings) {
+      settings.putString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+              configuratorSettings.getString(
+                      ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                      settings.getString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                              ChannelCorrectorProcessorPlugin.NEAREST_NEIGHBOR)));
+   }
+}
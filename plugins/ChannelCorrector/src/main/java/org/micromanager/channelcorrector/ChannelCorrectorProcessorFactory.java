@@ -0,0 +1,43 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorProcessorFactory.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ChannelCorrector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+public class ChannelCorrectorProcessorFactory implements ProcessorFactory {
+   private final Studio studio_;
+   private final PropertyMap settings_;
+
+   public ChannelCorrectorProcessorFactory(Studio studio, PropertyMap settings) {
+      studio_ = studio;
+      settings_ = settings;
+   }
+
+   @Override
+   public Processor createProcessor() {
+      return new ChannelCorrectorProcessor(studio_,
+              ChannelCorrectorProcessorPlugin.getInterpolationType(
+                      settings_.getString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                              ChannelCorrectorProcessorPlugin.NEAREST_NEIGHBOR)));
+   }
+}
@@ -0,0 +1,92 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorProcessorPlugin.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ChannelCorrector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import java.awt.image.AffineTransformOp;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.ProcessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.SciJavaPlugin;
+
+/**
+ * Processor that registers channels to the first channel while images are
+ * being acquired, using the transforms determined in the Correct Channels
+ * window.
+ */
+@Plugin(type = ProcessorPlugin.class)
+public class ChannelCorrectorProcessorPlugin implements ProcessorPlugin, SciJavaPlugin {
+   public static final String MENUNAME = "Channel Corrector";
+   public static final String INTERPOLATION = "Interpolation";
+
+   static final String NEAREST_NEIGHBOR = "Nearest Neighbor";
+   static final String BILINEAR = "Bilinear";
+   static final String[] INTERPOLATIONS = new String[] {NEAREST_NEIGHBOR, BILINEAR};
+
+   private Studio studio_;
+
+   @Override
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public ProcessorConfigurator createConfigurator(PropertyMap settings) {
+      return new ChannelCorrectorProcessorConfigurator(studio_, settings);
+   }
+
+   @Override
+   public ProcessorFactory createFactory(PropertyMap settings) {
+      return new ChannelCorrectorProcessorFactory(studio_, settings);
+   }
+
+   @Override
+   public String getName() {
+      return MENUNAME;
+   }
+
+   @Override
+   public String getHelpText() {
+      return "Registers channels to the first channel during acquisition";
+   }
+
+   @Override
+   public String getVersion() {
+      return "Version 0.1-beta";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "Regents of the University of California, 2020";
+   }
+
+   /**
+    * @param interpolation One of INTERPOLATIONS
+    * @return Interpolation as an AffineTransformOp type
+    */
+   static int getInterpolationType(String interpolation) {
+      if (BILINEAR.equals(interpolation)) {
+         return AffineTransformOp.TYPE_BILINEAR;
+      }
+      return AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
+   }
+}
@@ -0,0 +1,265 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AffineWarp.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ChannelCorrector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector.utils;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.AffineTransformOp;
+import java.util.stream.IntStream;
+
+/**
+ * Applies an affine transform to 8 and 16 bit pixel arrays.
+ *
+ * The mapping from each output pixel to the input is computed once, when the
+ * warp is created, and stored as the index of the (top-left) source pixel
+ * plus, for bilinear interpolation, fixed point weights (14 fractional bits)
+ * along x and y. Applying the warp to an image is then a single pass over
+ * the output with integer arithmetic only, split into bands that are
+ * processed in parallel for larger images. A warp can be re-used for all
+ * images of the same size that need the same transform.
+ *
+ * Pixel centers and the area outside the input image (which becomes 0) are
+ * treated as by AffineTransformOp.
+ */
+public final class AffineWarp {
+   private static final int FRACTION_BITS = 14;
+   private static final int ONE = 1 << FRACTION_BITS;
+   private static final long ROUNDING = 1L << (2 * FRACTION_BITS - 1);
+   // Images smaller than this are not worth splitting up
+   private static final int MIN_BAND_SIZE = 64 * 1024;
+
+   private final int srcWidth_;
+   private final int srcHeight_;
+   private final int dstWidth_;
+   private final int dstHeight_;
+   // Index of the (top-left) source pixel, or -1 when outside the source
+   private final int[] srcIndex_;
+   // x weight in the low, y weight in the high 16 bits; null for nearest
+   // neighbor interpolation
+   private final int[] weights_;
+
+   /**
+    * Precomputes the warp.
+    *
+    * @param transform Transform from input to output coordinates
+    * @param interpolationType AffineTransformOp.TYPE_NEAREST_NEIGHBOR or
+    *           TYPE_BILINEAR. TYPE_BICUBIC is treated as bilinear.
+    * @param srcWidth Width of the input images
+    * @param srcHeight Height of the input images
+    * @param dstWidth Width of the output images
+    * @param dstHeight Height of the output images
+    * @throws ImageAffineTransformException when the transform can not be
+    *           inverted
+    */
+   public AffineWarp(AffineTransform transform, int interpolationType,
+           int srcWidth, int srcHeight, int dstWidth, int dstHeight)
+           throws ImageAffineTransformException {
+      final AffineTransform inverse;
+      try {
+         inverse = transform.createInverse();
+      } catch (NoninvertibleTransformException ex) {
+         throw new ImageAffineTransformException(
+                 "Affine transform can not be inverted");
+      }
+      srcWidth_ = srcWidth;
+      srcHeight_ = srcHeight;
+      dstWidth_ = dstWidth;
+      dstHeight_ = dstHeight;
+      srcIndex_ = new int[dstWidth * dstHeight];
+      // Bilinear needs two input pixels in either direction
+      boolean bilinear = interpolationType != AffineTransformOp.TYPE_NEAREST_NEIGHBOR
+              && srcWidth > 1 && srcHeight > 1;
+      weights_ = bilinear ? new int[dstWidth * dstHeight] : null;
+      double[] m = new double[6];
+      inverse.getMatrix(m);
+      IntStream.range(0, dstHeight).parallel().forEach(y ->
+              computeRow(m, y));
+   }
+
+   /**
+    * Size of the image that AffineTransformOp would create for an input of
+    * the given size, i.e. the extent of the transformed input measured from
+    * the origin.
+    *
+    * @param transform Transform from input to output coordinates
+    * @param width Width of the input image
+    * @param height Height of the input image
+    * @return Size of the output image
+    */
+   public static Dimension outputSize(AffineTransform transform, int width,
+           int height) {
+      Rectangle bounds = transform.createTransformedShape(
+              new Rectangle(0, 0, width, height)).getBounds();
+      return new Dimension(bounds.x + bounds.width, bounds.y + bounds.height);
+   }
+
+   public int getSourceWidth() {
+      return srcWidth_;
+   }
+
+   public int getSourceHeight() {
+      return srcHeight_;
+   }
+
+   public int getWidth() {
+      return dstWidth_;
+   }
+
+   public int getHeight() {
+      return dstHeight_;
+   }
+
+   private void computeRow(double[] m, int y) {
+      double dy = y + 0.5;
+      for (int x = 0; x < dstWidth_; x++) {
+         int i = y * dstWidth_ + x;
+         double dx = x + 0.5;
+         double sx = m[0] * dx + m[2] * dy + m[4];
+         double sy = m[1] * dx + m[3] * dy + m[5];
+         if (!(sx >= 0.0 && sx < srcWidth_ && sy >= 0.0 && sy < srcHeight_)) {
+            srcIndex_[i] = -1;
+            continue;
+         }
+         if (weights_ == null) {
+            srcIndex_[i] = (int) sy * srcWidth_ + (int) sx;
+            continue;
+         }
+         // Interpolate between the centers of the surrounding pixels
+         double u = sx - 0.5;
+         double v = sy - 0.5;
+         int x0 = (int) Math.floor(u);
+         int y0 = (int) Math.floor(v);
+         int wx = (int) Math.round((u - x0) * ONE);
+         int wy = (int) Math.round((v - y0) * ONE);
+         if (wx == ONE) {
+            x0++;
+            wx = 0;
+         }
+         if (wy == ONE) {
+            y0++;
+            wy = 0;
+         }
+         // At the edges, use the edge pixel only
+         if (x0 < 0) {
+            x0 = 0;
+            wx = 0;
+         } else if (x0 >= srcWidth_ - 1) {
+            x0 = srcWidth_ - 2;
+            wx = ONE;
+         }
+         if (y0 < 0) {
+            y0 = 0;
+            wy = 0;
+         } else if (y0 >= srcHeight_ - 1) {
+            y0 = srcHeight_ - 2;
+            wy = ONE;
+         }
+         srcIndex_[i] = y0 * srcWidth_ + x0;
+         weights_[i] = wx | (wy << 16);
+      }
+   }
+
+   /**
+    * Applies the warp.
+    *
+    * @param pixels byte[] or short[] with the input pixels (not modified)
+    * @return New array of the same type with the output pixels
+    * @throws ImageAffineTransformException when the input is not of the size
+    *           this warp was made for, or of an unsupported type
+    */
+   public Object apply(Object pixels) throws ImageAffineTransformException {
+      final int length;
+      if (pixels instanceof byte[]) {
+         length = ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         length = ((short[]) pixels).length;
+      } else {
+         throw new ImageAffineTransformException(
+                 "AffineWarp only works with 8 and 16 bit images");
+      }
+      if (length != srcWidth_ * srcHeight_) {
+         throw new ImageAffineTransformException(
+                 "Image size differs from size of the affine warp");
+      }
+      final int outLength = dstWidth_ * dstHeight_;
+      final Object result = pixels instanceof byte[] ? new byte[outLength]
+              : new short[outLength];
+      int nrBands = Math.max(1, Math.min(
+              Runtime.getRuntime().availableProcessors(),
+              outLength / MIN_BAND_SIZE));
+      if (nrBands == 1) {
+         applyToBand(pixels, result, 0, outLength);
+      } else {
+         final int bandSize = (outLength + nrBands - 1) / nrBands;
+         IntStream.range(0, nrBands).parallel().forEach(band ->
+                 applyToBand(pixels, result, band * bandSize,
+                         Math.min(outLength, (band + 1) * bandSize)));
+      }
+      return result;
+   }
+
+   private void applyToBand(Object pixels, Object result, int start, int end) {
+      final int w = srcWidth_;
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         byte[] out = (byte[]) result;
+         for (int i = start; i < end; i++) {
+            int s = srcIndex_[i];
+            if (s < 0) {
+               continue;
+            }
+            if (weights_ == null) {
+               out[i] = in[s];
+               continue;
+            }
+            int wx = weights_[i] & 0xffff;
+            int wy = weights_[i] >>> 16;
+            int top = (in[s] & 0xff) * (ONE - wx) + (in[s + 1] & 0xff) * wx;
+            int bottom = (in[s + w] & 0xff) * (ONE - wx)
+                    + (in[s + w + 1] & 0xff) * wx;
+            out[i] = (byte) ((top * (long) (ONE - wy) + bottom * (long) wy
+                    + ROUNDING) >> (2 * FRACTION_BITS));
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         short[] out = (short[]) result;
+         for (int i = start; i < end; i++) {
+            int s = srcIndex_[i];
+            if (s < 0) {
+               continue;
+            }
+            if (weights_ == null) {
+               out[i] = in[s];
+               continue;
+            }
+            int wx = weights_[i] & 0xffff;
+            int wy = weights_[i] >>> 16;
+            int top = (in[s] & 0xffff) * (ONE - wx)
+                    + (in[s + 1] & 0xffff) * wx;
+            int bottom = (in[s + w] & 0xffff) * (ONE - wx)
+                    + (in[s + w + 1] & 0xffff) * wx;
+            out[i] = (short) ((top * (long) (ONE - wy) + bottom * (long) wy
+                    + ROUNDING) >> (2 * FRACTION_BITS));
+         }
+      }
+   }
+}
@@ -3,7 +3,6 @@
  */
 package org.micromanager.channelcorrector.utils;
 
-import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
@@ -17,11 +16,9 @@ import org.micromanager.data.Image;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplayWindow;
 
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Dimension;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,9 +29,8 @@ import java.util.List;
 public class ImageAffineTransform {
    private final Studio studio_;
    private final DataViewer dataViewer_;
-   private final ArrayList<AffineTransformOp> affineTransformOps_;
+   private final ArrayList<AffineTransform> affineTransforms_;
    private final int interpolationType_;
-   private final Object renderingHint_;
 
    public ImageAffineTransform(Studio studio, DataViewer dataViewer,
                                ArrayList<AffineTransform> affineTransforms,
@@ -47,37 +43,33 @@ public class ImageAffineTransform {
          interpolationType = AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
       }
       interpolationType_ = interpolationType;
-      affineTransformOps_ = new ArrayList<>(affineTransforms.size());
-      for (AffineTransform aff : affineTransforms) {
-         affineTransformOps_.add(new AffineTransformOp(aff, interpolationType));
-      }
-      // Part of work-around bug in AffineTransformOp
-      Object rh = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
-      if (interpolationType_ == AffineTransformOp.TYPE_BICUBIC) {
-         rh = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
-      } else if (interpolationType_ == AffineTransformOp.TYPE_BILINEAR) {
-         rh = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
-      }
-      renderingHint_ = rh;
+      affineTransforms_ = new ArrayList<>(affineTransforms);
    }
 
    public void apply(boolean allPositions) throws IOException, ImageAffineTransformException {
       final DataProvider dp = dataViewer_.getDataProvider();
       final int maxChan = dp.getNextIndex(Coords.C) - 1;
-      if (maxChan !=  affineTransformOps_.size()) {
+      if (maxChan !=  affineTransforms_.size()) {
          studio_.logs().showError("Unexpected difference between viewer and affine transform data");
          return;
       }
       // Calculate eventual width and height
       Coords.Builder builder = Coordinates.builder().t(0).z(0).p(0).c(0);
-      int minWidth = dp.getAnyImage().getWidth();
-      int minHeight = dp.getAnyImage().getHeight();
-      for (int c = 1; c <= maxChan; c++) {
-         AffineTransformOp affineTransformOp = affineTransformOps_.get(c - 1);
-         Image out = transformImage(dp.getImage(builder.c(c).build()),
-                 affineTransformOp);
-         if (out.getWidth() < minWidth) minWidth = out.getWidth();
-         if (out.getHeight() < minHeight) minHeight = out.getHeight();
+      final int width = dp.getAnyImage().getWidth();
+      final int height = dp.getAnyImage().getHeight();
+      int minWidth = width;
+      int minHeight = height;
+      for (AffineTransform aff : affineTransforms_) {
+         Dimension size = AffineWarp.outputSize(aff, width, height);
+         if (size.width < minWidth) minWidth = size.width;
+         if (size.height < minHeight) minHeight = size.height;
+      }
+      // The mapping between channels is the same for all images, so work it
+      // out once
+      List<AffineWarp> warps = new ArrayList<>(affineTransforms_.size());
+      for (AffineTransform aff : affineTransforms_) {
+         warps.add(new AffineWarp(aff, interpolationType_, width, height,
+                 minWidth, minHeight));
       }
       Datastore outStore = studio_.data().createRAMDatastore();
       List<Integer> positions = new ArrayList<>();
@@ -112,7 +104,7 @@ public class ImageAffineTransform {
                for (int c = 1; c < dp.getNextIndex(Coords.C); c++) {
                   // transform other channel to channel 0, crop to size and add to store
                   inImage = dp.getImage(builder.c(c).z(z).t(t).p(pos).build());
-                  outStore.putImage(transformImage(inImage, affineTransformOps_.get(c-1), minWidth, minHeight));
+                  outStore.putImage(transformImage(inImage, warps.get(c - 1)));
                }
             }
          }
@@ -145,69 +137,24 @@ public class ImageAffineTransform {
 
 
    /**
-    * Given an input image and affine transform, will apply the affine transform
-    * to the image and returned the transformed image (which may be of a different size
-    * from the input image
-    * For now only works on 16 bit (short) images
-    *
-    * @param inImg             - input image
-    * @param aOp                - affine transform operation that will be applied
-    */
-   public Image transformImage(Image inImg, AffineTransformOp aOp
-                            ) throws ImageAffineTransformException {
-
-      if (inImg.getBytesPerPixel() != 2) {
-         throw new ImageAffineTransformException("ImageAffineTransform only works with 2 bytes per pixel");
-      }
-
-      ShortProcessor testProc = (ShortProcessor) studio_.data().ij().createProcessor(inImg);
-      BufferedImage bi16 = testProc.get16BitBufferedImage();
-      BufferedImage afBi16 = aOp.filter(bi16, null);
-      ImagePlus p = new ImagePlus("", afBi16);
-
-      return studio_.data().ij().createImage(p.getProcessor(), inImg.getCoords(), inImg.getMetadata());
-   }
-
-   /**
-    * Uses the provided AffineTransform to transfrom the input image, then crops
-    * it to given width and height
+    * Applies a precomputed affine warp to the input image.  The result has
+    * the size of the output of the warp.
     *
     * @param inImg  Input Image to be transformed
-    * @param aOp     AffineTransformOp to be applied
-    * @param width   Width in pixels of result image
-    * @param height  Height in pixels of result image
-    * @return        Transformed Image
-    * @throws ImageAffineTransformException Currently only thrown when input != 16 bit image
+    * @param warp   AffineWarp made for images of the size of inImg
+    * @return       Transformed Image
+    * @throws ImageAffineTransformException when the image is not 8 or 16 bit
+    *               or not of the size the warp was made for
     */
-   public Image transformImage(Image inImg, AffineTransformOp aOp, int width, int height
-   ) throws ImageAffineTransformException {
-
-      if (inImg.getBytesPerPixel() != 2) {
-         throw new ImageAffineTransformException("ImageAffineTransform only works with 2 bytes per pixel");
+   public Image transformImage(Image inImg, AffineWarp warp)
+           throws ImageAffineTransformException {
+      if (inImg.getNumComponents() != 1) {
+         throw new ImageAffineTransformException(
+                 "ImageAffineTransform only works with 8 and 16 bit images");
       }
-
-      ShortProcessor testProc = (ShortProcessor) studio_.data().ij().createProcessor(inImg);
-      BufferedImage bi16 = testProc.get16BitBufferedImage();
-      BufferedImage aOpResult = new BufferedImage(bi16.getWidth(),
-              bi16.getHeight(), BufferedImage.TYPE_USHORT_GRAY);
-      aOp.filter(bi16, aOpResult);
-      if (interpolationType_ == AffineTransformOp.TYPE_NEAREST_NEIGHBOR) {
-         aOp.filter(bi16, aOpResult);
-      } else {
-         // work around bug in AffineTransformationOp, see:
-         // http://stackoverflow.com/questions/2428109/java-error-on-bilinear-interpolation-of-16-bit-data
-         // Note: although the image looks alright, histogram values are strangely distorted
-         // presumably, since calculations are done with bytes rather than shorts
-         Graphics2D g = aOpResult.createGraphics();
-         g.transform(aOp.getTransform());
-         g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, renderingHint_);
-         g.drawImage(bi16, null, 0, 0);
-      }
-      ImagePlus p = new ImagePlus("", aOpResult);
-      ImageProcessor destProc = p.getProcessor();
-      destProc.setRoi(0, 0, width, height);
-      destProc = destProc.crop();
-
-      return studio_.data().ij().createImage(destProc, inImg.getCoords(), inImg.getMetadata());
+      return studio_.data().wrapImage(warp.apply(inImg.getRawPixels()),
+              warp.getWidth(), warp.getHeight(), inImg.getBytesPerPixel(), 1,
+              inImg.getCoords(),
+              inImg.getMetadata().copyBuilderWithNewUUID().build());
    }
-}
\ No newline at end of file
+}
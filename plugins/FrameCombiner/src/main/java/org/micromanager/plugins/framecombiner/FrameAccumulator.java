@@ -0,0 +1,285 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Combines 8 or 16 bit grayscale frames into a single frame.
+ *
+ * Frames are folded into a running per-pixel int accumulator as they are
+ * added, so that for mean, sum, max and min no frames need to be kept. The
+ * median needs all values of a pixel at once, so for the median the added
+ * frames are kept until the result is requested. The values of blocks of
+ * pixels are then gathered into one row per frame, and for short stacks
+ * sorted with a sorting network that works on all pixels of the block at
+ * once (a sequence of element-wise min/max operations on rows). Longer
+ * stacks use quickselect per pixel.
+ * Large frames are processed in bands of pixels in parallel.
+ *
+ * The result has the same pixel type as the input. Means are truncated,
+ * medians of an even number of frames are the rounded average of the two
+ * middle values, and sums that do not fit are clamped.
+ *
+ * Instances are not thread safe: add() and getResult() must not be called
+ * concurrently.
+ */
+final class FrameAccumulator {
+
+   // Frames smaller than this are not worth splitting up
+   private static final int MIN_BAND_SIZE = 64 * 1024;
+   // Pixels per block for the median
+   private static final int MEDIAN_BLOCK = 1024;
+   // Up to this many frames, a sorting network beats quickselect
+   private static final int MAX_SORTING_NETWORK = 32;
+
+   private final String algo_;
+   private final int nrPixels_;
+   private final int bytesPerPixel_;
+   private final int nrBands_;
+   private int count_ = 0;
+
+   private int[] values_;
+   private List<Object> frames_;
+
+   /**
+    * @param algo One of the FrameCombinerPlugin.PROCESSOR_ALGO_ constants
+    * @param width Width of the frames in pixels
+    * @param height Height of the frames in pixels
+    * @param bytesPerPixel 1 or 2
+    */
+   FrameAccumulator(String algo, int width, int height, int bytesPerPixel) {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new IllegalArgumentException("FrameCombiner : Unsupported pixel size "
+                 + bytesPerPixel + " bytes");
+      }
+      if (!algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)
+              && !algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN)
+              && !algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)
+              && !algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)
+              && !algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+         throw new IllegalArgumentException("FrameCombiner : Algorithm called "
+                 + algo + " is not implemented or not found.");
+      }
+      algo_ = algo;
+      nrPixels_ = width * height;
+      bytesPerPixel_ = bytesPerPixel;
+      nrBands_ = Math.max(1, Math.min(
+              Runtime.getRuntime().availableProcessors(),
+              nrPixels_ / MIN_BAND_SIZE));
+      if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN)) {
+         frames_ = new ArrayList<Object>();
+      } else {
+         values_ = new int[nrPixels_];
+      }
+   }
+
+   /**
+    * Adds a frame. The array is not modified, but is kept for the median, so
+    * it should not be modified by the caller either.
+    *
+    * @param pixels byte[] or short[] with the (unsigned) pixel values
+    */
+   void add(final Object pixels) {
+      int length = pixels instanceof byte[] ? ((byte[]) pixels).length
+              : ((short[]) pixels).length;
+      if (length != nrPixels_) {
+         throw new IllegalArgumentException("FrameCombiner : Frames are of unequal size");
+      }
+      if (frames_ != null) {
+         frames_.add(pixels);
+      } else {
+         final boolean first = count_ == 0;
+         forEachBand((start, end) -> addToBand(pixels, first, start, end));
+      }
+      count_++;
+   }
+
+   /**
+    * @return byte[] or short[] with the combined frame
+    */
+   Object getResult() {
+      if (count_ == 0) {
+         throw new IllegalStateException("FrameCombiner : No frames to combine");
+      }
+      final Object result = bytesPerPixel_ == 1 ? new byte[nrPixels_]
+              : new short[nrPixels_];
+      if (frames_ != null) {
+         forEachBand((start, end) -> medianOfBand(result, start, end));
+      } else {
+         final int divisor = algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)
+                 ? count_ : 1;
+         final int maxValue = bytesPerPixel_ == 1 ? 0xff : 0xffff;
+         forEachBand((start, end) -> {
+            for (int i = start; i < end; i++) {
+               setValue(result, i, Math.min(values_[i] / divisor, maxValue));
+            }
+         });
+      }
+      return result;
+   }
+
+   private interface Band {
+      void process(int start, int end);
+   }
+
+   private void forEachBand(final Band band) {
+      if (nrBands_ == 1) {
+         band.process(0, nrPixels_);
+         return;
+      }
+      final int bandSize = (nrPixels_ + nrBands_ - 1) / nrBands_;
+      IntStream.range(0, nrBands_).parallel().forEach(b ->
+              band.process(b * bandSize, Math.min(nrPixels_, (b + 1) * bandSize)));
+   }
+
+   private void addToBand(Object pixels, boolean first, int start, int end) {
+      final int[] values = values_;
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         if (first) {
+            for (int i = start; i < end; i++) {
+               values[i] = in[i] & 0xff;
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+            for (int i = start; i < end; i++) {
+               values[i] = Math.max(values[i], in[i] & 0xff);
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+            for (int i = start; i < end; i++) {
+               values[i] = Math.min(values[i], in[i] & 0xff);
+            }
+         } else {
+            for (int i = start; i < end; i++) {
+               values[i] += in[i] & 0xff;
+            }
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         if (first) {
+            for (int i = start; i < end; i++) {
+               values[i] = in[i] & 0xffff;
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+            for (int i = start; i < end; i++) {
+               values[i] = Math.max(values[i], in[i] & 0xffff);
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+            for (int i = start; i < end; i++) {
+               values[i] = Math.min(values[i], in[i] & 0xffff);
+            }
+         } else {
+            for (int i = start; i < end; i++) {
+               values[i] += in[i] & 0xffff;
+            }
+         }
+      }
+   }
+
+   private void medianOfBand(Object result, int start, int end) {
+      final int n = count_;
+      final int middle = n / 2;
+      final Object[] frames = frames_.toArray();
+      // Values of a block of pixels, one row per frame
+      final int[][] rows = new int[n][MEDIAN_BLOCK];
+      final int[] buffer = new int[n];
+      for (int blockStart = start; blockStart < end; blockStart += MEDIAN_BLOCK) {
+         final int length = Math.min(MEDIAN_BLOCK, end - blockStart);
+         for (int j = 0; j < n; j++) {
+            int[] row = rows[j];
+            if (bytesPerPixel_ == 1) {
+               byte[] frame = (byte[]) frames[j];
+               for (int p = 0; p < length; p++) {
+                  row[p] = frame[blockStart + p] & 0xff;
+               }
+            } else {
+               short[] frame = (short[]) frames[j];
+               for (int p = 0; p < length; p++) {
+                  row[p] = frame[blockStart + p] & 0xffff;
+               }
+            }
+         }
+         if (n <= MAX_SORTING_NETWORK) {
+            // Odd-even transposition sort of all columns at once
+            for (int round = 0; round < n; round++) {
+               for (int j = round & 1; j + 1 < n; j += 2) {
+                  int[] low = rows[j];
+                  int[] high = rows[j + 1];
+                  for (int p = 0; p < length; p++) {
+                     int a = low[p];
+                     int b = high[p];
+                     low[p] = Math.min(a, b);
+                     high[p] = Math.max(a, b);
+                  }
+               }
+            }
+            int[] upper = rows[middle];
+            int[] lower = rows[middle - 1 + (n & 1)];
+            for (int p = 0; p < length; p++) {
+               setValue(result, blockStart + p, (lower[p] + upper[p] + 1) / 2);
+            }
+         } else {
+            for (int p = 0; p < length; p++) {
+               for (int j = 0; j < n; j++) {
+                  buffer[j] = rows[j][p];
+               }
+               int upper = select(buffer, n, middle);
+               int lower = upper;
+               if ((n & 1) == 0) {
+                  // After select, everything below middle is <= upper
+                  lower = buffer[0];
+                  for (int j = 1; j < middle; j++) {
+                     lower = Math.max(lower, buffer[j]);
+                  }
+               }
+               setValue(result, blockStart + p, (lower + upper + 1) / 2);
+            }
+         }
+      }
+   }
+
+   /**
+    * Rearranges the first n values so that values[k] is the k-th smallest,
+    * with smaller or equal values before it.
+    */
+   private static int select(int[] values, int n, int k) {
+      int left = 0;
+      int right = n - 1;
+      while (left < right) {
+         int pivot = values[(left + right) >>> 1];
+         int i = left;
+         int j = right;
+         while (i <= j) {
+            while (values[i] < pivot) {
+               i++;
+            }
+            while (values[j] > pivot) {
+               j--;
+            }
+            if (i <= j) {
+               int tmp = values[i];
+               values[i] = values[j];
+               values[j] = tmp;
+               i++;
+               j--;
+            }
+         }
+         if (k <= j) {
+            right = j;
+         } else if (k >= i) {
+            left = i;
+         } else {
+            break;
+         }
+      }
+      return values[k];
+   }
+
+   private void setValue(Object pixels, int i, int value) {
+      if (bytesPerPixel_ == 1) {
+         ((byte[]) pixels)[i] = (byte) value;
+      } else {
+         ((short[]) pixels)[i] = (short) value;
+      }
+   }
+}
@@ -1,11 +1,18 @@
 package org.micromanager.plugins.framecombiner;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +39,14 @@ public class FrameCombiner implements Processor {
 
    private HashMap<Coords, SingleCombinationProcessor> singleAquisitions_;
 
+   // Combinations are computed on a thread pool, so that combinations for
+   // different channels and positions proceed concurrently. Images are
+   // output from the pipeline thread, in the order they were queued here;
+   // the pipeline thread waits for a combination once its last image is in.
+   private final ExecutorService executor_;
+   private final Semaphore inFlight_;
+   private final Deque<CompletableFuture<Image>> outputQueue_ = new ArrayDeque<>();
+
    public FrameCombiner(Studio studio, String processorDimension, String processorAlgo,
            int numerOfImagesToProcess, String channelsToAvoidString) {
 
@@ -57,25 +72,34 @@ public class FrameCombiner implements Processor {
       // Each index will be a combination of Z, Channel and StagePosition
       singleAquisitions_ = new HashMap();
 
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      executor_ = Executors.newFixedThreadPool(nrThreads, (Runnable r) -> {
+         Thread thread = new Thread(r, "FrameCombiner");
+         thread.setDaemon(true);
+         return thread;
+      });
+      // Limits the number of images waiting to be combined
+      inFlight_ = new Semaphore(2 * nrThreads);
+
    }
 
    @Override
    public void processImage(Image image, ProcessorContext context) {
 
       if (!imageGoodToProcess(image)) {
-         context.outputImage(image);
+         outputImage(image, context);
          return;
       }
       // when live mode is on and user selected to do z proejct => do nothing
       if (studio_.live().isLiveModeOn()
               && processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
-         context.outputImage(image);
+         outputImage(image, context);
          return;
       }
       // when running MDA without z stack and user want FrameCombiner to combin z frames => do nothing
       if (studio_.getAcquisitionManager().getAcquisitionSettings().slices().size() == 0
               && processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
-         context.outputImage(image);
+         outputImage(image, context);
          return;
       }
 
@@ -108,8 +132,38 @@ public class FrameCombiner implements Processor {
          singleAcquProc = singleAquisitions_.get(coords);
       }
 
-      // This method will output the processed image if needed
-      singleAcquProc.addImage(image, context);
+      // Returns the image to output once this combination is complete
+      CompletableFuture<Image> result = singleAcquProc.addImage(image,
+              executor_, inFlight_);
+      if (result != null) {
+         // Output the combined image as soon as it is ready, as when images
+         // were combined on the pipeline thread
+         outputQueue_.add(result);
+         flushOutput(context, true);
+      }
+   }
+
+   /**
+    * Outputs an image after the combined images queued before it.
+    */
+   private void outputImage(Image image, ProcessorContext context) {
+      outputQueue_.add(CompletableFuture.completedFuture(image));
+      flushOutput(context, false);
+   }
+
+   /**
+    * Outputs queued images, in order, as far as they are available.
+    *
+    * @param wait Whether to wait for images that are still being computed
+    */
+   private void flushOutput(ProcessorContext context, boolean wait) {
+      while (!outputQueue_.isEmpty() && (wait || outputQueue_.peek().isDone())) {
+         try {
+            context.outputImage(outputQueue_.poll().join());
+         } catch (CompletionException ex) {
+            log_.logError(ex, "FrameCombiner : Failed to combine images");
+         }
+      }
    }
 
    @Override
@@ -157,6 +211,8 @@ public class FrameCombiner implements Processor {
    @Override
    public void cleanup(ProcessorContext context) {
 
+      flushOutput(context, true);
+      executor_.shutdown();
       for (Map.Entry<Coords, SingleCombinationProcessor> entry : singleAquisitions_.entrySet()) {
          entry.getValue().clear();
          singleAquisitions_.put(entry.getKey(), null);
@@ -91,7 +91,7 @@ public class FrameCombinerConfigurator extends JFrame implements ProcessorConfig
       jPanel1.add(jLabel2);
 
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN);
-      //processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
+      processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_SUM);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MAX);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MIN);
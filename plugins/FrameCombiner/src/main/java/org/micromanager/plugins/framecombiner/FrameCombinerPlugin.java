@@ -13,11 +13,12 @@ import org.scijava.plugin.Plugin;
 public class FrameCombinerPlugin implements ProcessorPlugin, SciJavaPlugin {
 
    public final static String MENU_NAME = "Frame Combiner";
-   public final static String TOOL_TIP_DESCRIPTION = "Combine multiple images into a single output image (mean/sum/max/min)";
+   public final static String TOOL_TIP_DESCRIPTION = "Combine multiple images into a single output image (mean/median/sum/max/min)";
    public final static String VERSION_NUMBER = "1.0";
    public final static String COPYRIGHT = "Hadrien Mary";
 
    public final static String PROCESSOR_ALGO_MEAN = "Mean";
+   public final static String PROCESSOR_ALGO_MEDIAN = "Median";
    public final static String PROCESSOR_ALGO_SUM = "Sum";
    public final static String PROCESSOR_ALGO_MAX = "Max";
    public final static String PROCESSOR_ALGO_MIN = "Min";
@@ -1,12 +1,14 @@
 package org.micromanager.plugins.framecombiner;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import org.micromanager.LogManager;
 import org.micromanager.PropertyMap;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
-import org.micromanager.data.ProcessorContext;
 
 public class SingleCombinationProcessor {
 
@@ -14,7 +16,6 @@ public class SingleCombinationProcessor {
    private final LogManager log_;
 
    private final Coords coords_;
-   private Image processedImage_;
 
    private final String processorAlgo_;
    private final String processorDimension_;
@@ -26,9 +27,14 @@ public class SingleCombinationProcessor {
 
    private int current_frame_index_;
    private int processed_frame_index_;
-   private Image[] bufferImages_;
    private int currentBufferIndex_;
 
+   // The combination in progress. The accumulator is only used by the tasks
+   // chained on pending_, which run one after the other.
+   private Image firstImage_;
+   private FrameAccumulator accumulator_;
+   private CompletableFuture<Void> pending_;
+
    public SingleCombinationProcessor(Coords coords, Studio studio, String processorAlgo, String processorDimension,
            int numerOfImagesToProcess, boolean processCombinations, boolean isAnyChannelToAvoid) {
 
@@ -45,13 +51,6 @@ public class SingleCombinationProcessor {
 
       current_frame_index_ = 0;
       processed_frame_index_ = 0;
-      bufferImages_ = new Image[numerOfImagesToProcess_];
-
-      for (int i = 0; i < numerOfImagesToProcess_; i++) {
-         bufferImages_[i] = null;
-      }
-
-      processedImage_ = null;
 
    }
 
@@ -61,32 +60,80 @@ public class SingleCombinationProcessor {
               + " | Stage Position : " + Integer.toString(coords_.getStagePosition()));
    }
 
-   void addImage(Image image, ProcessorContext context) {
+   /**
+    * Adds an image to the current combination.  The image is folded into
+    * the combination on the given executor; images of this combination are
+    * processed in the order in which they were added.
+    *
+    * @param image Image to add
+    * @param executor Executor to do the work on
+    * @param inFlight Semaphore with one permit per image that is being
+    *                 folded in; acquired here and released when done
+    * @return Future for the image to output, or null when this image did not
+    *         complete a combination
+    */
+   CompletableFuture<Image> addImage(final Image image, Executor executor,
+           final Semaphore inFlight) {
 
       if (!processCombinations_) {
-         context.outputImage(image);
-         return;
+         return CompletableFuture.completedFuture(image);
       }
 
       currentBufferIndex_ = current_frame_index_ % numerOfImagesToProcess_;
-      bufferImages_[currentBufferIndex_] = image;
+      if (currentBufferIndex_ != 0 && (pending_.isCompletedExceptionally()
+              || image.getWidth() != firstImage_.getWidth()
+              || image.getHeight() != firstImage_.getHeight()
+              || image.getBytesPerPixel() != firstImage_.getBytesPerPixel())) {
+         // Images changed (e.g. ROI or binning in live mode), or combining
+         // failed: drop the combination in progress and start a new one
+         log_.logMessage("FrameCombiner : Dropped incomplete combination of "
+                 + currentBufferIndex_ + " images");
+         current_frame_index_ -= currentBufferIndex_;
+         currentBufferIndex_ = 0;
+      }
+      if (currentBufferIndex_ == 0) {
+         firstImage_ = image;
+         accumulator_ = new FrameAccumulator(processorAlgo_, image.getWidth(),
+                 image.getHeight(), image.getBytesPerPixel());
+         pending_ = CompletableFuture.completedFuture(null);
+      }
 
-      if (currentBufferIndex_ == (numerOfImagesToProcess_ - 1)) {
+      final FrameAccumulator accumulator = accumulator_;
+      inFlight.acquireUninterruptibly();
+      // The permit is released in a stage of its own, which also runs when
+      // this or an earlier image of the combination failed
+      pending_ = pending_.thenRunAsync(() ->
+              accumulator.add(image.getRawPixels()), executor).
+              whenComplete((Void v, Throwable ex) -> inFlight.release());
+      current_frame_index_ += 1;
 
-         try {
-            // Process last `numerOfImagesToProcess_` images
-            processBufferImages();
-         } catch (Exception ex) {
-            log_.logError(ex);
-         }
+      if (currentBufferIndex_ != (numerOfImagesToProcess_ - 1)) {
+         return null;
+      }
 
-         // Clean buffered images
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-            bufferImages_[i] = null;
+      // Work out where the processed image goes now, so that combinations
+      // that complete later can not change it
+      Coords coords = firstImage_.getCoords();
+      if (studio_.acquisitions().isAcquisitionRunning() && !isAnyChannelToAvoid_) {
+         Coords.CoordsBuilder builder = coords.copy();
+         if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_TIME)){
+             builder.time(processed_frame_index_);
+         }else if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)){
+             builder.z(processed_frame_index_);
          }
+         coords = builder.build();
+         processed_frame_index_ += 1;
+      }
+
+      final Coords outputCoords = coords;
+      final Image first = firstImage_;
+      firstImage_ = null;
+      accumulator_ = null;
+      return pending_.thenApplyAsync((Void v) -> {
+         Object resultPixels = accumulator.getResult();
 
          // Add metadata to the processed image
-         Metadata metadata = processedImage_.getMetadata();
+         Metadata metadata = first.getMetadata();
          PropertyMap userData = metadata.getUserData();
          if (userData != null) {
             userData = userData.copy().putBoolean("FrameProcessed", true).build();
@@ -94,257 +141,14 @@ public class SingleCombinationProcessor {
             userData = userData.copy().putInt("FrameProcessed-StackNumber", numerOfImagesToProcess_).build();
             metadata = metadata.copy().userData(userData).build();
          }
-         processedImage_ = processedImage_.copyWithMetadata(metadata);
-
-         // Add correct metadata if in acquisition mode
-         if (studio_.acquisitions().isAcquisitionRunning() && !isAnyChannelToAvoid_) {
-            Coords.CoordsBuilder builder = processedImage_.getCoords().copy();
-            if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_TIME)){
-                builder.time(processed_frame_index_);
-            }else if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)){
-                builder.z(processed_frame_index_);
-            }
-            processedImage_ = processedImage_.copyAtCoords(builder.build());
-            processed_frame_index_ += 1;
-         }
-
-         // Output processed image
-         context.outputImage(processedImage_);
-
-         // Clean processed image
-         processedImage_ = null;
-      }
-
-      current_frame_index_ += 1;
-
+         return studio_.data().wrapImage(resultPixels, first.getWidth(),
+                 first.getHeight(), first.getBytesPerPixel(),
+                 first.getNumComponents(), outputCoords, metadata);
+      }, executor);
    }
 
    public void clear() {
-      for (int i = 0; i < numerOfImagesToProcess_; i++) {
-         bufferImages_[i] = null;
-      }
-      bufferImages_ = null;
-   }
-
-   public void processBufferImages() throws Exception {
-
-      if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)) {
-         meanProcessImages(false);
-      } else if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
-         meanProcessImages(true);
-      } else if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
-         extremaProcessImages("max");
-      } else if (processorAlgo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
-         extremaProcessImages("min");
-      } else {
-         throw new Exception("FrameCombiner : Algorithm called " + processorAlgo_ + " is not implemented or not found.");
-      }
-
-   }
-
-   public void meanProcessImages(boolean onlySum) {
-
-      // Could be moved outside processImage() ?
-      Image img = bufferImages_[0];
-      int bitDepth = img.getMetadata().getBitDepth();
-      int width = img.getWidth();
-      int height = img.getHeight();
-      int bytesPerPixel = img.getBytesPerPixel();
-      int numComponents = img.getNumComponents();
-      Coords coords = img.getCoords();
-      Metadata metadata = img.getMetadata();
-
-      Object resultPixels = null;
-
-      if (bytesPerPixel == 1) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         byte[] newPixelsFinal = new byte[width * height];
-
-         // Sum up all pixels from bufferImages
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            byte[] imgPixels = (byte[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               newPixels[index] = (float) (newPixels[index] + (int) (imgPixels[index] & 0xff));
-            }
-         }
-
-         // Divide by length to get the mean
-         for (int index = 0; index < newPixels.length; index++) {
-            if (onlySum) {
-               newPixelsFinal[index] = (byte) (int) (newPixels[index]);
-            } else {
-               newPixelsFinal[index] = (byte) (int) (newPixels[index] / numerOfImagesToProcess_);
-            }
-         }
-
-         resultPixels = newPixelsFinal;
-
-      } else if (bytesPerPixel == 2) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         short[] newPixelsFinal = new short[width * height];
-
-         // Sum up all pixels from bufferImages
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            short[] imgPixels = (short[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               newPixels[index] = (float) (newPixels[index] + (int) (imgPixels[index] & 0xffff));
-            }
-         }
-
-         // Divide by length to get the mean
-         for (int index = 0; index < newPixels.length; index++) {
-            if (onlySum) {
-               newPixelsFinal[index] = (short) (int) (newPixels[index]);
-            } else {
-               newPixelsFinal[index] = (short) (int) (newPixels[index] / numerOfImagesToProcess_);
-            }
-         }
-
-         resultPixels = newPixelsFinal;
-
-      }
-
-      // Create the processed image
-      processedImage_ = studio_.data().createImage(resultPixels, width, height,
-              bytesPerPixel, numComponents, coords, metadata);
-
-   }
-
-   public void extremaProcessImages(String extremaType) throws Exception {
-
-      // Could be moved outside processImage() ?
-      Image img = bufferImages_[0];
-      int bitDepth = img.getMetadata().getBitDepth();
-      int width = img.getWidth();
-      int height = img.getHeight();
-      int bytesPerPixel = img.getBytesPerPixel();
-      int numComponents = img.getNumComponents();
-      Coords coords = img.getCoords();
-      Metadata metadata = img.getMetadata();
-
-      Object resultPixels = null;
-
-      if (bytesPerPixel == 1) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         byte[] newPixelsFinal = new byte[width * height];
-
-         float currentValue;
-         float actualValue;
-
-         // Init the new array
-         if (extremaType.equals("max")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = 0;
-            }
-         } else if (extremaType.equals("min")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = Byte.MAX_VALUE;
-            }
-         } else {
-            throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-         }
-
-         // Iterate over all frames
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            short[] imgPixels = (short[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               currentValue = (float) (int) (imgPixels[index] & 0xffff);
-               actualValue = (float) newPixels[index];
-
-               if (extremaType.equals("max")) {
-                  newPixels[index] = (float) Math.max(currentValue, actualValue);
-               } else if (extremaType.equals("min")) {
-                  newPixels[index] = (float) Math.min(currentValue, actualValue);
-               } else {
-                  throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-               }
-            }
-         }
-
-         // Convert to short
-         for (int index = 0; index < newPixels.length; index++) {
-            newPixelsFinal[index] = (byte) newPixels[index];
-         }
-
-         resultPixels = newPixelsFinal;
-
-      } else if (bytesPerPixel == 2) {
-
-         // Create new array
-         float[] newPixels = new float[width * height];
-         short[] newPixelsFinal = new short[width * height];
-
-         float currentValue;
-         float actualValue;
-
-         // Init the new array
-         if (extremaType.equals("max")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = 0;
-            }
-         } else if (extremaType.equals("min")) {
-            for (int i = 0; i < newPixels.length; i++) {
-               newPixels[i] = Byte.MAX_VALUE;
-            }
-         } else {
-            throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-         }
-
-         // Iterate over all frames
-         for (int i = 0; i < numerOfImagesToProcess_; i++) {
-
-            // Get current frame pixels
-            img = bufferImages_[i];
-            short[] imgPixels = (short[]) img.getRawPixels();
-
-            // Iterate over all pixels
-            for (int index = 0; index < newPixels.length; index++) {
-               currentValue = (float) (int) (imgPixels[index] & 0xffff);
-               actualValue = (float) newPixels[index];
-
-               if (extremaType.equals("max")) {
-                  newPixels[index] = (float) Math.max(currentValue, actualValue);
-               } else if (extremaType.equals("min")) {
-                  newPixels[index] = (float) Math.min(currentValue, actualValue);
-               } else {
-                  throw new Exception("FrameCombiner : Wrong extremaType " + extremaType);
-               }
-            }
-         }
-
-         // Convert to short
-         for (int index = 0; index < newPixels.length; index++) {
-            newPixelsFinal[index] = (short) newPixels[index];
-         }
-
-         resultPixels = newPixelsFinal;
-
-      }
-
-      // Create the processed image
-      processedImage_ = studio_.data().createImage(resultPixels, width, height,
-              bytesPerPixel, numComponents, coords, metadata);
-
+      firstImage_ = null;
+      accumulator_ = null;
    }
 }
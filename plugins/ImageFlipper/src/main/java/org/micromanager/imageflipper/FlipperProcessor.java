@@ -20,7 +20,6 @@
 
 package org.micromanager.imageflipper;
 
-import ij.process.ImageProcessor;
 
 
 import org.micromanager.data.Image;
@@ -91,21 +90,15 @@ public class FlipperProcessor implements Processor {
    public static Image transformImage(Studio studio, Image image,
          boolean isMirrored, int rotation) {
       
-      ImageProcessor proc = studio.data().ij().createProcessor(image);
+      // RGB images store each pixel as 4 bytes
+      int elementsPerPixel = image.getRawPixels() instanceof byte[] ?
+            image.getBytesPerPixel() : 1;
+      Object pixels = ImageTransform.transform(image.getRawPixels(),
+            image.getWidth(), image.getHeight(), elementsPerPixel,
+            isMirrored, rotation);
+      int[] size = ImageTransform.outputSize(image.getWidth(),
+            image.getHeight(), rotation);
 
-      if (isMirrored) {
-         proc.flipHorizontal();
-      }
-      if (rotation == R90) {
-         proc = proc.rotateRight();
-      }
-      if (rotation == R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
-      }
-      if (rotation == R270) {
-         proc = proc.rotateLeft();
-      }
       // Insert some metadata to indicate what we did to the image.
       PropertyMap.Builder builder;
       PropertyMap userData = image.getMetadata().getUserData();
@@ -118,8 +111,9 @@ public class FlipperProcessor implements Processor {
       builder.putInteger("ImageFlipper-Rotation", rotation);
       builder.putString("ImageFlipper-Mirror", isMirrored ? "On" : "Off");
       Metadata newMetadata = image.getMetadata().copyBuilderPreservingUUID().userData(builder.build()).build();
-      Image result = studio.data().ij().createImage(proc, image.getCoords(),
-            newMetadata);
+      Image result = studio.data().wrapImage(pixels, size[0], size[1],
+            image.getBytesPerPixel(), image.getNumComponents(),
+            image.getCoords(), newMetadata);
       return result;
    }
 }
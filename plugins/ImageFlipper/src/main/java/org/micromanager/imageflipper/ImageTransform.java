@@ -0,0 +1,179 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.imageflipper;
+
+/**
+ * Mirrors and rotates raw pixel arrays in a single pass.
+ *
+ * Mirroring followed by a rotation by a multiple of 90 degrees maps each
+ * output pixel to an input pixel whose index is linear in the output
+ * coordinates, so one loop handles all eight cases: it walks the output
+ * sequentially and steps through the input with fixed strides. When an
+ * output row runs down an input column (90 and 270 degrees), the image is
+ * processed in square tiles so that the input rows being read stay in cache.
+ */
+final class ImageTransform {
+   // Tile edge, in pixels
+   private static final int TILE = 64;
+
+   private ImageTransform() {
+   }
+
+   /**
+    * @param width Width of the input image
+    * @param height Height of the input image
+    * @param rotation Rotation in degrees (FlipperProcessor.R0 ... R270)
+    * @return {width, height} of the output image
+    */
+   static int[] outputSize(int width, int height, int rotation) {
+      if (rotation == FlipperProcessor.R90 || rotation == FlipperProcessor.R270) {
+         return new int[] {height, width};
+      }
+      return new int[] {width, height};
+   }
+
+   /**
+    * Mirrors (horizontally) and then rotates (clockwise) an image.
+    *
+    * @param pixels byte[], short[] or int[] with the input pixels (not
+    *               modified)
+    * @param width Width of the input image
+    * @param height Height of the input image
+    * @param elementsPerPixel Array elements per pixel (4 for RGB images stored
+    *               as byte[], otherwise 1)
+    * @param isMirrored Whether to mirror the image
+    * @param rotation Rotation in degrees (FlipperProcessor.R0 ... R270)
+    * @return New array of the same type with the transformed image
+    */
+   static Object transform(Object pixels, int width, int height,
+         int elementsPerPixel, boolean isMirrored, int rotation) {
+      // Position in the mirrored input (mx, my) as a function of the output
+      // position (dx, dy): mx = mx0 + mxdx * dx + mxdy * dy, same for my
+      int mx0, mxdx, mxdy, my0, mydx, mydy;
+      switch (rotation) {
+         case FlipperProcessor.R90:
+            mx0 = 0; mxdx = 0; mxdy = 1;
+            my0 = height - 1; mydx = -1; mydy = 0;
+            break;
+         case FlipperProcessor.R180:
+            mx0 = width - 1; mxdx = -1; mxdy = 0;
+            my0 = height - 1; mydx = 0; mydy = -1;
+            break;
+         case FlipperProcessor.R270:
+            mx0 = width - 1; mxdx = 0; mxdy = -1;
+            my0 = 0; mydx = 1; mydy = 0;
+            break;
+         default:
+            mx0 = 0; mxdx = 1; mxdy = 0;
+            my0 = 0; mydx = 0; mydy = 1;
+            break;
+      }
+      if (isMirrored) {
+         mx0 = width - 1 - mx0;
+         mxdx = -mxdx;
+         mxdy = -mxdy;
+      }
+      int start = my0 * width + mx0;
+      int strideX = mydx * width + mxdx;
+      int strideY = mydy * width + mxdy;
+      int[] size = outputSize(width, height, rotation);
+      int tile = Math.abs(strideX) == 1 ? Math.max(size[0], 1) : TILE;
+
+      if (pixels instanceof byte[] && elementsPerPixel == 4) {
+         byte[] in = (byte[]) pixels;
+         byte[] out = new byte[in.length];
+         for (int ty = 0; ty < size[1]; ty += tile) {
+            int yEnd = Math.min(ty + tile, size[1]);
+            for (int tx = 0; tx < size[0]; tx += tile) {
+               int xEnd = Math.min(tx + tile, size[0]);
+               for (int dy = ty; dy < yEnd; dy++) {
+                  int src = start + tx * strideX + dy * strideY;
+                  int dst = dy * size[0] + tx;
+                  for (int dx = tx; dx < xEnd; dx++) {
+                     int s = 4 * src;
+                     int d = 4 * dst++;
+                     out[d] = in[s];
+                     out[d + 1] = in[s + 1];
+                     out[d + 2] = in[s + 2];
+                     out[d + 3] = in[s + 3];
+                     src += strideX;
+                  }
+               }
+            }
+         }
+         return out;
+      } else if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         byte[] out = new byte[in.length];
+         for (int ty = 0; ty < size[1]; ty += tile) {
+            int yEnd = Math.min(ty + tile, size[1]);
+            for (int tx = 0; tx < size[0]; tx += tile) {
+               int xEnd = Math.min(tx + tile, size[0]);
+               for (int dy = ty; dy < yEnd; dy++) {
+                  int src = start + tx * strideX + dy * strideY;
+                  int dst = dy * size[0] + tx;
+                  for (int dx = tx; dx < xEnd; dx++) {
+                     out[dst++] = in[src];
+                     src += strideX;
+                  }
+               }
+            }
+         }
+         return out;
+      } else if (pixels instanceof short[]) {
+         short[] in = (short[]) pixels;
+         short[] out = new short[in.length];
+         for (int ty = 0; ty < size[1]; ty += tile) {
+            int yEnd = Math.min(ty + tile, size[1]);
+            for (int tx = 0; tx < size[0]; tx += tile) {
+               int xEnd = Math.min(tx + tile, size[0]);
+               for (int dy = ty; dy < yEnd; dy++) {
+                  int src = start + tx * strideX + dy * strideY;
+                  int dst = dy * size[0] + tx;
+                  for (int dx = tx; dx < xEnd; dx++) {
+                     out[dst++] = in[src];
+                     src += strideX;
+                  }
+               }
+            }
+         }
+         return out;
+      } else if (pixels instanceof int[]) {
+         int[] in = (int[]) pixels;
+         int[] out = new int[in.length];
+         for (int ty = 0; ty < size[1]; ty += tile) {
+            int yEnd = Math.min(ty + tile, size[1]);
+            for (int tx = 0; tx < size[0]; tx += tile) {
+               int xEnd = Math.min(tx + tile, size[0]);
+               for (int dy = ty; dy < yEnd; dy++) {
+                  int src = start + tx * strideX + dy * strideY;
+                  int dst = dy * size[0] + tx;
+                  for (int dx = tx; dx < xEnd; dx++) {
+                     out[dst++] = in[src];
+                     src += strideX;
+                  }
+               }
+            }
+         }
+         return out;
+      }
+      throw new IllegalArgumentException("Unsupported pixel type " +
+            pixels.getClass().getName());
+   }
+}
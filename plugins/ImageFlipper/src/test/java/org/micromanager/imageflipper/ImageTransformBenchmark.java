@@ -0,0 +1,102 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.imageflipper;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares ImageTransform with the ImageJ based code that FlipperProcessor
+ * used before (copy into an ImageProcessor, flipHorizontal, rotateRight or
+ * rotateLeft, copy into the new Image), for 16 bit images, and checks that
+ * both give the same result.
+ *
+ * Usage: ImageTransformBenchmark [width height [iterations]]
+ * (needs ImageJ on the classpath)
+ */
+public final class ImageTransformBenchmark {
+
+   private ImageTransformBenchmark() {
+   }
+
+   public static void main(String[] args) {
+      int width = args.length >= 2 ? Integer.parseInt(args[0]) : 2048;
+      int height = args.length >= 2 ? Integer.parseInt(args[1]) : 2048;
+      int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : 20;
+
+      Random random = new Random(1);
+      short[] pixels = new short[width * height];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) random.nextInt(65536);
+      }
+      int[] rotations = {FlipperProcessor.R0, FlipperProcessor.R90,
+         FlipperProcessor.R180, FlipperProcessor.R270};
+      for (boolean isMirrored : new boolean[] {false, true}) {
+         for (int rotation : rotations) {
+            short[] reference = null;
+            short[] result = null;
+            double imageJMs = 0.0;
+            double transformMs = 0.0;
+            for (int round = 0; round < 2; round++) { // first round is warm-up
+               long start = System.nanoTime();
+               for (int i = 0; i < iterations; i++) {
+                  reference = imageJTransform(pixels, width, height,
+                        isMirrored, rotation);
+               }
+               imageJMs = (System.nanoTime() - start) / 1e6 / iterations;
+               start = System.nanoTime();
+               for (int i = 0; i < iterations; i++) {
+                  result = (short[]) ImageTransform.transform(pixels, width,
+                        height, 1, isMirrored, rotation);
+               }
+               transformMs = (System.nanoTime() - start) / 1e6 / iterations;
+            }
+            System.out.printf("%d x %d, mirror %-5b rotation %3d: ImageJ " +
+                  "%.2f ms, ImageTransform %.2f ms (%.1fx)%s%n", width,
+                  height, isMirrored, rotation, imageJMs, transformMs,
+                  imageJMs / transformMs,
+                  Arrays.equals(reference, result) ? "" : "  RESULTS DIFFER");
+         }
+      }
+   }
+
+   // The transformation of FlipperProcessor before ImageTransform (the clones
+   // stand for the copies made by createProcessor and createImage)
+   private static short[] imageJTransform(short[] pixels, int width,
+         int height, boolean isMirrored, int rotation) {
+      ImageProcessor proc = new ShortProcessor(width, height, pixels.clone(),
+            null);
+      if (isMirrored) {
+         proc.flipHorizontal();
+      }
+      if (rotation == FlipperProcessor.R90) {
+         proc = proc.rotateRight();
+      }
+      if (rotation == FlipperProcessor.R180) {
+         proc = proc.rotateRight();
+         proc = proc.rotateRight();
+      }
+      if (rotation == FlipperProcessor.R270) {
+         proc = proc.rotateLeft();
+      }
+      return ((short[]) proc.getPixels()).clone();
+   }
+}
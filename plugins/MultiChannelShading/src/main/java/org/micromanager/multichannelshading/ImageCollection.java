@@ -27,7 +27,14 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.awt.Rectangle;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.micromanager.Studio;
 
 /**
@@ -36,35 +43,54 @@ import org.micromanager.Studio;
  * Images should be provided as full frame, unbinned images.  When binned 
  * images, and/or ROIs of (binned) images are requested, these are provided
  * on the fly, and a copy is cached for later use.
+ * The cache of derived images is limited to CACHE_BUDGET bytes; when it is
+ * full, the least recently used images are dropped.  Derived images for the
+ * current camera settings can be prepared ahead of time with warmUp().
+ * Images that are in use can be pinned; when a pinned image is dropped from
+ * the cache, its GPU buffers are only released once it is unpinned.
  * @author nico
  */
 public class ImageCollection {
+   // Memory budget for derived (binned and/or cropped) images.  Each derived
+   // image is charged for its pixels plus the ShadingKernel table that is
+   // computed from it
+   static final long CACHE_BUDGET = 256L * 1024 * 1024;
+
    private final Studio gui_;
-   private final HashMap<String, ImagePlusInfo> background_;
-   private final HashMap<String, HashMap<String, ImagePlusInfo>> flatFields_;
+   private ImagePlusInfo background_;
+   private final HashMap<String, ImagePlusInfo> flatFields_;
    private final HashMap<String, String> presetFiles_;
+   // Derived images, in order of last use.  Keys are made by cacheKey()
+   private final LinkedHashMap<String, ImagePlusInfo> derived_;
+   private long derivedBytes_ = 0;
+   // Number of pins per image, and pinned images dropped from the cache
+   private final IdentityHashMap<ImagePlusInfo, Integer> pins_;
+   private final Set<ImagePlusInfo> dropped_;
    private String backgroundFilePath_;
 
-   private final String BASEIMAGE = "base";
+   // Names of the images in the cache of derived images
+   private final String BACKGROUND = "background";
+   private final String FLATFIELD = "flatfield:";
    
    public ImageCollection(Studio gui) {
       gui_ = gui;
-      background_ = new HashMap<>();
       flatFields_ = new HashMap<>();
       presetFiles_ = new HashMap<>();
+      derived_ = new LinkedHashMap<>(16, 0.75f, true);
+      pins_ = new IdentityHashMap<>();
+      dropped_ = Collections.newSetFromMap(new IdentityHashMap<>());
    }
    
-   public void setBackground(String file) throws ShadingException {
-      background_.clear();
+   public synchronized void setBackground(String file) throws ShadingException {
+      background_ = null;
+      removeDerived(BACKGROUND);
       if (!file.equals("")) {
          ij.io.Opener opener = new ij.io.Opener();
          ImagePlus ip = opener.openImage(file);
          if (ip == null) {
             throw new ShadingException("Failed to open file: " + file);
          }
-         ImagePlusInfo bg = new ImagePlusInfo(ip);
-         background_.put(BASEIMAGE, bg);
-         background_.put(makeKey(1, bg.getOriginalRoi()), bg);
+         background_ = new ImagePlusInfo(ip);
       }
       backgroundFilePath_ = file;
    }
@@ -73,26 +99,13 @@ public class ImageCollection {
       return backgroundFilePath_;
    }
 
-   public ImagePlusInfo getBackground() {
-      return background_.get(BASEIMAGE);
+   public synchronized ImagePlusInfo getBackground() {
+      return background_;
    }
    
-   public ImagePlusInfo getBackground(int binning, Rectangle roi) 
+   public synchronized ImagePlusInfo getBackground(int binning, Rectangle roi) 
            throws ShadingException {
-      String key = makeKey(binning, roi);
-      if (background_.containsKey(key)) {
-         return background_.get(key);
-      }
-      // key not found, so derive the image from the original
-      ImagePlusInfo bg = getBackground();
-      if (bg == null) {
-         return null;
-      }
-      
-      ImagePlusInfo derivedBg = makeDerivedImage(bg, binning, roi); 
-      // put it in our cache
-      background_.put(makeKey(binning, roi), derivedBg);
-      return derivedBg;
+      return getDerived(BACKGROUND, background_, binning, roi);
    }
    
    /**
@@ -170,11 +183,10 @@ public class ImageCollection {
 
          flatField = new ImagePlusInfo(fp);
 
-         HashMap<String, ImagePlusInfo> newFlatField =
-                 new HashMap<String, ImagePlusInfo>();
-         newFlatField.put(BASEIMAGE, flatField);
-         newFlatField.put(makeKey(1, fp.getRoi()), flatField);
-         flatFields_.put(preset, newFlatField);
+         synchronized (this) {
+            removeDerived(FLATFIELD + preset);
+            flatFields_.put(preset, flatField);
+         }
       } catch (ShadingException ex) {
          gui_.logs().logError("Shading plugin, addFlatField in ImageCollection: " + 
                  ex.getMessage());
@@ -189,40 +201,158 @@ public class ImageCollection {
       return null;
    }
 
-   public ImagePlusInfo getFlatField(String preset) {
-      return flatFields_.get(preset).get(BASEIMAGE);
+   public synchronized ImagePlusInfo getFlatField(String preset) {
+      return flatFields_.get(preset);
    }
 
-   public void clearFlatFields() {
+   public synchronized void clearFlatFields() {
+      for (String preset : flatFields_.keySet()) {
+         removeDerived(FLATFIELD + preset);
+      }
       flatFields_.clear();
    }
 
-   public void removeFlatField(String preset) {
+   public synchronized void removeFlatField(String preset) {
+      removeDerived(FLATFIELD + preset);
       flatFields_.remove(preset);
    }
 
-   public ImagePlusInfo getFlatField(String preset, int binning, Rectangle roi)
+   public synchronized ImagePlusInfo getFlatField(String preset, int binning, 
+           Rectangle roi) throws ShadingException {
+      return getDerived(FLATFIELD + preset, flatFields_.get(preset), binning,
+              roi);
+   }
+
+   /**
+    * Keeps the GPU buffers of an image until unpin() is called, even when the
+    * image is dropped from the cache in the meantime.  Otherwise, buffers
+    * created for a dropped image would never be released.
+    * @param image Image returned by this collection, or null
+    */
+   public synchronized void pin(ImagePlusInfo image) {
+      if (image != null) {
+         pins_.merge(image, 1, Integer::sum);
+      }
+   }
+
+   /**
+    * Undoes pin(), releasing the GPU buffers of the image when it was dropped
+    * from the cache while pinned.
+    * @param image Image passed to pin(), or null
+    */
+   public synchronized void unpin(ImagePlusInfo image) {
+      if (image == null || !pins_.containsKey(image)) {
+         return;
+      }
+      if (pins_.merge(image, -1, Integer::sum) == 0) {
+         pins_.remove(image);
+         if (dropped_.remove(image)) {
+            image.releaseCLBuffers();
+         }
+      }
+   }
+
+   /**
+    * Prepares the background and the flatfields of the given presets for the
+    * given binning and ROI, including the tables used by ShadingKernel, so
+    * that the first images processed with these settings do not have to wait.
+    * Presets without flatfield are ignored.
+    * @param presets Channel presets
+    * @param binning Camera binning
+    * @param roi Camera ROI (in binned pixels)
+    * @throws ShadingException 
+    */
+   public void warmUp(List<String> presets, int binning, Rectangle roi) 
            throws ShadingException {
-      String key = makeKey(binning, roi);
-      if (flatFields_.get(preset).containsKey(key)) {
-         return flatFields_.get(preset).get(key);
+      ImagePlusInfo bg = getBackground(binning, roi);
+      if (bg != null) {
+         bg.getBackgroundValues();
       }
-      // key not found, so derive the image from the original
-      ImagePlusInfo ff = getFlatField(preset);
-      if (ff == null) {
+      for (String preset : presets) {
+         ImagePlusInfo ff = null;
+         synchronized (this) {
+            if (flatFields_.containsKey(preset)) {
+               ff = getFlatField(preset, binning, roi);
+            }
+         }
+         if (ff != null) {
+            ff.getGains();
+         }
+      }
+   }
+
+   /**
+    * Returns the version of a base image for the given binning and ROI,
+    * deriving it (and adding it to the cache) when needed.
+    * @param name BACKGROUND, or FLATFIELD followed by the preset
+    * @param base Full frame, unbinned image, or null
+    */
+   private ImagePlusInfo getDerived(String name, ImagePlusInfo base, 
+           int binning, Rectangle roi) throws ShadingException {
+      if (base == null) {
          return null;
       }
-      ImagePlusInfo derivedIp = makeDerivedImage(ff, binning, roi);
-      // add derived image into our cache
-      HashMap<String, ImagePlusInfo> tmp = flatFields_.get(preset);
-      tmp.put(makeKey(binning, roi), derivedIp);
-      return derivedIp;
+      if (binning == 1 && (roi == null || roi.width == 0 
+              || roi.equals(base.getOriginalRoi()))) {
+         return base;
+      }
+      String key = cacheKey(name, binning, roi);
+      ImagePlusInfo result = derived_.get(key);
+      if (result == null) {
+         result = makeDerivedImage(base, binning, roi);
+         derived_.put(key, result);
+         derivedBytes_ += cacheCost(result);
+         trimCache();
+      }
+      return result;
    }
 
-   private String makeKey(int binning, Rectangle roi) {
-      if (binning == 1 && (roi == null || roi.width == 0)) {
-         return BASEIMAGE;
+   private String cacheKey(String name, int binning, Rectangle roi) {
+      return name + "\n" + makeKey(binning, roi);
+   }
+
+   private static long cacheCost(ImagePlusInfo image) {
+      return (long) image.getWidth() * image.getHeight() 
+              * (image.getBytesPerPixel() + 4);
+   }
+
+   // Drops least recently used images until the cache fits its budget, but
+   // always keeps the most recent one
+   private void trimCache() {
+      Iterator<ImagePlusInfo> it = derived_.values().iterator();
+      while (derivedBytes_ > CACHE_BUDGET && derived_.size() > 1) {
+         ImagePlusInfo image = it.next();
+         it.remove();
+         derivedBytes_ -= cacheCost(image);
+         release(image);
+      }
+   }
+
+   private void removeDerived(String name) {
+      String prefix = name + "\n";
+      Iterator<Map.Entry<String, ImagePlusInfo>> it = 
+              derived_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<String, ImagePlusInfo> entry = it.next();
+         if (entry.getKey().startsWith(prefix)) {
+            it.remove();
+            derivedBytes_ -= cacheCost(entry.getValue());
+            release(entry.getValue());
+         }
+      }
+   }
+
+   // Releases the GPU buffers of an image dropped from the cache, or, when it
+   // is pinned, marks them to be released by unpin()
+   private void release(ImagePlusInfo image) {
+      if (pins_.containsKey(image)) {
+         dropped_.add(image);
+      } else {
+         image.releaseCLBuffers();
       }
+   }
+
+   private String makeKey(int binning, Rectangle roi) {
       String key = "" + binning;
       if (roi != null) {
          key = binning + "-" + roi.x + "-" + roi.y + "-" + roi.width + "-"
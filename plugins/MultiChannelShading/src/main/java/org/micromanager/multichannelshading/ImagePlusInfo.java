@@ -48,6 +48,8 @@ public class ImagePlusInfo extends ImagePlus{
    private final int binning_;
    private final Rectangle roi_;
    private final Map<ClearCLContext, ClearCLBuffer> clBuffers_;
+   private int[] gains_;
+   private int[] backgroundValues_;
     
    
    public ImagePlusInfo(ImagePlus ip, int binning, Rectangle roi) {
@@ -112,4 +114,41 @@ public class ImagePlusInfo extends ImagePlus{
       }
       return clBuffers_.get(cclContext);
    }
+   
+   /**
+    * Releases the copies of this image on the GPU (if any)
+    */
+   public void releaseCLBuffers() {
+      for (ClearCLBuffer clBuffer : clBuffers_.values()) {
+         if (clBuffer != null) {
+            clBuffer.close();
+         }
+      }
+      clBuffers_.clear();
+   }
+   
+   /**
+    * Provides the pixels of this (flatfield) image as fixed point gains for
+    * the CPU ShadingKernel. Like the GPU data, these are computed once and
+    * cached.
+    * @return - Fixed point gains, one per pixel
+    */
+   public synchronized int[] getGains() {
+      if (gains_ == null) {
+         gains_ = ShadingKernel.makeGains(super.getProcessor());
+      }
+      return gains_;
+   }
+   
+   /**
+    * Provides the pixels of this (background) image as unsigned ints for the
+    * CPU ShadingKernel. Computed once and cached.
+    * @return - Pixel values
+    */
+   public synchronized int[] getBackgroundValues() {
+      if (backgroundValues_ == null) {
+         backgroundValues_ = ShadingKernel.makeBackground(super.getProcessor());
+      }
+      return backgroundValues_;
+   }
 }
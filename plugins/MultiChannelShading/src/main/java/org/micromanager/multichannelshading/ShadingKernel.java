@@ -0,0 +1,155 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ShadingKernel.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.multichannelshading;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+/**
+ * CPU implementation of background subtraction and flatfield correction,
+ * used when OpenCL is not available.
+ *
+ * The flatfield is applied as a table of fixed point gains (16 fractional
+ * bits), and the background as a table of unsigned ints, both computed once
+ * per flatfield/background image (see ImagePlusInfo). Each output pixel is
+ * then computed with integer arithmetic only, as in the OpenCL kernels:
+ * (pixel - background) * gain, rounded, and clamped to the pixel range.
+ * Large images are split into bands that are processed in parallel.
+ */
+final class ShadingKernel {
+   static final int GAIN_SHIFT = 16;
+   private static final long ROUNDING = 1L << (GAIN_SHIFT - 1);
+   // Images smaller than this are not worth splitting up
+   private static final int MIN_BAND_SIZE = 64 * 1024;
+
+   private ShadingKernel() {
+   }
+
+   /**
+    * Converts flatfield factors to fixed point gains. Non-finite or huge
+    * factors (from dark pixels in the flatfield image) saturate.
+    *
+    * @param flatField FloatProcessor with the flatfield factors
+    * @return fixed point gains, one per pixel
+    */
+   static int[] makeGains(ImageProcessor flatField) {
+      float[] factors = (float[]) flatField.getPixels();
+      int[] gains = new int[factors.length];
+      for (int i = 0; i < factors.length; i++) {
+         double gain = Math.rint(factors[i] * (double) (1 << GAIN_SHIFT));
+         if (gain >= Integer.MAX_VALUE) {
+            gains[i] = Integer.MAX_VALUE;
+         } else if (gain > 0.0) {
+            gains[i] = (int) gain;
+         } // 0 for negative gains and NaN
+      }
+      return gains;
+   }
+
+   /**
+    * Extracts the (unsigned) pixel values of a background image. Values of
+    * float backgrounds are converted the same way as in
+    * ImageUtils.subtractPixelArrays.
+    *
+    * @param background Byte, Short or FloatProcessor
+    * @return pixel values
+    */
+   static int[] makeBackground(ImageProcessor background) {
+      int nrPixels = background.getWidth() * background.getHeight();
+      int[] values = new int[nrPixels];
+      for (int i = 0; i < nrPixels; i++) {
+         if (background instanceof FloatProcessor) {
+            values[i] = ImageUtils.unsignedValue((short) background.getf(i));
+         } else {
+            values[i] = background.get(i);
+         }
+      }
+      return values;
+   }
+
+   /**
+    * Applies background subtraction and/or flatfield correction.
+    *
+    * @param pixels byte[] or short[] with the input pixels (not modified)
+    * @param background Background values (from makeBackground), or null
+    * @param gains Flatfield gains (from makeGains), or null
+    * @return new array of the same type and length as pixels
+    * @throws ShadingException when the background or flatfield does not
+    *         match the image size
+    */
+   static Object apply(Object pixels, int[] background, int[] gains)
+           throws ShadingException {
+      final int length = pixels instanceof byte[] ? ((byte[]) pixels).length :
+            ((short[]) pixels).length;
+      if ((background != null && background.length != length)
+              || (gains != null && gains.length != length)) {
+         throw new ShadingException("Error: Images are of unequal size");
+      }
+      final Object result = pixels instanceof byte[] ? new byte[length] :
+            new short[length];
+      int nrBands = Math.max(1, Math.min(
+              Runtime.getRuntime().availableProcessors(),
+              length / MIN_BAND_SIZE));
+      if (nrBands == 1) {
+         applyToBand(pixels, result, background, gains, 0, length);
+      } else {
+         final int bandSize = (length + nrBands - 1) / nrBands;
+         IntStream.range(0, nrBands).parallel().forEach(band ->
+                 applyToBand(pixels, result, background, gains,
+                         band * bandSize,
+                         Math.min(length, (band + 1) * bandSize)));
+      }
+      return result;
+   }
+
+   private static void applyToBand(Object pixels, Object result,
+           int[] background, int[] gains, int start, int end) {
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         byte[] out = (byte[]) result;
+         for (int i = start; i < end; i++) {
+            int value = in[i] & 0xff;
+            if (background != null) {
+               value = Math.max(0, value - background[i]);
+            }
+            if (gains != null) {
+               value = (int) Math.min(
+                       (value * (long) gains[i] + ROUNDING) >> GAIN_SHIFT, 0xff);
+            }
+            out[i] = (byte) value;
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         short[] out = (short[]) result;
+         for (int i = start; i < end; i++) {
+            int value = in[i] & 0xffff;
+            if (background != null) {
+               value = Math.max(0, value - background[i]);
+            }
+            if (gains != null) {
+               value = (int) Math.min(
+                       (value * (long) gains[i] + ROUNDING) >> GAIN_SHIFT, 0xffff);
+            }
+            out[i] = (short) value;
+         }
+      }
+   }
+}
@@ -31,7 +31,6 @@ import clearcl.backend.ClearCLBackends;
 import clearcl.enums.BuildStatus;
 import clearcl.exceptions.OpenCLException;
 import coremem.enums.NativeTypeEnum;
-import ij.process.ImageProcessor;
 
 import java.awt.Rectangle;
 import java.io.IOException;
@@ -157,19 +156,42 @@ public class ShadingProcessor implements Processor {
          }
          studio_.logs().showError("No matching channel and group found.  Add group " +
                  summaryMetadata_.getChannelGroup() + " and preset(s): " + presetB.toString());
+      } else {
+         warmUp(summaryMetadata_.getChannelNameList());
       }
       return source;
    }
 
+   /**
+    * Prepares the background and flatfield images of the given presets for
+    * the current camera binning and ROI, so that processing of the first
+    * images does not have to wait for them.
+    * 
+    * @param presets channel presets of the acquisition
+    */
+   private void warmUp(List<String> presets) {
+      try {
+         String camera = studio_.core().getCameraDevice();
+         int binning = 1;
+         if (studio_.core().hasProperty(camera, "Binning")) {
+            // Same interpretation as used for the image metadata, e.g. "2x2"
+            String binningString = studio_.core().getPropertyFromCache(
+                    camera, "Binning");
+            binning = Integer.parseInt(binningString.split("x", 2)[0]);
+         }
+         imageCollection_.warmUp(presets, binning, studio_.core().getROI());
+      } catch (Exception e) {
+         // Not fatal: images will be prepared when they are first needed
+         studio_.logs().logError(e, "Failed to prepare shading images");
+      }
+   }
+
    @Override
    public void processImage(Image image, ProcessorContext context) {
       if (!match_) {
          context.outputImage(image);
          return;
       }
-      int width = image.getWidth();
-      int height = image.getHeight();
-
       // For now, this plugin only works with 8 or 16 bit grayscale images
       if (image.getNumComponents() > 1 || image.getBytesPerPixel() > 2) {
          String msg = "Cannot flatfield correct images other than 8 or 16 bit grayscale";
@@ -179,10 +201,6 @@ public class ShadingProcessor implements Processor {
       }
 
       Metadata metadata = image.getMetadata();
-      PropertyMap userData = metadata.getUserData();
-
-      Image bgSubtracted = image;
-      Image result;
 
       // subtract background
       Integer binning = metadata.getBinning();
@@ -206,8 +224,27 @@ public class ShadingProcessor implements Processor {
                  NoBackgroundForThisBinModeClass.class, msg);
       }
 
-      ImagePlusInfo flatFieldImage = getMatchingFlatFieldImage(
-              image, binning, rect);
+      // Keep the GPU buffers of the background while getting the flatfield,
+      // which can drop the background from the cache
+      imageCollection_.pin(background);
+      ImagePlusInfo flatFieldImage = null;
+      try {
+         flatFieldImage = getMatchingFlatFieldImage(image, binning, rect);
+         imageCollection_.pin(flatFieldImage);
+         correctImage(image, context, background, flatFieldImage);
+      } finally {
+         imageCollection_.unpin(background);
+         imageCollection_.unpin(flatFieldImage);
+      }
+   }
+
+   private void correctImage(Image image, ProcessorContext context,
+           ImagePlusInfo background, ImagePlusInfo flatFieldImage) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      Metadata metadata = image.getMetadata();
+      PropertyMap userData = metadata.getUserData();
+      Image result;
 
       if (useOpenCL_) {
          try {
@@ -265,79 +302,47 @@ public class ShadingProcessor implements Processor {
       }
 
 
+      // CPU path: a single pass that writes into a new pixel array, which is
+      // handed on without copying
       if (background != null) {
-         ImageProcessor ip = studio_.data().ij().createProcessor(image);
-         ImageProcessor ipBackground = background.getProcessor();
-         try {
-            ip = ImageUtils.subtractImageProcessors(ip, ipBackground);
-            if (userData != null) {
-               userData = userData.copyBuilder().putBoolean("Background-corrected", true).build();
-            }
-         } catch (ShadingException e) {
-            String msg = "Unable to subtract background: " + e.getMessage();
-            studio_.alerts().postAlert(MultiChannelShading.MENUNAME, 
-                 ErrorSubtractingClass.class, msg);
+         if (userData != null) {
+            userData = userData.copyBuilder().putBoolean("Background-corrected", true).build();
          }
-         bgSubtracted = studio_.data().ij().createImage(ip, image.getCoords(),
-                 metadata.copyBuilderWithNewUUID().userData(userData).build());
       } else {
          String msg = "No background available...";
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, NotFlatFieldedClass.class, msg);
       }
 
-
       // do not calculate flat field if we don't have a matching channel;
       // just return the background-subtracted image (which is the unmodified
       // image if we also don't have a background subtraction file).
       if (flatFieldImage == null) {
          String msg = "No flatfield found...";
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, NotFlatFieldedClass.class, msg);
-         context.outputImage(bgSubtracted);
-         return;
-      }
-
-      if (userData != null) {
+         if (background == null) {
+            context.outputImage(image);
+            return;
+         }
+      } else if (userData != null) {
          userData = userData.copyBuilder().putBoolean("Flatfield-corrected", true).build();
-         metadata = metadata.copyBuilderWithNewUUID().userData(userData).build();
       }
-      
-      
-      
-      if (image.getBytesPerPixel() == 1) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) image.getRawPixels();
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++) {
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
-            }
-            newPixels[index] = (byte) (newValue);
-         }
-         result = studio_.data().createImage(newPixels, width, height,
-                 1, 1, image.getCoords(), metadata);
-         context.outputImage(result);
-      } else if (image.getBytesPerPixel() == 2) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.getRawPixels();
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++) {
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel
-                    * flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) (((int) newValue) & 0x0000ffff);
-         }
-         result = studio_.data().createImage(newPixels, width, height,
-                 2, 1, image.getCoords(), metadata);
-         context.outputImage(result);
+
+      Object newPixels;
+      try {
+         newPixels = ShadingKernel.apply(image.getRawPixels(),
+                 background == null ? null : background.getBackgroundValues(),
+                 flatFieldImage == null ? null : flatFieldImage.getGains());
+      } catch (ShadingException e) {
+         String msg = "Unable to correct image: " + e.getMessage();
+         studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
+                 ErrorSubtractingClass.class, msg);
+         context.outputImage(image);
+         return;
       }
+      result = studio_.data().wrapImage(newPixels, width, height,
+              image.getBytesPerPixel(), 1, image.getCoords(),
+              metadata.copyBuilderWithNewUUID().userData(userData).build());
+      context.outputImage(result);
    }
 
 
@@ -0,0 +1,107 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ShadingKernelBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.multichannelshading;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/**
+ * Compares the speed of ShadingKernel with the per-pixel float code that
+ * ShadingProcessor used before (background subtraction into a new array,
+ * then flatfield multiplication into another), and reports the largest
+ * difference between the results.
+ *
+ * Usage: ShadingKernelBenchmark [width height [iterations]]
+ * (needs ImageJ on the classpath)
+ */
+public final class ShadingKernelBenchmark {
+
+   private ShadingKernelBenchmark() {
+   }
+
+   public static void main(String[] args) throws ShadingException {
+      int width = args.length >= 2 ? Integer.parseInt(args[0]) : 2048;
+      int height = args.length >= 2 ? Integer.parseInt(args[1]) : 2048;
+      int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : 50;
+      int nrPixels = width * height;
+
+      Random random = new Random(1);
+      short[] pixels = new short[nrPixels];
+      short[] backgroundPixels = new short[nrPixels];
+      float[] factors = new float[nrPixels];
+      for (int i = 0; i < nrPixels; i++) {
+         pixels[i] = (short) (100 + random.nextInt(4000));
+         backgroundPixels[i] = (short) (90 + random.nextInt(20));
+         factors[i] = 0.8f + 0.6f * random.nextFloat();
+      }
+      ShortProcessor background = new ShortProcessor(width, height,
+              backgroundPixels, null);
+      FloatProcessor flatField = new FloatProcessor(width, height, factors);
+      int[] backgroundValues = ShadingKernel.makeBackground(background);
+      int[] gains = ShadingKernel.makeGains(flatField);
+
+      short[] reference = null;
+      short[] result = null;
+      for (int round = 0; round < 2; round++) { // first round is warm-up
+         long start = System.nanoTime();
+         for (int i = 0; i < iterations; i++) {
+            reference = scalarCorrect(pixels, background, flatField);
+         }
+         double scalarMs = (System.nanoTime() - start) / 1e6 / iterations;
+         start = System.nanoTime();
+         for (int i = 0; i < iterations; i++) {
+            result = (short[]) ShadingKernel.apply(pixels, backgroundValues,
+                    gains);
+         }
+         double kernelMs = (System.nanoTime() - start) / 1e6 / iterations;
+         if (round > 0) {
+            System.out.printf("%d x %d, 16 bit: previous CPU path %.2f ms, " +
+                    "ShadingKernel %.2f ms (%.1fx)%n", width, height,
+                    scalarMs, kernelMs, scalarMs / kernelMs);
+         }
+      }
+
+      int maxDifference = 0;
+      for (int i = 0; i < nrPixels; i++) {
+         maxDifference = Math.max(maxDifference, Math.abs(
+                 (reference[i] & 0xffff) - (result[i] & 0xffff)));
+      }
+      System.out.println("Largest difference: " + maxDifference);
+   }
+
+   // The CPU path of ShadingProcessor before ShadingKernel (the clones stand
+   // for the copies made by DataManager.createImage)
+   private static short[] scalarCorrect(short[] pixels,
+           ShortProcessor background, FloatProcessor flatField) {
+      short[] bgSubtracted = ImageUtils.subtractPixelArrays(pixels,
+              (short[]) background.getPixels()).clone();
+      short[] newPixels = new short[bgSubtracted.length];
+      for (int index = 0; index < bgSubtracted.length; index++) {
+         float oldPixel = (float) ((int) (bgSubtracted[index]) & 0x0000ffff);
+         float newValue = (oldPixel * flatField.getf(index)) + 0.5f;
+         if (newValue > 2 * Short.MAX_VALUE) {
+            newValue = 2 * Short.MAX_VALUE;
+         }
+         newPixels[index] = (short) (((int) newValue) & 0x0000ffff);
+      }
+      return newPixels.clone();
+   }
+}
@@ -0,0 +1,197 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.pipelinesaver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.SummaryMetadata;
+
+// The public API has no way to serialize coords and (summary) metadata, so
+// the internal PropertyMap conversions that the TIFF storage uses are used
+// to store them in the raw stream and read them back.
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+/**
+ * Converts a raw stream, as written by the Image Saver in "Raw Stream" mode,
+ * into a Micro-Manager multipage TIFF dataset.
+ *
+ * Images are read in the order of the index. When the stream was not closed
+ * properly, all images up to the last complete index entry are converted.
+ */
+public final class RawStreamConverter {
+
+   private RawStreamConverter() {
+   }
+
+   /**
+    * Receives the images of a raw stream.
+    */
+   interface ImageSink {
+      void putImage(Object pixels, int width, int height, int bytesPerPixel,
+            int numComponents, Coords coords, Metadata metadata)
+            throws IOException;
+   }
+
+   /**
+    * @param studio Studio instance
+    * @param rawPath Directory with the raw stream
+    * @param savePath Directory to create the dataset in
+    * @return The new (frozen) datastore, which can be displayed or closed
+    * @throws IOException when the raw stream can not be read or the dataset
+    *         can not be written
+    */
+   public static Datastore convert(final Studio studio, String rawPath,
+         String savePath) throws IOException {
+      File dir = new File(rawPath);
+      if (!new File(dir, RawStreamWriter.INDEX_FILE).exists()) {
+         throw new IOException(rawPath + " does not contain a raw stream");
+      }
+      final Datastore store = studio.data().createMultipageTIFFDatastore(
+            savePath, true, true);
+      SummaryMetadata summary = readSummaryMetadata(dir);
+      if (summary != null) {
+         store.setSummaryMetadata(summary);
+      }
+      readImages(dir, (pixels, width, height, bytesPerPixel, numComponents,
+            coords, metadata) ->
+            store.putImage(studio.data().wrapImage(pixels, width, height,
+                  bytesPerPixel, numComponents, coords, metadata)));
+      store.freeze();
+      store.setSavePath(savePath);
+      return store;
+   }
+
+   /**
+    * @param dir Directory with the raw stream
+    * @return The summary metadata of the raw stream, or null when it has none
+    */
+   static SummaryMetadata readSummaryMetadata(File dir) throws IOException {
+      File summaryFile = new File(dir, RawStreamWriter.SUMMARY_FILE);
+      if (!summaryFile.exists()) {
+         return null;
+      }
+      return DefaultSummaryMetadata.fromPropertyMap(
+            PropertyMaps.loadJSON(summaryFile));
+   }
+
+   /**
+    * Reads the images of a raw stream, in the order of the index.
+    *
+    * @param dir Directory with the raw stream
+    * @param sink Receives the images
+    */
+   static void readImages(File dir, ImageSink sink) throws IOException {
+      File indexFile = new File(dir, RawStreamWriter.INDEX_FILE);
+      Map<Integer, FileChannel> channels = new HashMap<>();
+      ByteBuffer header = ByteBuffer.allocate(RawStreamWriter.HEADER_SIZE).
+            order(ByteOrder.LITTLE_ENDIAN);
+      try (DataInputStream index = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(indexFile)))) {
+         while (true) {
+            int fileNr;
+            long offset;
+            byte[] json;
+            try {
+               fileNr = index.readInt();
+               offset = index.readLong();
+               json = new byte[index.readInt()];
+               index.readFully(json);
+            } catch (EOFException e) {
+               break;
+            }
+            PropertyMap entry = PropertyMaps.fromJSON(
+                  new String(json, StandardCharsets.UTF_8));
+            Coords coords = DefaultCoords.fromPropertyMap(
+                  entry.getPropertyMap(RawStreamWriter.COORDS_KEY, null));
+            Metadata metadata = DefaultMetadata.fromPropertyMap(
+                  entry.getPropertyMap(RawStreamWriter.METADATA_KEY, null));
+
+            FileChannel channel = channels.get(fileNr);
+            if (channel == null) {
+               channel = FileChannel.open(new File(dir,
+                     RawStreamWriter.dataFileName(fileNr)).toPath(),
+                     StandardOpenOption.READ);
+               channels.put(fileNr, channel);
+            }
+            header.clear();
+            readFully(channel, header, offset);
+            header.flip();
+            if (header.getInt() != RawStreamWriter.RAW_STREAM_MAGIC) {
+               throw new IOException("Corrupt image header in "
+                     + RawStreamWriter.dataFileName(fileNr) + " at " + offset);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int sizes = header.getInt();
+            int bytesPerPixel = sizes & 0xffff;
+            int numComponents = sizes >>> 16;
+            ByteBuffer pixelBuffer = ByteBuffer.allocate(header.getInt()).
+                  order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, pixelBuffer, offset + RawStreamWriter.HEADER_SIZE);
+            pixelBuffer.flip();
+            Object pixels;
+            if (bytesPerPixel == 2) {
+               short[] shorts = new short[pixelBuffer.remaining() / 2];
+               pixelBuffer.asShortBuffer().get(shorts);
+               pixels = shorts;
+            } else {
+               // 8 bit, and RGB (stored as blue, green, red, alpha bytes)
+               pixels = pixelBuffer.array();
+            }
+            sink.putImage(pixels, width, height, bytesPerPixel, numComponents,
+                  coords, metadata);
+         }
+      } finally {
+         for (FileChannel channel : channels.values()) {
+            channel.close();
+         }
+      }
+   }
+
+   private static void readFully(FileChannel channel, ByteBuffer buffer,
+         long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         int read = channel.read(buffer, position);
+         if (read < 0) {
+            throw new EOFException("Raw stream data file is truncated");
+         }
+         position += read;
+      }
+   }
+}
@@ -0,0 +1,240 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.pipelinesaver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.SummaryMetadata;
+
+// The public API has no way to serialize coords and (summary) metadata, so
+// the internal PropertyMap conversions that the TIFF storage uses are used
+// to store them in the raw stream, where RawStreamConverter reads them back.
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+/**
+ * Streams images to disk with as little overhead as possible.
+ *
+ * A raw stream is a directory with:
+ * <ul>
+ * <li>data_000.bin, data_001.bin, ...: append-only files in which every
+ * image is stored as a fixed size header (HEADER_SIZE bytes, see below)
+ * followed by the pixel data. A new file is started when a file would grow
+ * beyond MAX_FILE_SIZE.
+ * <li>index.bin: per image, the number of the data file (int), the offset of
+ * the image header in that file (long), and the length (int) and UTF-8 bytes
+ * of a JSON object with the "coords" and "metadata" of the image.
+ * <li>summary.json: the summary metadata, when available.
+ * </ul>
+ * The header holds, as little endian ints: RAW_STREAM_MAGIC, width, height,
+ * bytes per pixel (low 16 bits) and number of components (high 16 bits),
+ * the length of the pixel data in bytes, and the time point, stage position,
+ * channel and z slice index. The last 4 bytes are reserved. Pixels are stored
+ * little endian, in the layout of Image.getRawPixels(). Data files can
+ * thus be read without the index, although the index is needed to recover
+ * the image metadata. RawStreamConverter turns a raw stream into a regular
+ * dataset.
+ *
+ * Images are written on a background thread. write() only blocks when the
+ * writer falls more than MAX_PENDING images behind.
+ */
+final class RawStreamWriter {
+   static final int RAW_STREAM_MAGIC = 0x46524d4d; // "MMRF" in little endian
+   static final int HEADER_SIZE = 40;
+   static final long MAX_FILE_SIZE = 4L << 30;
+   static final String INDEX_FILE = "index.bin";
+   static final String SUMMARY_FILE = "summary.json";
+   static final String COORDS_KEY = "coords";
+   static final String METADATA_KEY = "metadata";
+   private static final int MAX_PENDING = 16;
+
+   private final File dir_;
+   private final ExecutorService executor_;
+   private final Semaphore pending_ = new Semaphore(MAX_PENDING);
+   private final DataOutputStream index_;
+   // Only used on the writer thread
+   private FileChannel channel_;
+   private int fileNr_ = -1;
+   private long fileSize_;
+   private ByteBuffer buffer_;
+   // First error of the writer thread; further images are dropped
+   private volatile IOException error_;
+
+   /**
+    * @param dir Directory to create the raw stream in; must not exist yet
+    * @throws IOException when the directory or index can not be created
+    */
+   RawStreamWriter(File dir) throws IOException {
+      if (!dir.mkdirs()) {
+         throw new IOException("Unable to create directory " + dir);
+      }
+      dir_ = dir;
+      index_ = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(dir, INDEX_FILE))));
+      executor_ = Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "Pipeline raw stream writer");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   static String dataFileName(int fileNr) {
+      return String.format("data_%03d.bin", fileNr);
+   }
+
+   /**
+    * Writes the summary metadata. Can be called again to replace it.
+    */
+   void writeSummaryMetadata(SummaryMetadata summary) throws IOException {
+      String json = ((DefaultSummaryMetadata) summary).toPropertyMap().toJSON();
+      Files.write(new File(dir_, SUMMARY_FILE).toPath(),
+            json.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * Queues an image for writing.
+    *
+    * @throws IOException when an earlier image could not be written
+    */
+   void write(final Image image) throws IOException {
+      if (error_ != null) {
+         throw error_;
+      }
+      try {
+         pending_.acquire();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while saving image");
+      }
+      executor_.execute(() -> {
+         try {
+            if (error_ == null) {
+               writeImage(image);
+            }
+         } catch (IOException e) {
+            error_ = e;
+         } finally {
+            pending_.release();
+         }
+      });
+   }
+
+   /**
+    * Writes all queued images and closes the files.
+    *
+    * @throws IOException when not all images could be written
+    */
+   void close() throws IOException {
+      executor_.shutdown();
+      try {
+         while (!executor_.awaitTermination(1, TimeUnit.SECONDS)) {
+            // Keep waiting for the images to be written
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      try {
+         index_.close();
+         if (channel_ != null) {
+            channel_.close();
+         }
+      } catch (IOException e) {
+         if (error_ == null) {
+            error_ = e;
+         }
+      }
+      if (error_ != null) {
+         throw error_;
+      }
+   }
+
+   private void writeImage(Image image) throws IOException {
+      Object pixels = image.getRawPixels();
+      int pixelBytes = image.getWidth() * image.getHeight()
+            * image.getBytesPerPixel();
+      int size = HEADER_SIZE + pixelBytes;
+      if (channel_ == null || fileSize_ + size > MAX_FILE_SIZE) {
+         if (channel_ != null) {
+            channel_.close();
+         }
+         fileNr_++;
+         channel_ = FileChannel.open(new File(dir_, dataFileName(fileNr_)).toPath(),
+               StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+         fileSize_ = 0;
+      }
+      // The buffer is re-used for all images of the same (or smaller) size
+      if (buffer_ == null || buffer_.capacity() < size) {
+         buffer_ = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      ByteBuffer buffer = buffer_;
+      buffer.clear();
+      Coords coords = image.getCoords();
+      buffer.putInt(RAW_STREAM_MAGIC).putInt(image.getWidth()).
+            putInt(image.getHeight()).
+            putInt(image.getBytesPerPixel() | (image.getNumComponents() << 16)).
+            putInt(pixelBytes).putInt(coords.getT()).putInt(coords.getP()).
+            putInt(coords.getC()).putInt(coords.getZ()).putInt(0);
+      if (pixels instanceof byte[]) {
+         buffer.put((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         buffer.asShortBuffer().put((short[]) pixels);
+      } else if (pixels instanceof int[]) {
+         buffer.asIntBuffer().put((int[]) pixels);
+      } else {
+         throw new IOException("Unsupported pixel type "
+               + pixels.getClass().getName());
+      }
+      buffer.limit(size);
+      buffer.position(0);
+      long offset = fileSize_;
+      while (buffer.hasRemaining()) {
+         channel_.write(buffer);
+      }
+      fileSize_ += size;
+
+      byte[] json = PropertyMaps.builder().
+            putPropertyMap(COORDS_KEY, ((DefaultCoords) coords).toPropertyMap()).
+            putPropertyMap(METADATA_KEY,
+                  ((DefaultMetadata) image.getMetadata()).toPropertyMap()).
+            build().toJSON().getBytes(StandardCharsets.UTF_8);
+      index_.writeInt(fileNr_);
+      index_.writeLong(offset);
+      index_.writeInt(json.length);
+      index_.write(json);
+   }
+}
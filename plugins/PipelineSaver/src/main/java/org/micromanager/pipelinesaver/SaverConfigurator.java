@@ -24,11 +24,13 @@ import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.*;
 
 import net.miginfocom.swing.MigLayout;
 
+import org.micromanager.data.Datastore;
 import org.micromanager.data.ProcessorConfigurator;
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
@@ -52,6 +54,7 @@ public class SaverConfigurator extends JFrame implements ProcessorConfigurator {
    private final JComboBox saveFormat_;
    private JTextField savePath_;
    private final JButton browseButton_;
+   private final JButton convertButton_;
 
    public SaverConfigurator(PropertyMap settings, Studio studio) {
       studio_ = studio;
@@ -60,7 +63,8 @@ public class SaverConfigurator extends JFrame implements ProcessorConfigurator {
 
       panel.add(new JLabel("Save format: "), "split 2");
       String[] formats = new String[] {SaverPlugin.RAM,
-         SaverPlugin.MULTIPAGE_TIFF, SaverPlugin.SINGLEPLANE_TIFF_SERIES};
+         SaverPlugin.MULTIPAGE_TIFF, SaverPlugin.SINGLEPLANE_TIFF_SERIES,
+         SaverPlugin.RAW_STREAM};
       saveFormat_ = new JComboBox(formats);
       saveFormat_.setSelectedItem(
             settings.getString("format", getPreferredSaveFormat()));
@@ -95,6 +99,17 @@ public class SaverConfigurator extends JFrame implements ProcessorConfigurator {
          }
       });
       panel.add(browseButton_, "wrap");
+
+      convertButton_ = new JButton("Convert Raw Stream...");
+      convertButton_.setToolTipText(
+            "Convert data saved as Raw Stream to an Image Stack File dataset");
+      convertButton_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            convertRawStream();
+         }
+      });
+      panel.add(convertButton_, "span, wrap");
       super.add(panel);
       updateControls();
 
@@ -111,11 +126,60 @@ public class SaverConfigurator extends JFrame implements ProcessorConfigurator {
          // Can't not display RAM data.
          shouldDisplay_.setSelected(true);
       }
-      shouldDisplay_.setEnabled(!isRAM);
+      // Raw Streams can only be displayed after conversion.
+      boolean isRaw = SaverPlugin.RAW_STREAM.equals(
+            saveFormat_.getSelectedItem());
+      if (isRaw) {
+         shouldDisplay_.setSelected(false);
+      }
+      shouldDisplay_.setEnabled(!isRAM && !isRaw);
       savePath_.setEnabled(!isRAM);
       browseButton_.setEnabled(!isRAM);
    }
 
+   /**
+    * Asks for a Raw Stream and a destination, and converts the Raw Stream
+    * on a background thread.
+    */
+   private void convertRawStream() {
+      final File rawDir = FileDialogs.openDir(this,
+            "Please choose the Raw Stream directory to convert",
+            FileDialogs.MM_DATA_SET);
+      if (rawDir == null) {
+         return;
+      }
+      final File destination = FileDialogs.save(this,
+            "Please choose a directory to save the converted data to",
+            FileDialogs.MM_DATA_SET);
+      if (destination == null) {
+         return;
+      }
+      convertButton_.setEnabled(false);
+      new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Datastore store = RawStreamConverter.convert(studio_,
+                     rawDir.getAbsolutePath(), destination.getAbsolutePath());
+               studio_.displays().manage(store);
+               studio_.displays().createDisplay(store);
+            }
+            catch (IOException e) {
+               studio_.logs().showError(e, "Unable to convert Raw Stream at "
+                     + rawDir);
+            }
+            finally {
+               SwingUtilities.invokeLater(new Runnable() {
+                  @Override
+                  public void run() {
+                     convertButton_.setEnabled(true);
+                  }
+               });
+            }
+         }
+      }, "Raw Stream converter").start();
+   }
+
    @Override
    public void showGUI() {
       pack();
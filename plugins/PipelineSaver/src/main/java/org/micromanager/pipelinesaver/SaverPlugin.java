@@ -40,6 +40,7 @@ public class SaverPlugin implements ProcessorPlugin, SciJavaPlugin {
    public static String SINGLEPLANE_TIFF_SERIES = "Separate Image Files";
    public static String MULTIPAGE_TIFF = "Image Stack File";
    public static String RAM = "RAM only";
+   public static String RAW_STREAM = "Raw Stream (convert afterwards)";
 
    @Override
    public void setContext(Studio studio) {
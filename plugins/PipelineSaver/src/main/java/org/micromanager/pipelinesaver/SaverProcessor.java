@@ -29,11 +29,14 @@ import org.micromanager.data.Image;
 import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
 import org.micromanager.Studio;
 
 public class SaverProcessor implements Processor {
    private Studio studio_;
    private Datastore store_;
+   private RawStreamWriter rawWriter_;
+   private boolean rawErrorReported_ = false;
    private final String format_;
    private final String savePath_;
 
@@ -56,6 +59,12 @@ public class SaverProcessor implements Processor {
          else if (format.equals(SaverPlugin.RAM)) {
             store_ = studio.data().createRewritableRAMDatastore();
          }
+         else if (format.equals(SaverPlugin.RAW_STREAM)) {
+            // No datastore: images go straight to disk, and can be converted
+            // to a regular dataset with RawStreamConverter afterwards.
+            rawWriter_ = new RawStreamWriter(new File(savePath_));
+            return;
+         }
          else {
             studio_.logs().logError("Unrecognized save format " + format);
          }
@@ -71,8 +80,35 @@ public class SaverProcessor implements Processor {
       }
    }
 
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      if (rawWriter_ != null) {
+         try {
+            rawWriter_.writeSummaryMetadata(summary);
+         }
+         catch (IOException e) {
+            studio_.logs().logError(e, "Unable to save summary metadata");
+         }
+      }
+      return summary;
+   }
+
    @Override
    public void processImage(Image image, ProcessorContext context) {
+      if (rawWriter_ != null) {
+         try {
+            rawWriter_.write(image);
+         }
+         catch (IOException e) {
+            // Writing stops at the first error; only report it once
+            if (!rawErrorReported_) {
+               studio_.logs().logError(e, "Unable to save data: IOException");
+               rawErrorReported_ = true;
+            }
+         }
+         context.outputImage(image);
+         return;
+      }
       try {
          store_.putImage(image);
       }
@@ -103,6 +139,15 @@ public class SaverProcessor implements Processor {
 
    @Override
    public void cleanup(ProcessorContext context) {
+      if (rawWriter_ != null) {
+         try {
+            rawWriter_.close();
+         } catch (IOException ioe) {
+            studio_.logs().showError(ioe, "Not all images could be saved to "
+                  + savePath_);
+         }
+         return;
+      }
       try {
          store_.freeze();
       } catch (IOException ioe) {
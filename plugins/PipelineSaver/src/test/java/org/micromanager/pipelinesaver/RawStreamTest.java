@@ -0,0 +1,179 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.pipelinesaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+/**
+ * Writes images with RawStreamWriter and checks that RawStreamConverter
+ * reads back the same pixels, coords and metadata.
+ */
+public class RawStreamTest {
+   private static final int WIDTH = 7;
+   private static final int HEIGHT = 5;
+
+   @Rule
+   public TemporaryFolder folder_ = new TemporaryFolder();
+
+   private static Image makeImage(int bytesPerPixel, int time, int channel) {
+      Coords coords = Coordinates.builder().time(time).channel(channel).
+            z(1).stagePosition(2).build();
+      Metadata metadata = new DefaultMetadata.Builder().
+            exposureMs(10.0 + time).
+            userData(PropertyMaps.builder().
+                  putString("Label", "t" + time + "c" + channel).
+                  putInteger("Index", 3 * time + channel).build()).
+            build();
+      int nrPixels = WIDTH * HEIGHT;
+      Object pixels;
+      if (bytesPerPixel == 2) {
+         short[] shorts = new short[nrPixels];
+         for (int i = 0; i < nrPixels; i++) {
+            // Include values that do not fit a signed short
+            shorts[i] = (short) (i * 1931 + time * 17 + channel * 40000);
+         }
+         pixels = shorts;
+      } else {
+         byte[] bytes = new byte[nrPixels * bytesPerPixel];
+         for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 7 + time * 3 + channel);
+         }
+         pixels = bytes;
+      }
+      return new DefaultImage(pixels, WIDTH, HEIGHT, bytesPerPixel,
+            bytesPerPixel == 4 ? 3 : 1, coords, metadata);
+   }
+
+   private static final class ReadImage {
+      final Object pixels;
+      final int width;
+      final int height;
+      final int bytesPerPixel;
+      final int numComponents;
+      final Coords coords;
+      final Metadata metadata;
+
+      ReadImage(Object pixels, int width, int height, int bytesPerPixel,
+            int numComponents, Coords coords, Metadata metadata) {
+         this.pixels = pixels;
+         this.width = width;
+         this.height = height;
+         this.bytesPerPixel = bytesPerPixel;
+         this.numComponents = numComponents;
+         this.coords = coords;
+         this.metadata = metadata;
+      }
+   }
+
+   private static List<ReadImage> readImages(File dir) throws IOException {
+      final List<ReadImage> result = new ArrayList<>();
+      RawStreamConverter.readImages(dir, (pixels, width, height,
+            bytesPerPixel, numComponents, coords, metadata) ->
+            result.add(new ReadImage(pixels, width, height, bytesPerPixel,
+                  numComponents, coords, metadata)));
+      return result;
+   }
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      File dir = new File(folder_.getRoot(), "raw");
+      SummaryMetadata summary = new DefaultSummaryMetadata.Builder().
+            prefix("raw").channelGroup("Channel").
+            channelNames("DAPI", "FITC", "RGB").build();
+      List<Image> images = new ArrayList<>();
+      for (int time = 0; time < 3; time++) {
+         images.add(makeImage(2, time, 0));
+         images.add(makeImage(1, time, 1));
+         images.add(makeImage(4, time, 2));
+      }
+
+      RawStreamWriter writer = new RawStreamWriter(dir);
+      writer.writeSummaryMetadata(summary);
+      for (Image image : images) {
+         writer.write(image);
+      }
+      writer.close();
+
+      Assert.assertEquals(
+            ((DefaultSummaryMetadata) summary).toPropertyMap(),
+            ((DefaultSummaryMetadata) RawStreamConverter.readSummaryMetadata(
+                  dir)).toPropertyMap());
+      List<ReadImage> read = readImages(dir);
+      Assert.assertEquals(images.size(), read.size());
+      for (int i = 0; i < images.size(); i++) {
+         Image expected = images.get(i);
+         ReadImage actual = read.get(i);
+         Assert.assertEquals(expected.getWidth(), actual.width);
+         Assert.assertEquals(expected.getHeight(), actual.height);
+         Assert.assertEquals(expected.getBytesPerPixel(), actual.bytesPerPixel);
+         Assert.assertEquals(expected.getNumComponents(), actual.numComponents);
+         Assert.assertEquals(expected.getCoords(), actual.coords);
+         Assert.assertEquals(
+               ((DefaultMetadata) expected.getMetadata()).toPropertyMap(),
+               ((DefaultMetadata) actual.metadata).toPropertyMap());
+         if (expected.getBytesPerPixel() == 2) {
+            Assert.assertArrayEquals((short[]) expected.getRawPixels(),
+                  (short[]) actual.pixels);
+         } else {
+            Assert.assertArrayEquals((byte[]) expected.getRawPixels(),
+                  (byte[]) actual.pixels);
+         }
+         // The result must be usable as an image again
+         new DefaultImage(actual.pixels, actual.width, actual.height,
+               actual.bytesPerPixel, actual.numComponents, actual.coords,
+               actual.metadata);
+      }
+   }
+
+   @Test
+   public void testIncompleteIndex() throws IOException {
+      File dir = new File(folder_.getRoot(), "raw");
+      RawStreamWriter writer = new RawStreamWriter(dir);
+      for (int time = 0; time < 2; time++) {
+         writer.write(makeImage(2, time, 0));
+      }
+      writer.close();
+      // Cut off the last index entry, as if writing was interrupted
+      File index = new File(dir, RawStreamWriter.INDEX_FILE);
+      try (RandomAccessFile file =
+            new RandomAccessFile(index, "rw")) {
+         file.setLength(file.length() - 3);
+      }
+      List<ReadImage> read = readImages(dir);
+      Assert.assertEquals(1, read.size());
+      Assert.assertEquals(0, read.get(0).coords.getT());
+   }
+}
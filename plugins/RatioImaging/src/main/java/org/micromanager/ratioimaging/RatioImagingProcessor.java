@@ -24,16 +24,13 @@
 package org.micromanager.ratioimaging;
 
 import ij.ImagePlus;
-import ij.process.Blitter;
-import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import java.awt.Rectangle;
 import java.text.ParseException;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.micromanager.PropertyMap;
 
 import org.micromanager.data.Coords;
@@ -66,7 +63,12 @@ public class RatioImagingProcessor implements Processor {
    private final String bc2Path_;
    private ImagePlus bc1_;
    private ImagePlus bc2_;
-   private final List<Image> images_;
+   private RatioKernel kernel_;
+   // Images waiting for the image of the other channel, by their coords
+   // without channel.  Only the images acquired between two channels can be
+   // waiting (at most the number of slices), so older ones are dropped.
+   private final Map<Coords, Image> pending_;
+   private int maxPending_ = 1;
    private boolean process_;
    private int ch1Index_;
    private int ch2Index_;
@@ -75,7 +77,12 @@ public class RatioImagingProcessor implements Processor {
    public RatioImagingProcessor(Studio studio, PropertyMap settings) {
       studio_ = studio;
       settings_ = settings;
-      images_ = new ArrayList<Image>();
+      pending_ = new LinkedHashMap<Coords, Image>() {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Coords, Image> eldest) {
+            return size() > maxPending_;
+         }
+      };
       int factor = 1; int bc1Constant = 0; int bc2Constant = 0;
       try {
          factor = NumberUtils.displayStringToInt(
@@ -130,6 +137,8 @@ public class RatioImagingProcessor implements Processor {
       }
       newNames[chNames.size() ] = "ratio " + ch1Name + "-" + ch2Name;
       ratioIndex_ = chNames.size();
+      Coords dimensions = summary.getIntendedDimensions();
+      maxPending_ = 2 * Math.max(1, dimensions.getZ());
       Coords newDimensions = summary.getIntendedDimensions().copyBuilder().
               c(newNames.length).build();
       
@@ -184,9 +193,9 @@ public class RatioImagingProcessor implements Processor {
          roi.y = 0;
       }
       if (nrBytesPerPixel == 1) {
-         resultProcessor.convertToByteProcessor(false);
+         resultProcessor = resultProcessor.convertToByteProcessor(false);
       } else if (nrBytesPerPixel == 2) {
-         resultProcessor.convertToShortProcessor(false);
+         resultProcessor = resultProcessor.convertToShortProcessor(false);
       }
       resultProcessor.setRoi(roi);
       ImagePlus newIp = new ImagePlus("", resultProcessor.crop());
@@ -206,16 +215,6 @@ public class RatioImagingProcessor implements Processor {
          return;
       }
       
-      int binning = newImage.getMetadata().getBinning();
-      Rectangle roi = newImage.getMetadata().getROI();
-      int nrBytesPerPixel = newImage.getBytesPerPixel();
-      if (bc1_ == null) {
-         bc1_ = getBackground(bc1Path_, binning, roi, nrBytesPerPixel);
-      }
-      if (bc2_ == null) {
-         bc2_ = getBackground(bc2Path_, binning, roi, nrBytesPerPixel);
-      }
-      
       if (!process_) {
          return;
       }
@@ -226,152 +225,80 @@ public class RatioImagingProcessor implements Processor {
          return;
       }
 
-      for (Image oldImage : images_) {
+      if (kernel_ == null) {
+         int binning = newImage.getMetadata().getBinning();
+         Rectangle roi = newImage.getMetadata().getROI();
+         int nrBytesPerPixel = newImage.getBytesPerPixel();
+         bc1_ = getBackground(bc1Path_, binning, roi, nrBytesPerPixel);
+         bc2_ = getBackground(bc2Path_, binning, roi, nrBytesPerPixel);
+         kernel_ = new RatioKernel(
+                 backgroundProcessor(bc1_, newImage),
+                 backgroundProcessor(bc2_, newImage),
+                 bc1Constant_, bc2Constant_, factor_);
+      }
+
+      Coords key = newCoords.copyRemovingAxes(Coords.C);
+      Image oldImage = pending_.get(key);
+      if (oldImage != null) {
          Coords oldCoords = oldImage.getCoords();
-         if (newCoords.copyRemovingAxes(Coords.C).equals(oldCoords.copyRemovingAxes(Coords.C))) {
-            if (newCoords.getC() == ch1Index_ && oldCoords.getC() == ch2Index_) {
-               process(newImage, oldImage, context);
-               images_.remove(oldImage);
-               return;
-            }
-         
-            if (oldCoords.getC() == ch1Index_ && newCoords.getC() == ch2Index_) {
-               process(oldImage, newImage, context);
-               images_.remove(oldImage);
-               return;
-            }
+         if (newCoords.getC() == ch1Index_ && oldCoords.getC() == ch2Index_) {
+            pending_.remove(key);
+            process(newImage, oldImage, context);
+            return;
+         }
+
+         if (oldCoords.getC() == ch1Index_ && newCoords.getC() == ch2Index_) {
+            pending_.remove(key);
+            process(oldImage, newImage, context);
+            return;
          }
       }
       
-      // if we are still here, there was no match, so add this image to our list
-      images_.add(newImage);
+      // if we are still here, there was no match, so wait for the other channel
+      pending_.put(key, newImage);
+
+   }
 
+   /**
+    * @return the processor of the background, or null when there is no
+    *         background or it does not match the image
+    */
+   private ImageProcessor backgroundProcessor(ImagePlus background, Image image) {
+      if (background == null) {
+         return null;
+      }
+      if (background.getWidth() != image.getWidth()
+              || background.getHeight() != image.getHeight()) {
+         studio_.logs().showError("Background image size differs from image size, "
+                 + "background will not be subtracted");
+         return null;
+      }
+      return background.getProcessor();
    }
       
    private void process(Image ch1Image, Image ch2Image, ProcessorContext context) {
       
       Coords ratioCoords = ch1Image.getCoords().copyBuilder().c(ratioIndex_).build();
-      
-      ImageProcessor ch1Proc = studio_.data().ij().createProcessor(ch1Image);
-      ImageProcessor ch2Proc = studio_.data().ij().createProcessor(ch2Image);
-      if (bc1_ != null) {
-         ch1Proc = subtractImageProcessors(ch1Proc, bc1_.getProcessor());
-      }
-      if (bc2_ != null) {
-         ch2Proc = subtractImageProcessors(ch2Proc, bc2_.getProcessor());
-      }
-      ch1Proc = ch1Proc.convertToFloat();
-      ch2Proc = ch2Proc.convertToFloat();
-      ch1Proc.subtract(bc1Constant_);
-      ch2Proc.subtract(bc2Constant_);
-      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(), 
-              ch1Proc.getHeight());
-      ch3Proc.insert(ch1Proc, 0, 0);
-      ch3Proc.copyBits(ch2Proc, 0, 0, Blitter.DIVIDE);
-      ch3Proc.multiply(factor_);
-      
-      if (ch1Image.getBytesPerPixel() == 1) {
-         // check this actually works....
-         ch3Proc = ch3Proc.convertToByteProcessor();
-      } else if (ch1Image.getBytesPerPixel() == 2) {
-         // ImageJ method seems to be broken. Copied code from ImageJ1 here
-         ch3Proc = convertFloatToShort( (FloatProcessor) ch3Proc);
+
+      RatioKernel.Result ratio;
+      try {
+         ratio = kernel_.apply(ch1Image.getRawPixels(), ch2Image.getRawPixels());
+      } catch (IllegalArgumentException iae) {
+         studio_.logs().logError(iae, "Failed to calculate ratio image");
+         return;
       }
-      int max = (int) ch3Proc.getMax();
+      int max = ratio.max;
       int bitDepth = 1;
       while ( (1 << bitDepth) < max && bitDepth <= ch1Image.getBytesPerPixel() * 8) {
          bitDepth += 1;
       }
       
-      Image ratioImage = studio_.data().ij().createImage(ch3Proc, ratioCoords, 
+      Image ratioImage = studio_.data().wrapImage(ratio.pixels, 
+              ch1Image.getWidth(), ch1Image.getHeight(), 
+              ch1Image.getBytesPerPixel(), 1, ratioCoords, 
               ch1Image.getMetadata().copyBuilderWithNewUUID().bitDepth(bitDepth).
                       build());
       
       context.outputImage(ratioImage);
    }
-   
-   /**
-    * Copied from https://github.com/imagej/imagej1/blob/master/ij/process/TypeConverter.java
-    * 
-    * The call to chrProc.convertToShortProcess results in pixel values of -1
-    * Not sure why (but in included ImageJ version?) 
-    * Copying the relevant code from the ImageJ1 source fixes it
-    *  
-    * @param ip FloatProcessor to be converted
-    * @return Shortprocessor
-    */
-   ShortProcessor convertFloatToShort(FloatProcessor ip) {
-		float[] pixels32 = (float[])ip.getPixels();
-		short[] pixels16 = new short[ip.getWidth()*ip.getHeight()];
-		double value;
-		for (int i=0,j=0; i< (ip.getWidth() * ip.getHeight()); i++) {
-			value = pixels32[i];
-			if (value<0.0) {
-            value = 0.0;
-         }
-			if (value>65535.0) {
-            value = 65535.0;
-         }
-			pixels16[i] = (short)(value+0.5);
-		}
-	    return new ShortProcessor(ip.getWidth(), ip.getHeight(), pixels16, 
-               ip.getColorModel());
-   }
-   
-   private static ByteProcessor subtractByteProcessors(ByteProcessor proc1, ByteProcessor proc2) {
-      return new ByteProcessor(proc1.getWidth(), proc1.getHeight(),
-              subtractPixelArrays((byte []) proc1.getPixels(), (byte []) proc2.getPixels()),
-              null);
-   }
-   
-   
-   private static ShortProcessor subtractShortProcessors(ShortProcessor proc1, ShortProcessor proc2) {
-      return new ShortProcessor(proc1.getWidth(), proc1.getHeight(),
-              subtractPixelArrays((short []) proc1.getPixels(), (short []) proc2.getPixels()),
-              null);
-   }
-   
-    public static byte[] subtractPixelArrays(byte[] array1, byte[] array2) {
-      int l = array1.length;
-      byte[] result = new byte[l];
-      for (int i=0;i<l;++i) {
-         result[i] = (byte) Math.max(0, unsignedValue(array1[i]) - 
-                 unsignedValue(array2[i]) );
-      }
-      return result;
-   }
-   
-   public static short[] subtractPixelArrays(short[] array1, short[] array2) {
-      int l = array1.length;
-      short[] result = new short[l];
-      for (int i=0;i<l;++i) {
-         result[i] = (short) Math.max(0, unsignedValue(array1[i]) - unsignedValue(array2[i]));
-      }
-      return result;
-   }
-   
-   public static int unsignedValue(byte b) {
-      // Sign-extend, then mask
-      return ((int) b) & 0x000000ff;
-   }
-
-   public static int unsignedValue(short s) {
-      // Sign-extend, then mask
-      return ((int) s) & 0x0000ffff;
-   }
-   
-   public static ImageProcessor subtractImageProcessors(ImageProcessor proc1, ImageProcessor proc2) {
-      if ((proc1.getWidth() != proc2.getWidth())
-              || (proc1.getHeight() != proc2.getHeight())) {
-         return null;
-      }
-
-      if (proc1 instanceof ByteProcessor && proc2 instanceof ByteProcessor) {
-         return subtractByteProcessors((ByteProcessor) proc1, (ByteProcessor) proc2);
-      } else if (proc1 instanceof ShortProcessor && proc2 instanceof ShortProcessor) {
-         return subtractShortProcessors((ShortProcessor) proc1, (ShortProcessor) proc2);
-      }
-      
-      return null;
-   }
 }
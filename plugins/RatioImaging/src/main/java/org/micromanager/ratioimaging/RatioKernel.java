@@ -0,0 +1,179 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RatioKernel.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     RatioImaging plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.ratioimaging;
+
+import ij.process.FloatBlitter;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+/**
+ * Computes ratio images directly from raw 8 or 16 bit pixel arrays:
+ *
+ * ((ch1 - background1) - constant1) / ((ch2 - background2) - constant2) * factor
+ *
+ * in a single pass, where the background images are subtracted with
+ * clamping at zero and the rest is computed in float, as with the ImageJ
+ * processors used before, including ImageJ's handling of division by
+ * zero. The ratio is rounded and clamped to the range of the input pixel
+ * type. Large images are split into bands that are processed in parallel.
+ *
+ * Background values are extracted once, when the kernel is created.
+ */
+final class RatioKernel {
+   // Images smaller than this are not worth splitting up
+   private static final int MIN_BAND_SIZE = 64 * 1024;
+
+   private final int[] background1_;
+   private final int[] background2_;
+   private final float constant1_;
+   private final float constant2_;
+   private final double factor_;
+
+   /**
+    * Pixels and maximum value of a ratio image.
+    */
+   static final class Result {
+      final Object pixels;
+      final int max;
+
+      Result(Object pixels, int max) {
+         this.pixels = pixels;
+         this.max = max;
+      }
+   }
+
+   /**
+    * @param background1 Background for channel 1 (same size as the images),
+    *                    or null
+    * @param background2 Background for channel 2, or null
+    * @param constant1 Constant subtracted from channel 1
+    * @param constant2 Constant subtracted from channel 2
+    * @param factor Factor the ratio is multiplied with
+    */
+   RatioKernel(ImageProcessor background1, ImageProcessor background2,
+           int constant1, int constant2, int factor) {
+      background1_ = toValues(background1);
+      background2_ = toValues(background2);
+      constant1_ = constant1;
+      constant2_ = constant2;
+      factor_ = factor;
+   }
+
+   private static int[] toValues(ImageProcessor background) {
+      if (background == null) {
+         return null;
+      }
+      int[] values = new int[background.getWidth() * background.getHeight()];
+      for (int i = 0; i < values.length; i++) {
+         values[i] = background.get(i);
+      }
+      return values;
+   }
+
+   /**
+    * @param ch1 byte[] or short[] with the channel 1 pixels
+    * @param ch2 Array of the same type and length with the channel 2 pixels
+    * @return Ratio image, of the same pixel type as the input
+    * @throws IllegalArgumentException when the arrays or backgrounds differ
+    *         in type or size
+    */
+   Result apply(final Object ch1, final Object ch2) {
+      final int length;
+      final int length2;
+      if (ch1 instanceof byte[] && ch2 instanceof byte[]) {
+         length = ((byte[]) ch1).length;
+         length2 = ((byte[]) ch2).length;
+      } else if (ch1 instanceof short[] && ch2 instanceof short[]) {
+         length = ((short[]) ch1).length;
+         length2 = ((short[]) ch2).length;
+      } else {
+         throw new IllegalArgumentException("Ratio images need two 8 or 16 bit images");
+      }
+      if (length != length2
+              || (background1_ != null && background1_.length != length)
+              || (background2_ != null && background2_.length != length)) {
+         throw new IllegalArgumentException("Images are of unequal size");
+      }
+      final Object result = ch1 instanceof byte[] ? new byte[length]
+              : new short[length];
+      final float divideByZeroValue = FloatBlitter.divideByZeroValue;
+      int nrBands = Math.max(1, Math.min(
+              Runtime.getRuntime().availableProcessors(),
+              length / MIN_BAND_SIZE));
+      final int bandSize = (length + nrBands - 1) / nrBands;
+      int max = IntStream.range(0, nrBands).parallel().map(band ->
+              applyToBand(ch1, ch2, result, divideByZeroValue, band * bandSize,
+                      Math.min(length, (band + 1) * bandSize))).
+              max().orElse(0);
+      return new Result(result, max);
+   }
+
+   private int applyToBand(Object ch1, Object ch2, Object result,
+           float divideByZeroValue, int start, int end) {
+      // As in ImageJ, plain float division unless a value was set
+      final boolean useDivideByZeroValue =
+              divideByZeroValue != Float.POSITIVE_INFINITY;
+      int max = 0;
+      if (ch1 instanceof byte[]) {
+         byte[] in1 = (byte[]) ch1;
+         byte[] in2 = (byte[]) ch2;
+         byte[] out = (byte[]) result;
+         for (int i = start; i < end; i++) {
+            int pixel = ratio(in1[i] & 0xff, in2[i] & 0xff, i, 0xff,
+                    useDivideByZeroValue, divideByZeroValue);
+            max = Math.max(max, pixel);
+            out[i] = (byte) pixel;
+         }
+      } else {
+         short[] in1 = (short[]) ch1;
+         short[] in2 = (short[]) ch2;
+         short[] out = (short[]) result;
+         for (int i = start; i < end; i++) {
+            int pixel = ratio(in1[i] & 0xffff, in2[i] & 0xffff, i, 0xffff,
+                    useDivideByZeroValue, divideByZeroValue);
+            max = Math.max(max, pixel);
+            out[i] = (short) pixel;
+         }
+      }
+      return max;
+   }
+
+   private int ratio(int v1, int v2, int i, int maxValue,
+           boolean useDivideByZeroValue, float divideByZeroValue) {
+      if (background1_ != null) {
+         v1 = Math.max(0, v1 - background1_[i]);
+      }
+      if (background2_ != null) {
+         v2 = Math.max(0, v2 - background2_[i]);
+      }
+      float numerator = v1 - constant1_;
+      float denominator = v2 - constant2_;
+      float ratio = denominator == 0.0f && useDivideByZeroValue
+              ? divideByZeroValue : numerator / denominator;
+      double value = (float) (ratio * factor_);
+      if (value < 0.0) {
+         value = 0.0;
+      }
+      if (value > maxValue) {
+         value = maxValue;
+      }
+      return (int) (value + 0.5);
+   }
+}
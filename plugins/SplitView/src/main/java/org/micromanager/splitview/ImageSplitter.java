@@ -0,0 +1,124 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageSplitter.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2011, 2012
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.splitview;
+
+import java.lang.reflect.Array;
+import java.util.stream.IntStream;
+
+/**
+ * Cuts raw pixel arrays into equally sized tiles, side by side or stacked.
+ *
+ * The layout (for each tile, the offset of its first row in the input and
+ * the distance between its rows) is computed once for a given image size;
+ * splitting an image then only takes one System.arraycopy per row of each
+ * tile (a single one per tile when tiles are stacked, since such a tile is
+ * a contiguous part of the input). Tiles of large images are copied in
+ * parallel. Works for any pixel array type and any number of array
+ * elements per pixel (e.g. 4 for RGB images stored as byte[]).
+ *
+ * Instances are immutable and can be used from several threads.
+ */
+final class ImageSplitter {
+   // Images smaller than this are not worth splitting up in parallel
+   private static final int MIN_PARALLEL_SIZE = 256 * 1024;
+
+   private final int width_;
+   private final int height_;
+   private final int numSplits_;
+   private final int tileWidth_;
+   private final int tileHeight_;
+   // Offset in the input of the first element of each tile
+   private final int[] tileOffsets_;
+   // Array elements per tile row, and between rows in the input
+   private final int rowLength_;
+   private final int rowStride_;
+   private final int tileLength_;
+
+   /**
+    * @param width Width of the input images
+    * @param height Height of the input images
+    * @param elementsPerPixel Array elements per pixel
+    * @param orientation SplitViewFrame.LR or SplitViewFrame.TB
+    * @param numSplits Number of tiles
+    */
+   ImageSplitter(int width, int height, int elementsPerPixel,
+           String orientation, int numSplits) {
+      width_ = width;
+      height_ = height;
+      numSplits_ = numSplits;
+      boolean stacked = orientation.equals(SplitViewFrame.TB);
+      tileWidth_ = stacked ? width : width / numSplits;
+      tileHeight_ = stacked ? height / numSplits : height;
+      rowStride_ = width * elementsPerPixel;
+      tileOffsets_ = new int[numSplits];
+      for (int i = 0; i < numSplits; i++) {
+         tileOffsets_[i] = stacked ? i * tileHeight_ * rowStride_
+                 : i * tileWidth_ * elementsPerPixel;
+      }
+      // Stacked tiles are contiguous: copy each in one go
+      rowLength_ = stacked ? tileHeight_ * rowStride_
+              : tileWidth_ * elementsPerPixel;
+      tileLength_ = tileWidth_ * tileHeight_ * elementsPerPixel;
+   }
+
+   /**
+    * @return true when images of this size can be split by this splitter
+    */
+   boolean matches(int width, int height) {
+      return width == width_ && height == height_;
+   }
+
+   int getTileWidth() {
+      return tileWidth_;
+   }
+
+   int getTileHeight() {
+      return tileHeight_;
+   }
+
+   /**
+    * @param pixels Pixel array of an image of the size this splitter was
+    *               made for (not modified)
+    * @return New pixel arrays of the same type, one per tile
+    */
+   Object[] split(final Object pixels) {
+      final Object[] tiles = new Object[numSplits_];
+      if (numSplits_ > 1 && Array.getLength(pixels) >= MIN_PARALLEL_SIZE) {
+         IntStream.range(0, numSplits_).parallel().forEach(i ->
+                 tiles[i] = copyTile(pixels, i));
+      } else {
+         for (int i = 0; i < numSplits_; i++) {
+            tiles[i] = copyTile(pixels, i);
+         }
+      }
+      return tiles;
+   }
+
+   private Object copyTile(Object pixels, int tile) {
+      Object result = Array.newInstance(pixels.getClass().getComponentType(),
+              tileLength_);
+      int src = tileOffsets_[tile];
+      for (int dst = 0; dst < tileLength_; dst += rowLength_) {
+         System.arraycopy(pixels, src, result, dst, rowLength_);
+         src += rowStride_;
+      }
+      return result;
+   }
+}
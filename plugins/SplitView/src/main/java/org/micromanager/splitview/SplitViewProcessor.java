@@ -23,8 +23,7 @@
 
 package org.micromanager.splitview;
 
-import ij.process.ImageProcessor;
-
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -48,6 +47,7 @@ public class SplitViewProcessor implements Processor {
    private String orientation_ = SplitViewFrame.LR;
    private final int numSplits_;
    private final ArrayList<String> channelSuffixes_;
+   private ImageSplitter splitter_;
 
    public SplitViewProcessor(Studio studio, String orientation, int numSplits) {
       studio_ = studio;
@@ -95,30 +95,28 @@ public class SplitViewProcessor implements Processor {
 
    @Override
    public void processImage(Image image, ProcessorContext context) {
-      ImageProcessor proc = studio_.data().ij().createProcessor(image);
-
+      Object pixels = image.getRawPixels();
       int width = image.getWidth();
       int height = image.getHeight();
-      int xStep = 0;
-      int yStep = 0;
-      if (orientation_.equals(SplitViewFrame.TB)) {
-         height /= numSplits_;
-         yStep = height;
-      }
-      else {
-         width /= numSplits_;
-         xStep = width;
+      // The layout of the tiles is only recomputed when the image size changes
+      ImageSplitter splitter = splitter_;
+      if (splitter == null || !splitter.matches(width, height)) {
+         splitter = new ImageSplitter(width, height,
+               Array.getLength(pixels) / (width * height),
+               orientation_, numSplits_);
+         splitter_ = splitter;
       }
+      Object[] tiles = splitter.split(pixels);
 
       int channelIndex = image.getCoords().getChannel();
       for (int i = 0; i < numSplits_; ++i) {
-         proc.setRoi(i * xStep, i * yStep, width, height);
-
          Coords coords = image.getCoords().copy()
             .channel(channelIndex * numSplits_ + i).build();
-         Image output = studio_.data().createImage(proc.crop().getPixels(),
-               width, height, image.getBytesPerPixel(),
-               image.getNumComponents(), coords, image.getMetadata());
+         // The tiles are new arrays, so they can be used without copying
+         Image output = studio_.data().wrapImage(tiles[i],
+               splitter.getTileWidth(), splitter.getTileHeight(),
+               image.getBytesPerPixel(), image.getNumComponents(), coords,
+               image.getMetadata());
          context.outputImage(output);
       }
    }
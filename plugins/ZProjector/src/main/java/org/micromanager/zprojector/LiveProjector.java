@@ -0,0 +1,214 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveProjector.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+
+/**
+ * Projects images along one axis while they are acquired.
+ *
+ * Each stack (all images that differ only in their index along the projection
+ * axis) is folded into a ProjectionAccumulator as its images arrive, so that
+ * memory use does not depend on the depth of the stack. The projection is
+ * output as soon as the last image of the stack arrives, at index 0 along the
+ * projection axis. When the raw images are kept, they are passed on
+ * unchanged, and projections go into additional channels (one per original
+ * channel) so that they do not collide with the raw images.
+ *
+ * A stack that is still incomplete when the next stack starts in its slot
+ * (see slotOf()) will not get more images (e.g. a channel that does not use
+ * z), and is projected at that point, so that at most one stack per slot is
+ * kept. Stacks that are incomplete when the acquisition ends (e.g. because
+ * it was aborted) are projected in cleanup().
+ */
+public class LiveProjector implements Processor {
+
+   private final Studio studio_;
+   private final String projectionAxis_;
+   private final int projectionMethod_;
+   private final boolean keepRaw_;
+
+   // Number of images along the projection axis; 0 when not known
+   private int stackSize_ = 0;
+   private int nrChannels_ = 1;
+   private boolean warnedAboutImageType_ = false;
+
+   private final Map<Coords, Projection> projections_ = new HashMap<>();
+   // Stack in progress in each slot, keyed by slotOf()
+   private final Map<Coords, Coords> openStacks_ = new HashMap<>();
+
+   private static final class Projection {
+      final ProjectionAccumulator accumulator;
+      final Image firstImage;
+
+      Projection(ProjectionAccumulator accumulator, Image firstImage) {
+         this.accumulator = accumulator;
+         this.firstImage = firstImage;
+      }
+   }
+
+   /**
+    * @param studio The Studio
+    * @param projectionAxis Axis to project along (Coords.Z_SLICE or
+    *                       Coords.TIME_POINT)
+    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
+    * @param keepRaw Whether to output the raw images as well
+    */
+   public LiveProjector(Studio studio, String projectionAxis,
+           int projectionMethod, boolean keepRaw) {
+      studio_ = studio;
+      projectionAxis_ = projectionAxis;
+      projectionMethod_ = projectionMethod;
+      keepRaw_ = keepRaw;
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      Coords dimensions = summary.getIntendedDimensions();
+      List<String> chNames = summary.getChannelNameList();
+      if (chNames != null && !chNames.isEmpty()) {
+         nrChannels_ = chNames.size();
+      } else if (dimensions != null && dimensions.getChannel() > 0) {
+         nrChannels_ = dimensions.getChannel();
+      }
+      if (dimensions == null) {
+         return summary;
+      }
+      stackSize_ = Math.max(0, dimensions.getIndex(projectionAxis_));
+
+      SummaryMetadata.Builder builder = summary.copyBuilder();
+      if (keepRaw_) {
+         builder.intendedDimensions(dimensions.copyBuilder().
+                 channel(2 * nrChannels_).build());
+         if (chNames != null && chNames.size() == nrChannels_) {
+            String[] newNames = new String[2 * nrChannels_];
+            for (int i = 0; i < nrChannels_; i++) {
+               newNames[i] = chNames.get(i);
+               newNames[nrChannels_ + i] = chNames.get(i) + " " +
+                       projectionAxis_ + "-projection";
+            }
+            builder.channelNames(newNames);
+         }
+      } else {
+         builder.intendedDimensions(dimensions.copyBuilder().
+                 index(projectionAxis_, 1).build());
+      }
+      return builder.build();
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      if (studio_.live().isLiveModeOn()) {
+         context.outputImage(image);
+         return;
+      }
+      if (!ProjectionAccumulator.isSupported(image.getBytesPerPixel(),
+              image.getNumComponents())) {
+         if (!warnedAboutImageType_) {
+            studio_.logs().showError(
+                    "This type of image cannot be projected by " +
+                    LiveProjectorPlugin.MENUNAME);
+            warnedAboutImageType_ = true;
+         }
+         context.outputImage(image);
+         return;
+      }
+      if (keepRaw_) {
+         context.outputImage(image);
+      }
+
+      Coords stackCoords = image.getCoords().copyBuilder().
+              index(projectionAxis_, 0).build();
+      Projection projection = projections_.get(stackCoords);
+      if (projection == null) {
+         // An incomplete earlier stack in this slot will not get more
+         // images now that the next one starts
+         Coords previous = openStacks_.put(slotOf(stackCoords), stackCoords);
+         if (previous != null) {
+            Projection partial = projections_.remove(previous);
+            if (partial != null) {
+               outputProjection(previous, partial, context);
+            }
+         }
+         projection = new Projection(ProjectionAccumulator.create(
+                 projectionMethod_, image.getWidth(), image.getHeight(),
+                 image.getBytesPerPixel()), image);
+         projections_.put(stackCoords, projection);
+      }
+      projection.accumulator.add(image.getRawPixels());
+
+      // Images may be skipped (e.g. channels that skip frames), so the stack
+      // is complete when either its last image or enough images arrived
+      if (stackSize_ > 0 && (image.getCoords().getIndex(projectionAxis_)
+              >= stackSize_ - 1
+              || projection.accumulator.getCount() >= stackSize_)) {
+         projections_.remove(stackCoords);
+         openStacks_.remove(slotOf(stackCoords));
+         outputProjection(stackCoords, projection, context);
+      }
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      for (Map.Entry<Coords, Projection> entry : projections_.entrySet()) {
+         outputProjection(entry.getKey(), entry.getValue(), context);
+      }
+      projections_.clear();
+      openStacks_.clear();
+   }
+
+   /**
+    * Stacks with the same slot follow each other in an acquisition. For z
+    * projections, these are the stacks of a channel at successive time
+    * points and positions. Time projections of different positions are
+    * acquired at the same time, so each stack has its own slot.
+    */
+   private Coords slotOf(Coords stackCoords) {
+      if (projectionAxis_.equals(Coords.TIME_POINT)) {
+         return stackCoords;
+      }
+      return stackCoords.copyRemovingAxes(Coords.TIME_POINT,
+              Coords.STAGE_POSITION);
+   }
+
+   private void outputProjection(Coords stackCoords, Projection projection,
+           ProcessorContext context) {
+      Coords coords = stackCoords;
+      if (keepRaw_) {
+         coords = coords.copyBuilder().channel(
+                 nrChannels_ + stackCoords.getChannel()).build();
+      }
+      Image first = projection.firstImage;
+      Metadata metadata = first.getMetadata().copyBuilderWithNewUUID().build();
+      context.outputImage(studio_.data().wrapImage(
+              projection.accumulator.getResult(), first.getWidth(),
+              first.getHeight(), first.getBytesPerPixel(), 1, coords,
+              metadata));
+   }
+}
@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveProjectorConfigurator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import java.awt.event.ActionEvent;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.WindowConstants;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Configuration window for the LiveProjector
+ */
+public class LiveProjectorConfigurator extends JFrame
+        implements ProcessorConfigurator {
+   private final MutablePropertyMapView settings_;
+
+   public LiveProjectorConfigurator(Studio studio, PropertyMap configuratorSettings) {
+      settings_ = studio.profile().getSettings(this.getClass());
+      copySettings(settings_, configuratorSettings);
+
+      super.setTitle(LiveProjectorPlugin.MENUNAME);
+      super.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+      super.setLayout(new MigLayout("flowx, fill, insets 8"));
+
+      final JComboBox axisBox = new JComboBox(
+              new String[] {Coords.Z_SLICE, Coords.TIME_POINT});
+      axisBox.setSelectedItem(settings_.getString(LiveProjectorPlugin.AXISKEY,
+              Coords.Z_SLICE));
+      axisBox.addActionListener((ActionEvent e) -> {
+         settings_.putString(LiveProjectorPlugin.AXISKEY,
+                 (String) axisBox.getSelectedItem());
+      });
+      super.add(new JLabel("axis"));
+      super.add(axisBox, "grow, wrap");
+
+      final JComboBox methodBox = new JComboBox(
+              LiveProjectorPlugin.PROJECTION_METHODS);
+      methodBox.setSelectedItem(settings_.getString(
+              LiveProjectorPlugin.PROJECTION_METHOD, "Max"));
+      methodBox.addActionListener((ActionEvent e) -> {
+         settings_.putString(LiveProjectorPlugin.PROJECTION_METHOD,
+                 (String) methodBox.getSelectedItem());
+      });
+      super.add(new JLabel("method"));
+      super.add(methodBox, "grow, wrap");
+
+      final JCheckBox keepRawBox = new JCheckBox("keep raw images");
+      keepRawBox.setSelected(settings_.getBoolean(
+              LiveProjectorPlugin.KEEP_RAW, false));
+      keepRawBox.addActionListener((ActionEvent e) -> {
+         settings_.putBoolean(LiveProjectorPlugin.KEEP_RAW,
+                 keepRawBox.isSelected());
+      });
+      super.add(keepRawBox, "span 2, wrap");
+
+      super.pack();
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      return settings_.toPropertyMap();
+   }
+
+   @Override
+   public void showGUI() {
+      setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+      dispose();
+   }
+
+   private void copySettings(MutablePropertyMapView settings,
+           PropertyMap configuratorSettings) {
+      settings.putString(LiveProjectorPlugin.AXISKEY,
+              configuratorSettings.getString(LiveProjectorPlugin.AXISKEY,
+                      settings.getString(LiveProjectorPlugin.AXISKEY,
+                              Coords.Z_SLICE)));
+      settings.putString(LiveProjectorPlugin.PROJECTION_METHOD,
+              configuratorSettings.getString(
+                      LiveProjectorPlugin.PROJECTION_METHOD,
+                      settings.getString(LiveProjectorPlugin.PROJECTION_METHOD,
+                              "Max")));
+      settings.putBoolean(LiveProjectorPlugin.KEEP_RAW,
+              configuratorSettings.getBoolean(LiveProjectorPlugin.KEEP_RAW,
+                      settings.getBoolean(LiveProjectorPlugin.KEEP_RAW,
+                              false)));
+   }
+}
@@ -0,0 +1,45 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveProjectorFactory.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+public class LiveProjectorFactory implements ProcessorFactory {
+   private final Studio studio_;
+   private final PropertyMap settings_;
+
+   public LiveProjectorFactory(Studio studio, PropertyMap settings) {
+      studio_ = studio;
+      settings_ = settings;
+   }
+
+   @Override
+   public Processor createProcessor() {
+      return new LiveProjector(studio_,
+              settings_.getString(LiveProjectorPlugin.AXISKEY, Coords.Z_SLICE),
+              LiveProjectorPlugin.getProjectionMethod(settings_.getString(
+                      LiveProjectorPlugin.PROJECTION_METHOD, "Max")),
+              settings_.getBoolean(LiveProjectorPlugin.KEEP_RAW, false));
+   }
+}
@@ -0,0 +1,101 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveProjectorPlugin.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.ProcessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.SciJavaPlugin;
+
+/**
+ * Processor that projects images along Z or T while they are being acquired.
+ * The projection of each stack is emitted as soon as its last image arrives.
+ */
+@Plugin(type = ProcessorPlugin.class)
+public class LiveProjectorPlugin implements ProcessorPlugin, SciJavaPlugin {
+   public static final String MENUNAME = "Live Projector";
+   public static final String AXISKEY = "AxisKey";
+   public static final String PROJECTION_METHOD = "ProjectionMethod";
+   public static final String KEEP_RAW = "KeepRawImages";
+
+   // Methods that need only a fixed amount of memory per projection
+   static final String[] PROJECTION_METHODS = new String[]
+                                    {"Max", "Min", "Avg", "Sum", "Std.Dev"};
+
+   private Studio studio_;
+
+   @Override
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public ProcessorConfigurator createConfigurator(PropertyMap settings) {
+      return new LiveProjectorConfigurator(studio_, settings);
+   }
+
+   @Override
+   public ProcessorFactory createFactory(PropertyMap settings) {
+      return new LiveProjectorFactory(studio_, settings);
+   }
+
+   @Override
+   public String getName() {
+      return MENUNAME;
+   }
+
+   @Override
+   public String getHelpText() {
+      return "Projects stacks along Z or T during acquisition";
+   }
+
+   @Override
+   public String getVersion() {
+      return "Version 0.1";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "Regents of the University of California, 2019";
+   }
+
+   /**
+    * @param method One of PROJECTION_METHODS
+    * @return Projection method as an ImageJ ZProjector int
+    */
+   static int getProjectionMethod(String method) {
+      switch (method) {
+         case "Min":
+            return ZProjector.MIN_METHOD;
+         case "Avg":
+            return ZProjector.AVG_METHOD;
+         case "Sum":
+            return ZProjector.SUM_METHOD;
+         case "Std.Dev":
+            return ZProjector.SD_METHOD;
+         default:
+            return ZProjector.MAX_METHOD;
+      }
+   }
+}
@@ -0,0 +1,237 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ProjectionAccumulator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes a single projection of 8 or 16 bit grayscale planes.
+ *
+ * Planes are added one at a time and folded into running per-pixel
+ * accumulators, so that (except for the median) no more than one input plane
+ * needs to be held in memory. The median can not be computed incrementally,
+ * so for that method the added planes are retained until the result is
+ * requested.
+ *
+ * Results have the same pixel type as the input, and equal what ImageJ's
+ * ZProjector produces for the same method followed by conversion without
+ * scaling: averages are truncated, other non-integer results are rounded,
+ * and values that do not fit are clamped.
+ *
+ * Instances are not thread safe; use one per projection.
+ */
+final class ProjectionAccumulator {
+   private final int method_;
+   private final int nrPixels_;
+   private final int bytesPerPixel_;
+   private int count_ = 0;
+
+   // Only the accumulators needed for method_ are allocated
+   private int[] extreme_;
+   private double[] sum_;
+   private double[] sumOfSquares_;
+   private List<Object> planes_;
+
+   /**
+    * @param method Projection method (as an ImageJ ZProjector int)
+    * @param width Width of the planes in pixels
+    * @param height Height of the planes in pixels
+    * @param bytesPerPixel 1 or 2
+    * @return new accumulator
+    */
+   static ProjectionAccumulator create(int method, int width, int height,
+         int bytesPerPixel) {
+      if (!isSupported(bytesPerPixel, 1)) {
+         throw new IllegalArgumentException("Unsupported pixel size: " +
+               bytesPerPixel + " bytes");
+      }
+      return new ProjectionAccumulator(method, width * height, bytesPerPixel);
+   }
+
+   /**
+    * @param bytesPerPixel bytes per pixel of the planes
+    * @param numComponents number of components of the planes
+    * @return true when planes of this type can be projected by this class
+    */
+   static boolean isSupported(int bytesPerPixel, int numComponents) {
+      return numComponents == 1 && (bytesPerPixel == 1 || bytesPerPixel == 2);
+   }
+
+   private ProjectionAccumulator(int method, int nrPixels, int bytesPerPixel) {
+      method_ = method;
+      nrPixels_ = nrPixels;
+      bytesPerPixel_ = bytesPerPixel;
+      switch (method) {
+         case ZProjector.MAX_METHOD:
+            extreme_ = new int[nrPixels];
+            break;
+         case ZProjector.MIN_METHOD:
+            extreme_ = new int[nrPixels];
+            Arrays.fill(extreme_, Integer.MAX_VALUE);
+            break;
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            sum_ = new double[nrPixels];
+            break;
+         case ZProjector.SD_METHOD:
+            sum_ = new double[nrPixels];
+            sumOfSquares_ = new double[nrPixels];
+            break;
+         case ZProjector.MEDIAN_METHOD:
+            planes_ = new ArrayList<Object>();
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown projection method: " +
+                  method);
+      }
+   }
+
+   /**
+    * Adds a plane to the projection. The pixels are not modified, and only
+    * retained for the median.
+    *
+    * @param pixels byte[] or short[] with the (unsigned) pixel values
+    */
+   void add(Object pixels) {
+      int length = bytesPerPixel_ == 1 ? ((byte[]) pixels).length :
+            ((short[]) pixels).length;
+      if (length < nrPixels_) {
+         throw new IllegalArgumentException("Plane has " + length +
+               " pixels, expected " + nrPixels_);
+      }
+      count_++;
+      switch (method_) {
+         case ZProjector.MAX_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               extreme_[i] = Math.max(extreme_[i], valueAt(pixels, i));
+            }
+            break;
+         case ZProjector.MIN_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               extreme_[i] = Math.min(extreme_[i], valueAt(pixels, i));
+            }
+            break;
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               sum_[i] += valueAt(pixels, i);
+            }
+            break;
+         case ZProjector.SD_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               double value = valueAt(pixels, i);
+               sum_[i] += value;
+               sumOfSquares_[i] += value * value;
+            }
+            break;
+         case ZProjector.MEDIAN_METHOD:
+            planes_.add(pixels);
+            break;
+      }
+   }
+
+   /**
+    * @return number of planes added so far
+    */
+   int getCount() {
+      return count_;
+   }
+
+   /**
+    * Computes the projection of all planes added so far.
+    *
+    * @return byte[] or short[] (matching the input) with the projection
+    * @throws IllegalStateException if no planes were added
+    */
+   Object getResult() {
+      if (count_ == 0) {
+         throw new IllegalStateException("No planes to project");
+      }
+      Object result = bytesPerPixel_ == 1 ? new byte[nrPixels_] :
+            new short[nrPixels_];
+      switch (method_) {
+         case ZProjector.MAX_METHOD:
+         case ZProjector.MIN_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               setValueAt(result, i, extreme_[i]);
+            }
+            break;
+         case ZProjector.AVG_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               setValueAt(result, i, (int) (sum_[i] / count_));
+            }
+            break;
+         case ZProjector.SUM_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               setValueAt(result, i, round(sum_[i]));
+            }
+            break;
+         case ZProjector.SD_METHOD:
+            for (int i = 0; i < nrPixels_; i++) {
+               // Same expression and float result as ImageJ, so that
+               // rounding agrees; also covers a single plane (0 / 0)
+               double variance = (count_ * sumOfSquares_[i] -
+                     sum_[i] * sum_[i]) / count_ / (count_ - 1.0);
+               setValueAt(result, i, variance > 0.0 ?
+                     round((float) Math.sqrt(variance)) : 0);
+            }
+            break;
+         case ZProjector.MEDIAN_METHOD:
+            int[] values = new int[count_];
+            int middle = count_ / 2;
+            for (int i = 0; i < nrPixels_; i++) {
+               for (int j = 0; j < count_; j++) {
+                  values[j] = valueAt(planes_.get(j), i);
+               }
+               Arrays.sort(values);
+               if (count_ % 2 == 1) {
+                  setValueAt(result, i, values[middle]);
+               } else {
+                  setValueAt(result, i,
+                        round((values[middle - 1] + values[middle]) / 2.0));
+               }
+            }
+            break;
+      }
+      return result;
+   }
+
+   private int valueAt(Object pixels, int i) {
+      if (bytesPerPixel_ == 1) {
+         return ((byte[]) pixels)[i] & 0xff;
+      }
+      return ((short[]) pixels)[i] & 0xffff;
+   }
+
+   private void setValueAt(Object pixels, int i, long value) {
+      if (bytesPerPixel_ == 1) {
+         ((byte[]) pixels)[i] = (byte) Math.min(value, 0xff);
+      } else {
+         ((short[]) pixels)[i] = (short) Math.min(value, 0xffff);
+      }
+   }
+
+   private static long round(double value) {
+      return (long) (value + 0.5);
+   }
+}
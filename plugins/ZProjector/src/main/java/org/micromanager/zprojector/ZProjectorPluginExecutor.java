@@ -29,6 +29,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.swing.SwingWorker;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
@@ -61,9 +67,6 @@ public class ZProjectorPluginExecutor {
    private final Studio studio_;
    private final DisplayWindow window_;
    private final DataProvider oldStore_;
-   private int nrProjections_;
-   private int projectionNr_;
-   private ProgressBar progressBar_;
 
    public ZProjectorPluginExecutor(Studio studio, DisplayWindow window) {
       studio_ = studio;
@@ -122,7 +125,7 @@ public class ZProjectorPluginExecutor {
             metadata = metadata.copyBuilder()
                     .intendedDimensions(newSizeCoordsBuilder.build())
                     .build();
-            Coords.CoordsBuilder cb = Coordinates.builder();
+            ProgressBar progressBar = null;
             try {
                newStore.setSummaryMetadata(metadata);               
                List<String> axes = oldStore_.getAxes();
@@ -134,26 +137,24 @@ public class ZProjectorPluginExecutor {
                   copyDisplay.setDisplaySettings(
                           window_.getDisplaySettings().copyBuilder().build());
                   studio_.displays().manage(newStore);
-               } else {
-                  nrProjections_ = 1;
-                  for (String axis : axes) {
-                     nrProjections_ *= oldStore_.getNextIndex(axis);
-                  }
-                  progressBar_ = new ProgressBar (window_.getWindow(), 
-                                       "Projection Progress", 1, nrProjections_);
-                  progressBar_.setVisible(true);
                }
+               List<Coords> projections = findAllProjections(axes);
+               if (save) {
+                  progressBar = new ProgressBar (window_.getWindow(),
+                          "Projection Progress", 1, projections.size());
+                  progressBar.setVisible(true);
+               }
+
+               executeProjections(newStore, projections, projectionAxis,
+                       firstFrame, lastFrame, projectionMethod, progressBar);
 
-               findAllProjections(newStore, axes, cb, projectionAxis,
-                       firstFrame, lastFrame, projectionMethod);
-               
             } catch (DatastoreFrozenException ex) {
                studio_.logs().showError("Can not add data to frozen datastore");
             } catch (DatastoreRewriteException ex) {
                studio_.logs().showError("Can not overwrite data");
             } finally {
-               if (progressBar_ != null) {
-                  progressBar_.setVisible(false);
+               if (progressBar != null) {
+                  progressBar.setVisible(false);
                }
             }
 
@@ -182,64 +183,162 @@ public class ZProjectorPluginExecutor {
    
    
    /**
-    * Recursively figures out which projections need to be performed
-    * It does so by taking the first remaining axes, cycle through all positions
-    * in that axes, and recursively calling this function (omitting that axis).
-    * When no more axes are remining, the actual projection will be exected.
-    * 
+    * Lists the coordinates of all projections to perform, i.e. all
+    * combinations of indices along the given axes. The first axis varies
+    * slowest.
+    *
+    * @param axes Axes other than the projection axis
+    * @return Coords of each projection (without the projection axis)
+    */
+   private List<Coords> findAllProjections(List<String> axes) {
+      List<Coords> result = new ArrayList<>();
+      result.add(Coordinates.builder().build());
+      for (String axis : axes) {
+         List<Coords> expanded = new ArrayList<>();
+         for (Coords coords : result) {
+            for (int i = 0; i < oldStore_.getNextIndex(axis); i++) {
+               expanded.add(coords.copyBuilder().index(axis, i).build());
+            }
+         }
+         result = expanded;
+      }
+      return result;
+   }
+
+   /**
+    * Performs all projections on a pool of threads, and adds the results to
+    * the new store (in the order in which they complete).
+    *
+    * At most a few projections per thread are in flight at any time, so that
+    * memory use does not depend on the size of the data set.
+    *
     * @param newStore Datastore to put the new projected images into
-    * @param remainingAxes List with axes to look at
-    * @param cbp      Coordinates build set to the correct position
-    * @param projectionAxis   Axis that needs to be projected
-    * @param min       lowest frame number to be included in the projection
-    * @param max        highest frame number to be included in the projection
+    * @param projections Coords of the projections to perform
+    * @param projectionAxis Axis that needs to be projected
+    * @param min lowest frame number to be included in the projection
+    * @param max Highest frame number to be included in the projection
     * @param projectionMethod Projection method (as an ImageJ ZProjector int)
-    * @throws IOException Can arise when saving to disk
+    * @param progressBar Progress bar to update, or null
+    * @throws IOException Can arise when reading or saving to disk
+    * @throws InterruptedException when interrupted while waiting for results
     */
-   private void findAllProjections(Datastore newStore, List<String> remainingAxes, 
-           Coords.CoordsBuilder cbp, String projectionAxis, int min, int max, 
-           int projectionMethod) throws IOException {
-      String currentAxis = remainingAxes.get(0);
-      List<String> rcAxes = new ArrayList<>(remainingAxes);
-      rcAxes.remove(currentAxis);
-      for (int i = 0; i < oldStore_.getNextIndex(currentAxis); i++) {
-         cbp.index(currentAxis, i);
-         if (rcAxes.isEmpty()) {
-            executeProjection(newStore, cbp, projectionAxis, min, max, projectionMethod);
-            projectionNr_++;
-            if (progressBar_ != null) {
-               progressBar_.setProgress(projectionNr_); 
+   private void executeProjections(Datastore newStore,
+           List<Coords> projections, final String projectionAxis,
+           final int min, final int max, final int projectionMethod,
+           ProgressBar progressBar) throws IOException, InterruptedException {
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+      CompletionService<Image> completion =
+              new ExecutorCompletionService<>(executor);
+      int submitted = 0;
+      int completed = 0;
+      try {
+         while (completed < projections.size()) {
+            while (submitted < projections.size()
+                    && submitted - completed < 2 * nrThreads) {
+               final Coords coords = projections.get(submitted++);
+               completion.submit(new Callable<Image>() {
+                  @Override
+                  public Image call() throws IOException {
+                     return executeProjection(coords, projectionAxis, min,
+                             max, projectionMethod);
+                  }
+               });
+            }
+            Image projection;
+            try {
+               projection = completion.take().get();
+            } catch (ExecutionException ex) {
+               if (ex.getCause() instanceof IOException) {
+                  throw (IOException) ex.getCause();
+               }
+               if (ex.getCause() instanceof RuntimeException) {
+                  throw (RuntimeException) ex.getCause();
+               }
+               throw new IOException(ex.getCause());
+            }
+            completed++;
+            if (projection != null) {
+               newStore.putImage(projection);
+            } else {
+               studio_.alerts().postAlert("Projection problem", this.getClass(),
+                       "No images found while projecting");
+            }
+            if (progressBar != null) {
+               progressBar.setProgress(completed);
             }
-         } else {
-            findAllProjections(newStore, rcAxes, cbp, projectionAxis,
-                    min, max, projectionMethod);
          }
+      } finally {
+         executor.shutdownNow();
       }
    }
-   
+
    /**
     * Do the actual projection
-    * 
-    * @param newStore Datastore to put the new projected images into
-    * @param cbp Coordinates build set to the correct position
+    *
+    * 8 and 16 bit grayscale planes are streamed through a
+    * ProjectionAccumulator; other types are projected by ImageJ.
+    *
+    * @param coords Coordinates of the projection (without projectionAxis)
     * @param projectionAxis Axis that needs to be projected
     * @param min lowest frame number to be included in the projection
     * @param max Highest frame number to be included in the projection
     * @param projectionMethod Projection method (as an ImageJ ZProjector int)
-    * @throws IOException Can arise when saving to disk
+    * @return Projected image, or null when no images were found
+    * @throws IOException Can arise when reading from disk
     */
-   private void executeProjection(Datastore newStore, Coords.CoordsBuilder cbp, 
-           String projectionAxis, int min, int max, int projectionMethod) 
-           throws IOException {
-      cbp.index(projectionAxis, min);
+   private Image executeProjection(Coords coords, String projectionAxis,
+           int min, int max, int projectionMethod) throws IOException {
       Image tmpImg = oldStore_.getAnyImage();
-      if (tmpImg== null) {
-         studio_.alerts().postAlert("Projection problem", this.getClass(),
-                 "No images found while projecting");
-         return;
+      if (tmpImg == null) {
+         return null;
+      }
+      if (!ProjectionAccumulator.isSupported(tmpImg.getBytesPerPixel(),
+              tmpImg.getNumComponents())) {
+         return executeImageJProjection(coords, projectionAxis, min, max,
+                 projectionMethod);
+      }
+      ProjectionAccumulator accumulator = ProjectionAccumulator.create(
+              projectionMethod, tmpImg.getWidth(), tmpImg.getHeight(),
+              tmpImg.getBytesPerPixel());
+      Coords.Builder cbp = coords.copyBuilder();
+      Metadata imgMetadata = null;
+      for (int i = min; i <= max; i++) {
+         Image img = oldStore_.getImage(cbp.index(projectionAxis, i).build());
+         if (img != null) {  // null happens when this image was skipped
+            if (imgMetadata == null) {
+               imgMetadata = img.getMetadata();
+            }
+            accumulator.add(img.getRawPixels());
+         }
+      }
+      if (accumulator.getCount() == 0) {
+         return null;
       }
+      return studio_.data().wrapImage(accumulator.getResult(),
+              tmpImg.getWidth(), tmpImg.getHeight(), tmpImg.getBytesPerPixel(),
+              1, cbp.index(projectionAxis, 0).build(),
+              imgMetadata.copyBuilderWithNewUUID().build());
+   }
+
+   /**
+    * Projection using ImageJ, for image types not handled by
+    * ProjectionAccumulator (e.g. RGB)
+    *
+    * @param coords Coordinates of the projection (without projectionAxis)
+    * @param projectionAxis Axis that needs to be projected
+    * @param min lowest frame number to be included in the projection
+    * @param max Highest frame number to be included in the projection
+    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
+    * @return Projected image, or null when no images were found
+    * @throws IOException Can arise when reading from disk
+    */
+   private Image executeImageJProjection(Coords coords, String projectionAxis,
+           int min, int max, int projectionMethod) throws IOException {
+      Image tmpImg = oldStore_.getAnyImage();
       ImageStack stack = new ImageStack(
                tmpImg.getWidth(), tmpImg.getHeight());
+      Coords.Builder cbp = coords.copyBuilder();
       Metadata imgMetadata = null;
       for (int i = min; i <= max; i++) {
          Image img = oldStore_.getImage(cbp.index(projectionAxis, i).build());
@@ -252,27 +351,24 @@ public class ZProjectorPluginExecutor {
             stack.addSlice(ip);
          }
       }
-      if (stack.getSize() > 0 && imgMetadata != null) {
-         ImagePlus tmp = new ImagePlus("tmp", stack);
-         ZProjector zp = new ZProjector(tmp);
-         zp.setMethod(projectionMethod);
-         zp.doProjection();
-         ImagePlus projection = zp.getProjection();
-         if (projection.getBytesPerPixel() > 2) {
-            if (tmp.getBytesPerPixel() == 1) {
-               projection.setProcessor(projection.getProcessor().convertToByte(false));
-            } else if (tmp.getBytesPerPixel() == 2) {
-               projection.setProcessor(projection.getProcessor().convertToShort(false));
-            }
+      if (stack.getSize() == 0 || imgMetadata == null) {
+         return null;
+      }
+      ImagePlus tmp = new ImagePlus("tmp", stack);
+      ZProjector zp = new ZProjector(tmp);
+      zp.setMethod(projectionMethod);
+      zp.doProjection();
+      ImagePlus projection = zp.getProjection();
+      if (projection.getBytesPerPixel() > 2) {
+         if (tmp.getBytesPerPixel() == 1) {
+            projection.setProcessor(projection.getProcessor().convertToByte(false));
+         } else if (tmp.getBytesPerPixel() == 2) {
+            projection.setProcessor(projection.getProcessor().convertToShort(false));
          }
-         Image outImg = studio_.data().getImageJConverter().createImage(
-                 projection.getProcessor(), cbp.index(projectionAxis, 0).build(),
-                 imgMetadata.copyBuilderWithNewUUID().build());
-         newStore.putImage(outImg);
-      } else {
-         studio_.alerts().postAlert("Projection problem", this.getClass(), 
-                                             "No images found while projecting");
       }
+      return studio_.data().getImageJConverter().createImage(
+              projection.getProcessor(), cbp.index(projectionAxis, 0).build(),
+              imgMetadata.copyBuilderWithNewUUID().build());
    }
-   
+
 }